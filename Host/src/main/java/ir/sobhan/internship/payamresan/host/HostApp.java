@@ -1,6 +1,8 @@
 package ir.sobhan.internship.payamresan.host;
 
+import ir.sobhan.internship.payamresan.host.config.ExecutionMode;
 import ir.sobhan.internship.payamresan.host.connector.CentralServerConnector;
+import ir.sobhan.internship.payamresan.host.storage.SnapshotFormat;
 import ir.sobhan.internship.payamresan.host.workspace.WorkspaceManager;
 import lombok.extern.slf4j.Slf4j;
 import java.util.Scanner;
@@ -20,16 +22,16 @@ public class HostApp {
         int centralServerPort = Integer.parseInt(args[1]);
         String hostIp = args[2];
         int hostStartPort = Integer.parseInt(args[3]);
-        String dataFilePath = "host_data_" + hostStartPort + ".json";
+        SnapshotFormat snapshotFormat = SnapshotFormat.fromSystemProperties();
+        String dataFileBaseName = "host_data_" + hostStartPort;
+        String dataFilePath = snapshotFormat.fileName(dataFileBaseName);
 
-        WorkspaceManager workspaceManager = new WorkspaceManager();
+        WorkspaceManager workspaceManager = new WorkspaceManager(ExecutionMode.fromSystemProperties());
         CentralServerConnector connector = new CentralServerConnector(centralServerIp, centralServerPort, hostIp, hostStartPort, Integer.parseInt(args[4]), workspaceManager);
 
-        workspaceManager.loadAndRestartWorkspaces(dataFilePath, connector);
+        workspaceManager.loadAndRestartWorkspaces(snapshotFormat.fileToLoad(dataFileBaseName), connector);
 
-        Thread connectorThread = new Thread(connector);
-        connectorThread.setName("CentralServer-Connector-Thread");
-        connectorThread.start();
+        connector.start();
 
         Thread shutdownListener = new Thread(() -> {
             log.info("Type 'shutdown' in this console to save data and stop the host.");
@@ -0,0 +1,115 @@
+package ir.sobhan.internship.payamresan.host.auth;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Verifies {@code s1.<payload>.<hmac>} join tokens locally with the key shared by the central server
+ * at registration. Each token's nonce is remembered until the token expires, so a token is accepted once.
+ */
+@Slf4j
+public class SignedTokenVerifier {
+    public static final String PREFIX = "s1.";
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final long SWEEP_INTERVAL_MILLIS = 10_000;
+
+    private static final ThreadLocal<Mac> MACS = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance(MAC_ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(MAC_ALGORITHM + " is not available", e);
+        }
+    });
+
+    private volatile SecretKeySpec key;
+    // nonce -> expiry of the token that used it
+    private final ConcurrentHashMap<String, Long> usedNonces = new ConcurrentHashMap<>();
+    private volatile long nextSweepMillis;
+
+    public static boolean isSignedToken(String token) {
+        return token.startsWith(PREFIX);
+    }
+
+    public void setKey(String encodedKey) {
+        this.key = new SecretKeySpec(Base64.getUrlDecoder().decode(encodedKey), MAC_ALGORITHM);
+    }
+
+    public void clearKey() {
+        this.key = null;
+    }
+
+    /** Returns the phone number the token was issued to, or null if it is forged, expired, replayed or for another workspace. */
+    public String verify(String token, int workspacePort) {
+        SecretKeySpec currentKey = key;
+        if (currentKey == null) {
+            log.warn("Received a signed token before a key was shared by the central server.");
+            return null;
+        }
+        int dot = token.indexOf('.', PREFIX.length());
+        if (dot < 0) {
+            return null;
+        }
+        byte[] payload;
+        byte[] signature;
+        try {
+            payload = Base64.getUrlDecoder().decode(token.substring(PREFIX.length(), dot));
+            signature = Base64.getUrlDecoder().decode(token.substring(dot + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        Mac mac = MACS.get();
+        try {
+            mac.init(currentKey);
+        } catch (GeneralSecurityException e) {
+            log.error("Could not initialise token MAC.", e);
+            return null;
+        }
+        if (!MessageDigest.isEqual(mac.doFinal(payload), signature)) {
+            log.warn("Rejected signed token with an invalid signature.");
+            return null;
+        }
+
+        // phone|workspace|port|expiryMillis|nonce
+        String[] fields = new String(payload, StandardCharsets.UTF_8).split("\\|");
+        if (fields.length != 5) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        long expiry;
+        try {
+            if (Integer.parseInt(fields[2]) != workspacePort) {
+                log.warn("Rejected signed token for workspace '{}' presented on port {}.", fields[1], workspacePort);
+                return null;
+            }
+            expiry = Long.parseLong(fields[3]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (now > expiry) {
+            log.warn("Rejected expired signed token for user {}.", fields[0]);
+            return null;
+        }
+        sweepExpiredNonces(now);
+        if (usedNonces.putIfAbsent(fields[4], expiry) != null) {
+            log.warn("Rejected replayed signed token for user {}.", fields[0]);
+            return null;
+        }
+        return fields[0];
+    }
+
+    private void sweepExpiredNonces(long now) {
+        if (now < nextSweepMillis) {
+            return;
+        }
+        nextSweepMillis = now + SWEEP_INTERVAL_MILLIS;
+        usedNonces.values().removeIf(expiry -> expiry < now);
+    }
+}
@@ -0,0 +1,41 @@
+package ir.sobhan.internship.payamresan.host.config;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * How workspace accept loops and client handlers are scheduled.
+ * Selected with {@code -Dpayamresan.execution-mode=platform|virtual}.
+ */
+@Slf4j
+public enum ExecutionMode {
+    PLATFORM,
+    VIRTUAL;
+
+    public static final String PROPERTY = "payamresan.execution-mode";
+
+    public static ExecutionMode fromSystemProperties() {
+        String value = System.getProperty(PROPERTY, PLATFORM.name());
+        try {
+            return valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            log.warn("Unknown execution mode '{}', falling back to {}.", value, PLATFORM);
+            return PLATFORM;
+        }
+    }
+
+    /** Executor for per-client handlers: a cached pool in platform mode, one virtual thread per client otherwise. */
+    public ExecutorService newClientExecutor(String threadNamePrefix) {
+        if (this == VIRTUAL) {
+            return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(threadNamePrefix, 0).factory());
+        }
+        return Executors.newCachedThreadPool(Thread.ofPlatform().name(threadNamePrefix, 0).factory());
+    }
+
+    public Thread startThread(String name, Runnable task) {
+        Thread.Builder builder = this == VIRTUAL ? Thread.ofVirtual() : Thread.ofPlatform();
+        return builder.name(name).start(task);
+    }
+}
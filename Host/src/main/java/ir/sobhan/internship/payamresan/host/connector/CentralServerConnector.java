@@ -1,71 +1,197 @@
 
 package ir.sobhan.internship.payamresan.host.connector;
 
+import ir.sobhan.internship.payamresan.host.auth.SignedTokenVerifier;
+import ir.sobhan.internship.payamresan.host.wire.Frame;
+import ir.sobhan.internship.payamresan.host.wire.FrameReader;
+import ir.sobhan.internship.payamresan.host.wire.FrameWriter;
+import ir.sobhan.internship.payamresan.host.wire.WireProtocol;
 import ir.sobhan.internship.payamresan.host.workspace.WorkspaceManager;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Slf4j
 public class CentralServerConnector implements Runnable {
 
-    private final String centralServerIp;
-    private final int centralServerPort;
+    private static final long INITIAL_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+    private static final long SYNC_TIMEOUT_SECONDS = 30;
+    // A standby Central Server (<ip:port>) tried whenever the configured one cannot be reached or refuses the host.
+    public static final String STANDBY_PROPERTY = "payamresan.central-standby";
+
+    private final String primaryIp;
+    private final int primaryPort;
+    private final String standbyIp;
+    private final int standbyPort;
+    private volatile String centralServerIp;
+    private volatile int centralServerPort;
     private final String hostIp;
     private final int hostStartPort;
     private final int hostEndPort;
     private final WorkspaceManager workspaceManager;
+    // Binary frames on the control link, selected with -Dpayamresan.wire-protocol=binary.
+    private final boolean binary = WireProtocol.isBinarySelected();
 
     private Socket centralServerSocket;
     private PrintWriter writer;
     private BufferedReader reader;
+    private FrameWriter frameWriter;
+    private FrameReader frameReader;
+    private volatile boolean registered;
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final ConcurrentHashMap<Long, CompletableFuture<String>> pendingRequests = new ConcurrentHashMap<>();
+    // Built by start(); until then there is no control link to batch on.
+    private volatile WhoisBatcher whoisBatcher;
+    private volatile LoadReporter loadReporter;
+    private final SignedTokenVerifier signedTokenVerifier = new SignedTokenVerifier();
+    // Only used when the control link is down; each lookup then blocks on its own socket.
+    private final ExecutorService fallbackExecutor = Executors.newVirtualThreadPerTaskExecutor();
 
     public CentralServerConnector(String centralServerIp, int centralServerPort, String hostIp, int hostStartPort, int hostEndPort, WorkspaceManager workspaceManager) {
+        this.primaryIp = centralServerIp;
+        this.primaryPort = centralServerPort;
         this.centralServerIp = centralServerIp;
         this.centralServerPort = centralServerPort;
+        String standby = System.getProperty(STANDBY_PROPERTY, "").trim();
+        int colon = standby.lastIndexOf(':');
+        this.standbyIp = colon > 0 ? standby.substring(0, colon) : null;
+        this.standbyPort = colon > 0 ? Integer.parseInt(standby.substring(colon + 1)) : 0;
         this.hostIp = hostIp;
         this.hostStartPort = hostStartPort;
         this.hostEndPort = hostEndPort;
         this.workspaceManager = workspaceManager;
     }
 
+    /** Starts keeping the host registered on a thread of its own; call it once the restored workspaces are running. */
+    public void start() {
+        whoisBatcher = new WhoisBatcher(this);
+        loadReporter = new LoadReporter(this, workspaceManager);
+        Thread connectorThread = new Thread(this);
+        connectorThread.setName("CentralServer-Connector-Thread");
+        connectorThread.start();
+    }
+
+    /**
+     * Keeps the host registered: whenever the link to the Central Server drops (or cannot be opened), it is
+     * re-established with exponential backoff, the create-host handshake is run again and the running workspaces
+     * are reported so the server can reconcile its records. Workspaces keep serving clients meanwhile.
+     * With a standby configured, a failed attempt moves on to the other server, and the backoff only grows once
+     * both have failed.
+     */
     @Override
     public void run() {
+        long backoffMillis = INITIAL_BACKOFF_MILLIS;
+        while (!Thread.currentThread().isInterrupted()) {
+            if (connectAndServe()) {
+                backoffMillis = INITIAL_BACKOFF_MILLIS;
+            } else if (standbyIp != null && switchCentralServer()) {
+                continue;
+            }
+            // Jitter keeps hosts that lost the server at the same moment from reconnecting in lockstep.
+            long delay = backoffMillis / 2 + ThreadLocalRandom.current().nextLong(backoffMillis / 2 + 1);
+            log.info("Reconnecting to Central Server in {} ms.", delay);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    /** Alternates between the configured server and its standby; true if the standby is next. */
+    private boolean switchCentralServer() {
+        boolean toStandby = centralServerIp.equals(primaryIp) && centralServerPort == primaryPort;
+        centralServerIp = toStandby ? standbyIp : primaryIp;
+        centralServerPort = toStandby ? standbyPort : primaryPort;
+        log.info("Trying Central Server {}:{} next.", centralServerIp, centralServerPort);
+        return toStandby;
+    }
+
+    /** Runs one connection until it is lost; true if the host got registered on it. */
+    private boolean connectAndServe() {
         try {
 
             centralServerSocket = new Socket(centralServerIp, centralServerPort);
-            writer = new PrintWriter(centralServerSocket.getOutputStream(), true);
-            reader = new BufferedReader(new InputStreamReader(centralServerSocket.getInputStream()));
-            log.info("Successfully connected to Central Server at {}:{}", centralServerIp, centralServerPort);
+            if (binary) {
+                frameWriter = new FrameWriter(new BufferedOutputStream(centralServerSocket.getOutputStream()));
+                frameReader = new FrameReader(new BufferedInputStream(centralServerSocket.getInputStream()));
+                frameWriter.writePreface();
+                frameReader.expectPreface();
+            } else {
+                writer = new PrintWriter(centralServerSocket.getOutputStream(), true);
+                reader = new BufferedReader(new InputStreamReader(centralServerSocket.getInputStream()));
+            }
+            log.info("Successfully connected to Central Server at {}:{} ({} protocol)", centralServerIp, centralServerPort, binary ? "binary" : "text");
 
             if (performHandshake()) {
                 log.info("Host successfully registered with the Central Server.");
-
+                registered = true;
+                syncWorkspaces();
+                loadReporter.start();
                 listenForCommands();
-            } else {
-                log.error("Handshake with Central Server failed. Shutting down.");
+                return true;
             }
+            log.error("Handshake with Central Server failed.");
+            return false;
 
         } catch (IOException e) {
-            log.error("Could not connect to or communicate with Central Server. Please check if the server is running.", e);
+            log.error("Could not connect to or communicate with Central Server: {}", e.getMessage());
+            return false;
         } finally {
+            registered = false;
+            loadReporter.stop();
             closeConnection();
+            IOException lost = new IOException("Connection to Central Server lost");
+            pendingRequests.values().forEach(request -> request.completeExceptionally(lost));
+        }
+    }
+
+    private void syncWorkspaces() {
+        // The server does not place workspaces here until it has this list, so no reply can race with a new one.
+        StringBuilder command = new StringBuilder("sync-workspaces");
+        int[] ports = workspaceManager.getRunningPorts();
+        for (int port : ports) {
+            command.append(' ').append(port);
         }
+        sendRequest(command.toString(), SYNC_TIMEOUT_SECONDS, TimeUnit.SECONDS).whenComplete((reply, error) -> {
+            if (error != null) {
+                log.error("Failed to report running workspaces to Central Server.", error);
+            } else if (reply.startsWith("OK")) {
+                log.info("Reported {} running workspace(s) to Central Server ({}).", ports.length, reply);
+            } else {
+                log.error("Central Server rejected the running workspace report: {}", reply);
+            }
+        });
     }
 
     private boolean performHandshake() throws IOException {
 
         String createHostCommand = String.format("create-host %s %d %d", hostIp, hostStartPort, hostEndPort);
         log.debug("Sending command to server: {}", createHostCommand);
-        writer.println(createHostCommand);
+        sendHandshakeStep(createHostCommand, Frame.of(WireProtocol.CREATE_HOST, 0, hostIp, String.valueOf(hostStartPort), String.valueOf(hostEndPort)));
 
-        String serverResponse = reader.readLine();
+        String serverResponse = readHandshakeReply();
         log.debug("Received from server: {}", serverResponse);
+        if (serverResponse == null) {
+            return false;
+        }
         String[] parts = serverResponse.split(" ");
         if (!parts[0].equals("OK") || parts.length < 2) {
             log.error("Server did not respond with a valid port. Response: {}", serverResponse);
@@ -76,7 +202,7 @@ public class CentralServerConnector implements Runnable {
 
 
         try (ServerSocket tempSocket = new ServerSocket(randomPort)) {
-            writer.println("check");
+            sendHandshakeStep("check", Frame.of(WireProtocol.CHECK, 0));
             log.debug("Sent 'check' to server. Waiting for connection on port {}", randomPort);
 
             try (Socket verificationConnection = tempSocket.accept()) {
@@ -85,55 +211,236 @@ public class CentralServerConnector implements Runnable {
                 log.info("Received verification code: {}", verificationCode);
 
 
-                writer.println(verificationCode);
+                if (verificationCode == null) {
+                    return false;
+                }
+                sendHandshakeStep(verificationCode, Frame.of(WireProtocol.VERIFY, 0, verificationCode));
                 log.debug("Sent verification code back to server.");
 
-                String finalResponse = reader.readLine();
+                String finalResponse = readHandshakeReply();
                 log.debug("Final response from server: {}", finalResponse);
-                return finalResponse.equals("OK");
+                if (finalResponse == null || !finalResponse.startsWith("OK")) {
+                    return false;
+                }
+                // "OK <key>": the key signs join tokens this host can verify without asking the server.
+                String[] finalParts = finalResponse.split(" ");
+                if (finalParts.length == 2) {
+                    signedTokenVerifier.setKey(finalParts[1]);
+                } else {
+                    signedTokenVerifier.clearKey();
+                }
+                return true;
             }
         }
     }
 
+    private void sendHandshakeStep(String line, Frame frame) throws IOException {
+        if (binary) {
+            frameWriter.write(frame);
+        } else {
+            writer.println(line);
+        }
+    }
+
+    /** The server's reply in its text form, or null if the connection closed. */
+    private String readHandshakeReply() throws IOException {
+        if (!binary) {
+            return reader.readLine();
+        }
+        Frame frame = frameReader.read();
+        return frame == null ? null : frame.replyText();
+    }
+
     private void listenForCommands() {
         log.info("Host is now listening for commands from the Central Server...");
+        if (binary) {
+            listenForFrames();
+            return;
+        }
         try {
-            String commandFromServer;
-            while ((commandFromServer = reader.readLine()) != null) {
-                log.info("Received command from Central Server: {}", commandFromServer);
-
-                String[] parts = commandFromServer.split(" ");
-                String commandType = parts[0];
-
-                if ("create-workspace".equalsIgnoreCase(commandType)) {
-                    if (parts.length == 3) {
-                        int port = Integer.parseInt(parts[1]);
-                        String creatorPhone = parts[2];
-
-                        boolean success = workspaceManager.createAndStartWorkspace(port, creatorPhone, this);
-
-                        if (success) {
-                            writer.println("OK");
-                            log.info("Successfully created workspace on port {} and sent OK to server.", port);
-                        } else {
-                            writer.println("ERROR Host failed to create workspace");
-                            log.error("Failed to create workspace on port {}. Sent ERROR to server.", port);
-                        }
-                    } else {
-                        log.warn("Received malformed create-workspace command: {}", commandFromServer);
-                    }
+            String messageFromServer;
+            while ((messageFromServer = reader.readLine()) != null) {
+                log.info("Received command from Central Server: {}", messageFromServer);
+
+                // Requests are tagged "req <id> <command>" and answered with "res <id> <reply>", in any order.
+                // Both sides send requests: the server asks for workspaces, the host asks about tokens.
+                String[] frame = messageFromServer.split(" ", 3);
+                long requestId = frame.length >= 2 ? parseRequestId(frame[1]) : -1;
+                if (frame.length == 3 && "req".equals(frame[0]) && requestId >= 0) {
+                    String[] parts = frame[2].split(" ");
+                    handleRequest(requestId, parts[0], Arrays.copyOfRange(parts, 1, parts.length));
+                } else if ("res".equals(frame[0]) && requestId >= 0) {
+                    handleResponse(requestId, frame.length == 3 ? frame[2] : "");
                 } else {
-                    log.warn("Received unknown command from server: {}", commandFromServer);
+                    log.warn("Received malformed message from server: {}", messageFromServer);
+                }
+            }
+        } catch (IOException e) {
+            log.error("Connection to Central Server lost.", e);
+        }
+    }
+
+    private void listenForFrames() {
+        try {
+            Frame frame;
+            while ((frame = frameReader.read()) != null) {
+                log.info("Received frame 0x{} from Central Server: {}", Integer.toHexString(frame.opcode()), frame.fields());
+                String[] args = frame.fields().toArray(String[]::new);
+                switch (frame.opcode()) {
+                    case WireProtocol.OK, WireProtocol.ERROR -> handleResponse(frame.requestId(), frame.replyText());
+                    case WireProtocol.HOST_CREATE_WORKSPACE -> handleRequest(frame.requestId(), "create-workspace", args);
+                    case WireProtocol.HOST_DELETE_WORKSPACE -> handleRequest(frame.requestId(), "delete-workspace", args);
+                    case WireProtocol.HOST_INBOX -> handleRequest(frame.requestId(), "inbox", args);
+                    default -> {
+                        log.warn("Received unknown frame 0x{} from server.", Integer.toHexString(frame.opcode()));
+                        reply(frame.requestId(), "ERROR Unknown command");
+                    }
                 }
             }
         } catch (IOException e) {
             log.error("Connection to Central Server lost.", e);
+        }
+    }
+
+    private static long parseRequestId(String requestId) {
+        try {
+            return Long.parseLong(requestId);
         } catch (NumberFormatException e) {
-            log.error("Received invalid port number in command from server.", e);
+            return -1;
+        }
+    }
+
+    private void handleRequest(long requestId, String commandType, String[] args) {
+        if ("create-workspace".equalsIgnoreCase(commandType)) {
+            if (args.length != 2) {
+                log.warn("Received malformed create-workspace command: {}", Arrays.toString(args));
+                reply(requestId, "ERROR Invalid create-workspace format");
+                return;
+            }
+            int port;
+            try {
+                port = Integer.parseInt(args[0]);
+            } catch (NumberFormatException e) {
+                log.error("Received invalid port number in command from server.", e);
+                reply(requestId, "ERROR Invalid port");
+                return;
+            }
+            String creatorPhone = args[1];
+
+            workspaceManager.createAndStartWorkspace(port, creatorPhone, this).thenAccept(success -> {
+                if (success) {
+                    reply(requestId, "OK");
+                    log.info("Successfully created workspace on port {} and sent OK to server.", port);
+                } else {
+                    reply(requestId, "ERROR Host failed to create workspace");
+                    log.error("Failed to create workspace on port {}. Sent ERROR to server.", port);
+                }
+            });
+        } else if ("delete-workspace".equalsIgnoreCase(commandType) && args.length == 1) {
+            int port;
+            try {
+                port = Integer.parseInt(args[0]);
+            } catch (NumberFormatException e) {
+                reply(requestId, "ERROR Invalid port");
+                return;
+            }
+            reply(requestId, workspaceManager.deleteWorkspace(port) ? "OK" : "ERROR No workspace on port " + port);
+        } else if ("inbox".equalsIgnoreCase(commandType) && args.length == 1) {
+            // inbox <phone>: OK [<port>:<unread messages>:<unread chats>]... for the workspaces the user joined here
+            StringBuilder inbox = new StringBuilder("OK");
+            workspaceManager.summarizeInbox(args[0]).forEach((port, summary) -> inbox.append(' ').append(port)
+                    .append(':').append(summary.unreadMessages()).append(':').append(summary.unreadChats()));
+            reply(requestId, inbox.toString());
+        } else {
+            log.warn("Received unknown command from server: {}", commandType);
+            reply(requestId, "ERROR Unknown command");
+        }
+    }
+
+    private void handleResponse(long requestId, String response) {
+        CompletableFuture<String> request = pendingRequests.remove(requestId);
+        if (request == null) {
+            log.warn("Received late or unknown reply from server for request {}", requestId);
+            return;
+        }
+        request.complete(response);
+    }
+
+    CompletableFuture<String> sendRequest(String command, long timeout, TimeUnit unit) {
+        CompletableFuture<String> reply = new CompletableFuture<>();
+        if (!registered) {
+            reply.completeExceptionally(new IOException("Not connected to Central Server"));
+            return reply;
         }
+        long requestId = nextRequestId.incrementAndGet();
+        pendingRequests.put(requestId, reply);
+        reply.orTimeout(timeout, unit).whenComplete((response, error) -> pendingRequests.remove(requestId));
+        if (!binary) {
+            writer.println("req " + requestId + " " + command);
+            return reply;
+        }
+        String[] parts = command.split(" ");
+        int opcode = switch (parts[0]) {
+            case "whois-batch" -> WireProtocol.WHOIS_BATCH;
+            case "sync-workspaces" -> WireProtocol.SYNC_WORKSPACES;
+            default -> throw new IllegalArgumentException("No opcode for host request " + parts[0]);
+        };
+        if (!sendFrame(Frame.of(opcode, requestId, Arrays.copyOfRange(parts, 1, parts.length)))) {
+            reply.completeExceptionally(new IOException("Connection to Central Server lost"));
+        }
+        return reply;
+    }
+
+    /** One-way load report on the control link; dropped while not registered. */
+    void reportLoad(int workspaces, int clients, long messages, long heapUsed, long heapMax) {
+        if (!registered) {
+            return;
+        }
+        if (binary) {
+            sendFrame(Frame.of(WireProtocol.LOAD_REPORT, 0, String.valueOf(workspaces), String.valueOf(clients),
+                    String.valueOf(messages), String.valueOf(heapUsed), String.valueOf(heapMax)));
+        } else {
+            writer.println(String.format("evt load workspaces=%d clients=%d messages=%d heap=%d/%d",
+                    workspaces, clients, messages, heapUsed, heapMax));
+        }
+    }
+
+    private void reply(long requestId, String response) {
+        if (binary) {
+            sendFrame(Frame.reply(requestId, response));
+        } else {
+            // PrintWriter serializes concurrent println calls, so replies from different workspaces don't interleave.
+            writer.println("res " + requestId + " " + response);
+        }
+    }
+
+    private boolean sendFrame(Frame frame) {
+        try {
+            frameWriter.write(frame);
+            return true;
+        } catch (IOException e) {
+            log.warn("Failed to send frame to Central Server: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Resolves a workspace join token to the user's phone number, or null if it is invalid.
+     * Signed tokens are checked locally; other lookups travel in batches over the registered control link.
+     */
+    public CompletableFuture<String> verifyToken(String token, int workspacePort) {
+        if (SignedTokenVerifier.isSignedToken(token)) {
+            return CompletableFuture.completedFuture(signedTokenVerifier.verify(token, workspacePort));
+        }
+        WhoisBatcher batcher = whoisBatcher;
+        return batcher != null ? batcher.lookup(token) : verifyTokenOverNewConnection(token);
+    }
+
+    CompletableFuture<String> verifyTokenOverNewConnection(String token) {
+        return CompletableFuture.supplyAsync(() -> verifyTokenAndGetUserPhone(token), fallbackExecutor);
     }
 
-    public String verifyTokenAndGetUserPhone(String token) {
+    private String verifyTokenAndGetUserPhone(String token) {
         log.debug("Opening a new temporary connection to verify token: {}", token);
 
         try (Socket tempSocket = new Socket(centralServerIp, centralServerPort)) {
@@ -0,0 +1,54 @@
+package ir.sobhan.internship.payamresan.host.connector;
+
+import ir.sobhan.internship.payamresan.host.workspace.WorkspaceManager;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends this host's load to the central server every few seconds as {@code evt load ...} (or a load frame),
+ * which the server uses to decide where new workspaces go.
+ */
+@Slf4j
+class LoadReporter {
+    private static final long REPORT_INTERVAL_SECONDS = 5;
+
+    private final CentralServerConnector connector;
+    private final WorkspaceManager workspaceManager;
+    private ScheduledExecutorService timer;
+
+    LoadReporter(CentralServerConnector connector, WorkspaceManager workspaceManager) {
+        this.connector = connector;
+        this.workspaceManager = workspaceManager;
+    }
+
+    synchronized void start() {
+        stop();
+        timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "Load-Reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleAtFixedRate(this::report, 0, REPORT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    synchronized void stop() {
+        if (timer != null) {
+            timer.shutdownNow();
+            timer = null;
+        }
+    }
+
+    private void report() {
+        try {
+            Runtime runtime = Runtime.getRuntime();
+            long heapUsed = runtime.totalMemory() - runtime.freeMemory();
+            connector.reportLoad(workspaceManager.getWorkspaceCount(), workspaceManager.getConnectedClientCount(),
+                    workspaceManager.getMessageCount(), heapUsed, runtime.maxMemory());
+        } catch (RuntimeException e) {
+            log.warn("Failed to send load report.", e);
+        }
+    }
+}
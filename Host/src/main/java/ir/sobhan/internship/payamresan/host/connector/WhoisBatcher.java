@@ -0,0 +1,110 @@
+package ir.sobhan.internship.payamresan.host.connector;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Coalesces token lookups into {@code whois-batch} requests on the host control link.
+ * One batch is in flight at a time; tokens arriving meanwhile ride in the next one, so batches
+ * grow with load while a lone lookup is still sent immediately.
+ */
+@Slf4j
+class WhoisBatcher {
+    private static final int MAX_BATCH_SIZE = 256;
+    private static final long BATCH_TIMEOUT_SECONDS = 5;
+
+    private record PendingLookup(String token, CompletableFuture<String> result) {
+    }
+
+    private final CentralServerConnector connector;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Queue<PendingLookup> waiting = new ArrayDeque<>();
+    private boolean batchInFlight;
+
+    WhoisBatcher(CentralServerConnector connector) {
+        this.connector = connector;
+    }
+
+    /** Completes with the token owner's phone number, or null if the central server rejected the token. */
+    CompletableFuture<String> lookup(String token) {
+        PendingLookup lookup = new PendingLookup(token, new CompletableFuture<>());
+        List<PendingLookup> batch;
+        lock.lock();
+        try {
+            waiting.add(lookup);
+            if (batchInFlight) {
+                return lookup.result();
+            }
+            batchInFlight = true;
+            batch = drainBatch();
+        } finally {
+            lock.unlock();
+        }
+        send(batch);
+        return lookup.result();
+    }
+
+    private List<PendingLookup> drainBatch() {
+        List<PendingLookup> batch = new ArrayList<>(Math.min(waiting.size(), MAX_BATCH_SIZE));
+        while (batch.size() < MAX_BATCH_SIZE && !waiting.isEmpty()) {
+            batch.add(waiting.poll());
+        }
+        return batch;
+    }
+
+    private void send(List<PendingLookup> batch) {
+        StringBuilder command = new StringBuilder("whois-batch");
+        for (PendingLookup lookup : batch) {
+            command.append(' ').append(lookup.token());
+        }
+        log.debug("Verifying {} token(s) over the control link.", batch.size());
+        connector.sendRequest(command.toString(), BATCH_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .whenComplete((response, error) -> {
+                    if (error != null) {
+                        // The server may have redeemed these already; it answers a token again for a while after.
+                        log.warn("Batched token verification failed ({}); falling back to one connection per token.", error.toString());
+                        batch.forEach(lookup -> connector.verifyTokenOverNewConnection(lookup.token())
+                                .whenComplete((phone, e) -> lookup.result().complete(phone)));
+                    } else {
+                        completeBatch(batch, response);
+                    }
+                    sendNextBatch();
+                });
+    }
+
+    private void completeBatch(List<PendingLookup> batch, String response) {
+        // Reply format: "OK <phone|-> <phone|-> ..." in the order the tokens were sent.
+        String[] parts = response.split(" ");
+        if (!"OK".equals(parts[0]) || parts.length != batch.size() + 1) {
+            log.error("Malformed whois-batch reply for {} token(s): {}", batch.size(), response);
+            batch.forEach(lookup -> lookup.result().complete(null));
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            String phone = parts[i + 1];
+            batch.get(i).result().complete("-".equals(phone) ? null : phone);
+        }
+    }
+
+    private void sendNextBatch() {
+        List<PendingLookup> batch;
+        lock.lock();
+        try {
+            if (waiting.isEmpty()) {
+                batchInFlight = false;
+                return;
+            }
+            batch = drainBatch();
+        } finally {
+            lock.unlock();
+        }
+        send(batch);
+    }
+}
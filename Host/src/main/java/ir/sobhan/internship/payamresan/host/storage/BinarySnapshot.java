@@ -0,0 +1,147 @@
+package ir.sobhan.internship.payamresan.host.storage;
+
+import ir.sobhan.internship.payamresan.host.workspace.model.HostPersistentState;
+import ir.sobhan.internship.payamresan.host.workspace.model.Message;
+import ir.sobhan.internship.payamresan.host.workspace.model.WorkspaceState;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Binary layout of the host snapshot:
+ * <pre>
+ * "PYRH" version
+ * workspaces: {1 port creatorPhone*
+ *     conversations:    {1 conversationId* messageCount {seqDelta from* type* body}...}... 0
+ *     sequenceCounters: {1 conversationId* value}... 0
+ *     lastRead:         {1 key* value}... 0
+ *     members:          {1 phone* username*}... 0      (version 2 on)
+ * }... 0
+ * </pre>
+ * Numbers are varints, {@code seqDelta} is zigzag-encoded against the previous message's seq, and fields marked *
+ * are dictionary strings, so usernames and conversation ids are stored once per file.
+ */
+final class BinarySnapshot {
+    static final byte[] MAGIC = "PYRH".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 2;
+
+    private BinarySnapshot() {
+    }
+
+    static void write(HostPersistentState state, OutputStream stream) throws IOException {
+        SnapshotOutput out = new SnapshotOutput(stream);
+        out.writeHeader(MAGIC, VERSION);
+        Map<Integer, WorkspaceState> workspaces = state.getRunningWorkspaces();
+        if (workspaces != null) {
+            for (WorkspaceState workspace : workspaces.values()) {
+                out.writeBoolean(true);
+                writeWorkspace(out, workspace);
+            }
+        }
+        out.writeBoolean(false);
+        out.flush();
+    }
+
+    private static void writeWorkspace(SnapshotOutput out, WorkspaceState workspace) throws IOException {
+        out.writeVarInt(workspace.getPort());
+        out.writeDictionaryString(workspace.getCreatorPhone());
+        for (Map.Entry<String, List<Message>> conversation : workspace.getConversations().entrySet()) {
+            List<Message> live = conversation.getValue();
+            List<Message> messages;
+            synchronized (live) { // copy the references only, so senders are not held up by the disk
+                messages = new ArrayList<>(live);
+            }
+            out.writeBoolean(true);
+            out.writeDictionaryString(conversation.getKey());
+            out.writeVarInt(messages.size());
+            int previousSeq = 0;
+            for (Message message : messages) {
+                out.writeSignedVarInt(message.getSeq() - previousSeq);
+                previousSeq = message.getSeq();
+                out.writeDictionaryString(message.getFromUsername());
+                out.writeDictionaryString(message.getType());
+                out.writeString(message.getBody());
+            }
+        }
+        out.writeBoolean(false);
+        for (Map.Entry<String, AtomicInteger> counter : workspace.getSequenceCounters().entrySet()) {
+            out.writeBoolean(true);
+            out.writeDictionaryString(counter.getKey());
+            out.writeVarInt(counter.getValue().get());
+        }
+        out.writeBoolean(false);
+        for (Map.Entry<String, Integer> lastRead : workspace.getLastReadSequence().entrySet()) {
+            out.writeBoolean(true);
+            out.writeDictionaryString(lastRead.getKey());
+            out.writeVarInt(lastRead.getValue());
+        }
+        out.writeBoolean(false);
+        if (workspace.getUsernamesByPhone() != null) {
+            for (Map.Entry<String, String> member : workspace.getUsernamesByPhone().entrySet()) {
+                out.writeBoolean(true);
+                out.writeDictionaryString(member.getKey());
+                out.writeDictionaryString(member.getValue());
+            }
+        }
+        out.writeBoolean(false);
+    }
+
+    static HostPersistentState read(InputStream stream) throws IOException {
+        SnapshotInput in = new SnapshotInput(stream);
+        int version = in.readHeader(MAGIC);
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        ConcurrentHashMap<Integer, WorkspaceState> workspaces = new ConcurrentHashMap<>();
+        while (in.readBoolean()) {
+            WorkspaceState workspace = readWorkspace(in, version);
+            workspaces.put(workspace.getPort(), workspace);
+        }
+        HostPersistentState state = new HostPersistentState();
+        state.setRunningWorkspaces(workspaces);
+        return state;
+    }
+
+    private static WorkspaceState readWorkspace(SnapshotInput in, int version) throws IOException {
+        WorkspaceState workspace = new WorkspaceState();
+        workspace.setPort(in.readVarInt());
+        workspace.setCreatorPhone(in.readDictionaryString());
+        ConcurrentHashMap<String, List<Message>> conversations = new ConcurrentHashMap<>();
+        while (in.readBoolean()) {
+            String conversationId = in.readDictionaryString();
+            int count = in.readVarInt();
+            List<Message> messages = new ArrayList<>(count);
+            int seq = 0;
+            for (int i = 0; i < count; i++) {
+                seq += in.readSignedVarInt();
+                messages.add(new Message(seq, in.readDictionaryString(), in.readDictionaryString(), in.readString()));
+            }
+            conversations.put(conversationId, Collections.synchronizedList(messages));
+        }
+        workspace.setConversations(conversations);
+        ConcurrentHashMap<String, AtomicInteger> sequenceCounters = new ConcurrentHashMap<>();
+        while (in.readBoolean()) {
+            sequenceCounters.put(in.readDictionaryString(), new AtomicInteger(in.readVarInt()));
+        }
+        workspace.setSequenceCounters(sequenceCounters);
+        ConcurrentHashMap<String, Integer> lastReadSequence = new ConcurrentHashMap<>();
+        while (in.readBoolean()) {
+            lastReadSequence.put(in.readDictionaryString(), in.readVarInt());
+        }
+        workspace.setLastReadSequence(lastReadSequence);
+        ConcurrentHashMap<String, String> usernamesByPhone = new ConcurrentHashMap<>();
+        while (version >= 2 && in.readBoolean()) {
+            usernamesByPhone.put(in.readDictionaryString(), in.readDictionaryString());
+        }
+        workspace.setUsernamesByPhone(usernamesByPhone);
+        return workspace;
+    }
+}
@@ -0,0 +1,35 @@
+package ir.sobhan.internship.payamresan.host.storage;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import ir.sobhan.internship.payamresan.host.workspace.model.HostPersistentState;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/** The original {@code host_data_<port>.json} layout. */
+final class JsonSnapshot {
+
+    private JsonSnapshot() {
+    }
+
+    static void write(HostPersistentState state, OutputStream out) throws IOException {
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        gson.toJson(state, writer);
+        writer.flush();
+    }
+
+    static HostPersistentState read(InputStream in) throws IOException {
+        HostPersistentState state = new Gson().fromJson(new InputStreamReader(in, StandardCharsets.UTF_8), HostPersistentState.class);
+        if (state == null) {
+            throw new IOException("Data file is empty");
+        }
+        return state;
+    }
+}
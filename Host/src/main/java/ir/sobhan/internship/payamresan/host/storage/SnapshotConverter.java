@@ -0,0 +1,43 @@
+package ir.sobhan.internship.payamresan.host.storage;
+
+import ir.sobhan.internship.payamresan.host.workspace.model.HostPersistentState;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Converts a host snapshot between formats, e.g. {@code SnapshotConverter host_data_9000.json host_data_9000.bin}.
+ * The input format is detected from its contents, the output format follows the output file's extension.
+ */
+@Slf4j
+public class SnapshotConverter {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            log.error("Usage: java SnapshotConverter <input snapshot> <output snapshot (.json or .bin)>");
+            return;
+        }
+        Path input = Path.of(args[0]);
+        Path output = Path.of(args[1]);
+        SnapshotFormat from = SnapshotFormat.detect(input);
+        SnapshotFormat to = SnapshotFormat.forFile(args[1]);
+
+        long started = System.nanoTime();
+        HostPersistentState state;
+        try (InputStream in = Files.newInputStream(input)) {
+            state = from.read(in);
+        }
+        long read = System.nanoTime();
+        try (OutputStream out = Files.newOutputStream(output)) {
+            to.write(state, out);
+        }
+        long written = System.nanoTime();
+        log.info("Converted {} ({}, {} bytes, read in {} ms) to {} ({}, {} bytes, written in {} ms).",
+                input, from, Files.size(input), (read - started) / 1_000_000,
+                output, to, Files.size(output), (written - read) / 1_000_000);
+    }
+}
@@ -0,0 +1,76 @@
+package ir.sobhan.internship.payamresan.host.storage;
+
+import ir.sobhan.internship.payamresan.host.workspace.model.HostPersistentState;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * On-disk format of the host snapshot. JSON stays the default; the binary format is smaller and faster to load.
+ * Reading detects the format from the file contents, so either file can be loaded whatever is configured.
+ */
+public enum SnapshotFormat {
+    JSON(".json"),
+    BINARY(".bin");
+
+    public static final String PROPERTY = "payamresan.snapshot-format";
+
+    private final String extension;
+
+    SnapshotFormat(String extension) {
+        this.extension = extension;
+    }
+
+    public static SnapshotFormat fromSystemProperties() {
+        String value = System.getProperty(PROPERTY, "json");
+        try {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown " + PROPERTY + " '" + value + "', expected json or binary", e);
+        }
+    }
+
+    public static SnapshotFormat forFile(String filePath) {
+        return filePath.endsWith(BINARY.extension) ? BINARY : JSON;
+    }
+
+    public String fileName(String baseName) {
+        return baseName + extension;
+    }
+
+    /** The snapshot to load at startup: this format's file, or the other format's when only that one exists yet. */
+    public String fileToLoad(String baseName) {
+        String own = fileName(baseName);
+        if (Files.exists(Path.of(own))) {
+            return own;
+        }
+        String other = (this == JSON ? BINARY : JSON).fileName(baseName);
+        return Files.exists(Path.of(other)) ? other : own;
+    }
+
+    public static SnapshotFormat detect(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] head = in.readNBytes(BinarySnapshot.MAGIC.length);
+            return Arrays.equals(head, BinarySnapshot.MAGIC) ? BINARY : JSON;
+        }
+    }
+
+    public void write(HostPersistentState state, OutputStream out) throws IOException {
+        switch (this) {
+            case JSON -> JsonSnapshot.write(state, out);
+            case BINARY -> BinarySnapshot.write(state, out);
+        }
+    }
+
+    public HostPersistentState read(InputStream in) throws IOException {
+        return switch (this) {
+            case JSON -> JsonSnapshot.read(in);
+            case BINARY -> BinarySnapshot.read(in);
+        };
+    }
+}
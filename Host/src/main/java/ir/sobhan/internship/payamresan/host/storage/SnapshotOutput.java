@@ -0,0 +1,88 @@
+package ir.sobhan.internship.payamresan.host.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes the primitives of the binary snapshot format: unsigned LEB128 varints, length-prefixed UTF-8 strings,
+ * and dictionary strings that are written in full the first time and as a back reference after that.
+ */
+class SnapshotOutput implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final DataOutputStream out;
+    private final Map<String, Integer> dictionary = new HashMap<>();
+
+    SnapshotOutput(OutputStream out) {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+    }
+
+    void writeHeader(byte[] magic, int version) throws IOException {
+        out.write(magic);
+        writeVarInt(version);
+    }
+
+    void writeBoolean(boolean value) throws IOException {
+        out.writeByte(value ? 1 : 0);
+    }
+
+    void writeVarInt(int value) throws IOException {
+        writeVarLong(value & 0xFFFFFFFFL);
+    }
+
+    /** Zigzag-encoded, so small negative numbers stay short too. */
+    void writeSignedVarInt(int value) throws IOException {
+        writeVarInt((value << 1) ^ (value >> 31));
+    }
+
+    void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /** Length plus one, so that zero can stand for null. */
+    void writeString(String value) throws IOException {
+        if (value == null) {
+            writeVarInt(0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(bytes.length + 1);
+        out.write(bytes);
+    }
+
+    /** Zero is null, an odd value {@code 2n+1} starts a new entry of n bytes, an even value {@code 2(id+1)} refers back. */
+    void writeDictionaryString(String value) throws IOException {
+        if (value == null) {
+            writeVarInt(0);
+            return;
+        }
+        Integer id = dictionary.get(value);
+        if (id != null) {
+            writeVarInt((id + 1) << 1);
+            return;
+        }
+        dictionary.put(value, dictionary.size());
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(bytes.length << 1 | 1);
+        out.write(bytes);
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,33 @@
+package ir.sobhan.internship.payamresan.host.wire;
+
+import java.util.List;
+
+/** One message of the binary wire protocol; see {@link WireProtocol} for the layout. */
+public record Frame(int opcode, long requestId, List<String> fields) {
+
+    public static Frame of(int opcode, long requestId, String... fields) {
+        return new Frame(opcode, requestId, List.of(fields));
+    }
+
+    /** Turns a text reply such as {@code OK 5} or {@code ERROR No workspace on port 9100} into a reply frame. */
+    public static Frame reply(long requestId, String reply) {
+        if (reply.equals("OK")) {
+            return new Frame(WireProtocol.OK, requestId, List.of());
+        }
+        if (reply.startsWith("OK ")) {
+            return new Frame(WireProtocol.OK, requestId, List.of(reply.substring(3).split(" ")));
+        }
+        String message = reply.startsWith("ERROR ") ? reply.substring(6) : reply;
+        return new Frame(WireProtocol.ERROR, requestId, List.of(message));
+    }
+
+    public String field(int index) {
+        return fields.get(index);
+    }
+
+    /** The reply in its text form, for code that was written against the text protocol. */
+    public String replyText() {
+        String prefix = opcode == WireProtocol.OK ? "OK" : "ERROR";
+        return fields.isEmpty() ? prefix : prefix + " " + String.join(" ", fields);
+    }
+}
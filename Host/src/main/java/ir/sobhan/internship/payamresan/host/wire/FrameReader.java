@@ -0,0 +1,91 @@
+package ir.sobhan.internship.payamresan.host.wire;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Reads {@link Frame}s from a blocking stream, which should be buffered. Not thread-safe. */
+public class FrameReader {
+    private final InputStream in;
+    private byte[] buffer = new byte[256];
+
+    public FrameReader(InputStream in) {
+        this.in = in;
+    }
+
+    /** Waits for the preface the other side echoes after accepting the binary protocol. */
+    public void expectPreface() throws IOException {
+        for (byte expected : WireProtocol.PREFACE) {
+            int b = in.read();
+            if (b != (expected & 0xFF)) {
+                throw new IOException(b < 0 ? "Connection closed during protocol negotiation" : "Peer does not speak the binary protocol");
+            }
+        }
+    }
+
+    /** Returns null if the stream ends cleanly between two frames. */
+    public Frame read() throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        int length = (int) readVarInt(first);
+        if (length < 2 || length > WireProtocol.MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        if (buffer.length < length) {
+            buffer = new byte[Math.max(length, buffer.length * 2)];
+        }
+        int read = in.readNBytes(buffer, 0, length);
+        if (read < length) {
+            throw new EOFException("Connection closed inside a frame");
+        }
+        int[] position = {1};
+        int opcode = buffer[0] & 0xFF;
+        long requestId = varIntAt(position, length);
+        List<String> fields = new ArrayList<>(4);
+        while (position[0] < length) {
+            int fieldLength = (int) varIntAt(position, length);
+            if (fieldLength < 0 || position[0] + fieldLength > length) {
+                throw new IOException("Field runs past the end of its frame");
+            }
+            fields.add(new String(buffer, position[0], fieldLength, StandardCharsets.UTF_8));
+            position[0] += fieldLength;
+        }
+        return new Frame(opcode, requestId, fields);
+    }
+
+    private long readVarInt(int first) throws IOException {
+        long value = first & 0x7F;
+        int b = first;
+        for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+            if (shift > 28) {
+                throw new IOException("Varint is too long");
+            }
+            b = in.read();
+            if (b < 0) {
+                throw new EOFException("Connection closed inside a frame");
+            }
+            value |= (long) (b & 0x7F) << shift;
+        }
+        return value;
+    }
+
+    private long varIntAt(int[] position, int limit) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (position[0] >= limit) {
+                throw new IOException("Malformed frame");
+            }
+            byte b = buffer[position[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint is too long");
+    }
+}
@@ -0,0 +1,51 @@
+package ir.sobhan.internship.payamresan.host.wire;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/** Writes {@link Frame}s to a blocking stream; each frame goes out in one write, so threads may share a writer. */
+public class FrameWriter {
+    private final OutputStream out;
+
+    public FrameWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    public synchronized void writePreface() throws IOException {
+        out.write(WireProtocol.PREFACE);
+        out.flush();
+    }
+
+    public void write(Frame frame) throws IOException {
+        byte[] encoded = encode(frame);
+        synchronized (this) {
+            out.write(encoded);
+            out.flush();
+        }
+    }
+
+    static byte[] encode(Frame frame) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(64);
+        body.write(frame.opcode());
+        writeVarInt(body, frame.requestId());
+        for (String field : frame.fields()) {
+            byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(body, bytes.length);
+            body.write(bytes, 0, bytes.length);
+        }
+        ByteArrayOutputStream framed = new ByteArrayOutputStream(body.size() + 3);
+        writeVarInt(framed, body.size());
+        framed.writeBytes(body.toByteArray());
+        return framed.toByteArray();
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
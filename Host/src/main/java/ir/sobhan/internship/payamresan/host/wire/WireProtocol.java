@@ -0,0 +1,52 @@
+package ir.sobhan.internship.payamresan.host.wire;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Constants of the binary wire protocol, shared with the Central Server and clients. A peer selects it by sending
+ * {@link #PREFACE} as the very first bytes of a connection and waits for the same bytes back; any other first byte
+ * keeps the connection on the text protocol.
+ * <p>
+ * A frame is {@code <length><opcode><request id><field>*}: the length (of everything after it), the request id and
+ * every field length are unsigned LEB128 varints, the opcode is one byte and each field is UTF-8.
+ */
+@Slf4j
+public final class WireProtocol {
+    public static final String PROPERTY = "payamresan.wire-protocol";
+    public static final byte[] PREFACE = {0, 'P', 'B', 1};
+    public static final int MAX_FRAME_LENGTH = 64 * 1024;
+
+    public static final int OK = 0x01;
+    public static final int ERROR = 0x02;
+
+    // Host registration and the control link to the Central Server.
+    public static final int CREATE_HOST = 0x20;
+    public static final int CHECK = 0x21;
+    public static final int VERIFY = 0x22;
+    public static final int HOST_CREATE_WORKSPACE = 0x23;
+    public static final int HOST_DELETE_WORKSPACE = 0x24;
+    public static final int WHOIS_BATCH = 0x25;
+    public static final int SYNC_WORKSPACES = 0x26;
+    public static final int LOAD_REPORT = 0x27;
+    public static final int HOST_INBOX = 0x28;
+
+    // Workspace connections.
+    public static final int JOIN = 0x30;            // token, username
+    public static final int SEND_MESSAGE = 0x31;    // recipient, type, body -> OK seq
+    public static final int RECEIVE_MESSAGE = 0x32; // pushed: from, seq, type, body
+    public static final int GET_CHATS = 0x33;       // -> OK (name, unread, total)*
+    public static final int GET_MESSAGES = 0x34;    // other user -> OK (seq, from, type, body)*
+    public static final int DISCONNECT = 0x35;
+
+    private WireProtocol() {
+    }
+
+    /** Whether {@code -Dpayamresan.wire-protocol=binary} asks for binary frames on connections this side opens. */
+    public static boolean isBinarySelected() {
+        String value = System.getProperty(PROPERTY, "text").trim();
+        if (!value.equalsIgnoreCase("text") && !value.equalsIgnoreCase("binary")) {
+            log.warn("Unknown wire protocol '{}', falling back to text.", value);
+        }
+        return value.equalsIgnoreCase("binary");
+    }
+}
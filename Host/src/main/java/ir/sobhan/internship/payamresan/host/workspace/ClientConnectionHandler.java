@@ -1,15 +1,33 @@
 package ir.sobhan.internship.payamresan.host.workspace;
 
 import ir.sobhan.internship.payamresan.host.connector.CentralServerConnector;
+import ir.sobhan.internship.payamresan.host.wire.Frame;
+import ir.sobhan.internship.payamresan.host.wire.FrameReader;
+import ir.sobhan.internship.payamresan.host.wire.FrameWriter;
+import ir.sobhan.internship.payamresan.host.wire.WireProtocol;
+import ir.sobhan.internship.payamresan.host.workspace.model.ChatSummary;
 import ir.sobhan.internship.payamresan.host.workspace.model.ConnectedClient;
+import ir.sobhan.internship.payamresan.host.workspace.model.Message;
 import lombok.extern.slf4j.Slf4j;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
 
+/**
+ * Serves one client of a workspace. A client that opens with {@link WireProtocol#PREFACE} gets binary frames;
+ * any other first byte keeps the line protocol the CLI speaks.
+ */
 @Slf4j
 public class ClientConnectionHandler implements Runnable {
 
@@ -19,6 +37,8 @@ public class ClientConnectionHandler implements Runnable {
     private ConnectedClient client;
     private PrintWriter writer;
     private BufferedReader reader;
+    private FrameWriter frameWriter;
+    private FrameReader frameReader;
 
     public ClientConnectionHandler(Socket socket, WorkspaceHandler workspaceHandler, CentralServerConnector serverConnector) {
         this.socket = socket;
@@ -29,8 +49,24 @@ public class ClientConnectionHandler implements Runnable {
     @Override
     public void run() {
         try {
+            BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+            in.mark(1);
+            int first = in.read();
+            in.reset();
+
+            if (first == WireProtocol.PREFACE[0]) {
+                frameReader = new FrameReader(in);
+                frameWriter = new FrameWriter(new BufferedOutputStream(socket.getOutputStream()));
+                frameReader.expectPreface();
+                frameWriter.writePreface();
+                if (handleBinaryJoin()) {
+                    listenForClientFrames();
+                }
+                return;
+            }
+
             writer = new PrintWriter(socket.getOutputStream(), true);
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            reader = new BufferedReader(new InputStreamReader(in));
 
             if (!handleClientConnection()) {
 
@@ -51,10 +87,20 @@ public class ClientConnectionHandler implements Runnable {
             } catch (IOException e) {
                 log.error("Error closing client socket.", e);
             }
+            workspaceHandler.clientSocketClosed(socket);
             log.info("Cleaned up resources for client '{}'.", (client != null ? client.getUsername() : "UNKNOWN"));
         }
     }
 
+    private String verifyToken(String token) {
+        try {
+            return serverConnector.verifyToken(token, workspaceHandler.getPort()).join();
+        } catch (CompletionException e) {
+            log.error("Token verification failed.", e);
+            return null;
+        }
+    }
+
     private boolean handleClientConnection() throws IOException {
 
         String connectCommand = reader.readLine();
@@ -64,7 +110,7 @@ public class ClientConnectionHandler implements Runnable {
         }
 
         String token = connectCommand.split(" ")[1];
-        String phoneNumber = serverConnector.verifyTokenAndGetUserPhone(token);
+        String phoneNumber = verifyToken(token);
 
         if (phoneNumber == null) {
             writer.println("ERROR Invalid or expired token.");
@@ -79,7 +125,8 @@ public class ClientConnectionHandler implements Runnable {
             return false;
         }
 
-        this.client = new ConnectedClient(phoneNumber, socket, writer);
+        this.client = new ConnectedClient(phoneNumber, socket,
+                message -> writer.println(String.format("receive-message %s %s", message.getFromUsername(), message.toJsonString())));
         this.client.setUsername(username);
 
         if (!workspaceHandler.registerAuthenticatedClient(this.client)) {
@@ -107,15 +154,32 @@ public class ClientConnectionHandler implements Runnable {
                 case "send-message":
                     if (parts.length == 3) {
                         String recipient = parts[1];
-                        String jsonMessage = parts[2];
-                        workspaceHandler.handleSendMessage(this.client, recipient, jsonMessage);
+                        String type, body;
+                        try {
+                            JSONObject json = new JSONObject(parts[2]);
+                            type = json.getString("type");
+                            body = json.getString("body");
+                        } catch (JSONException e) {
+                            log.error("Error parsing message JSON from user {}", client.getUsername(), e);
+                            writer.println("ERROR: Invalid JSON format.");
+                            break;
+                        }
+                        writer.println("OK " + workspaceHandler.handleSendMessage(this.client, recipient, type, body));
                     } else {
                         writer.println("ERROR: Invalid send-message format.");
                     }
                     break;
                 case "get-chats":
                     if (parts.length == 1) {
-                        workspaceHandler.handleGetChats(this.client);
+                        JSONArray chatsArray = new JSONArray();
+                        for (ChatSummary chat : workspaceHandler.handleGetChats(this.client)) {
+                            JSONObject chatInfo = new JSONObject();
+                            chatInfo.put("name", chat.name());
+                            chatInfo.put("unread_count", chat.unreadCount());
+                            chatInfo.put("total_messages", chat.totalMessages());
+                            chatsArray.put(chatInfo);
+                        }
+                        writer.println("OK " + chatsArray);
                     } else {
                         writer.println("ERROR: Invalid get-chats format. Use: get-chats");
                     }
@@ -124,7 +188,11 @@ public class ClientConnectionHandler implements Runnable {
                 case "get-messages":
                     if (parts.length == 2) {
                         String otherUsername = parts[1];
-                        workspaceHandler.handleGetMessages(this.client, otherUsername);
+                        JSONArray messagesArray = new JSONArray();
+                        for (Message message : workspaceHandler.handleGetMessages(this.client, otherUsername)) {
+                            messagesArray.put(new JSONObject(message.toJsonString()));
+                        }
+                        writer.println("OK " + messagesArray);
                     } else {
                         writer.println("ERROR: Invalid get-messages format. Use: get-messages <username>");
                     }
@@ -134,5 +202,87 @@ public class ClientConnectionHandler implements Runnable {
             }
         }
     }
-}
 
+    private boolean handleBinaryJoin() throws IOException {
+        Frame join = frameReader.read();
+        if (join == null) {
+            return false;
+        }
+        if (join.opcode() != WireProtocol.JOIN || join.fields().size() != 2) {
+            frameWriter.write(Frame.reply(join.requestId(), "ERROR Expected a join frame with a token and a username."));
+            return false;
+        }
+        String phoneNumber = verifyToken(join.field(0));
+        if (phoneNumber == null) {
+            frameWriter.write(Frame.reply(join.requestId(), "ERROR Invalid or expired token."));
+            return false;
+        }
+        String username = join.field(1).trim();
+        if (username.isEmpty() || username.contains(" ")) {
+            frameWriter.write(Frame.reply(join.requestId(), "ERROR Invalid username."));
+            return false;
+        }
+
+        this.client = new ConnectedClient(phoneNumber, socket, message -> {
+            try {
+                frameWriter.write(Frame.of(WireProtocol.RECEIVE_MESSAGE, 0, message.getFromUsername(),
+                        String.valueOf(message.getSeq()), message.getType(), message.getBody()));
+            } catch (IOException e) {
+                log.warn("Failed to deliver message to '{}': {}", username, e.getMessage());
+            }
+        });
+        this.client.setUsername(username);
+
+        if (!workspaceHandler.registerAuthenticatedClient(this.client)) {
+            frameWriter.write(Frame.reply(join.requestId(), "ERROR Username is already taken."));
+            return false;
+        }
+        frameWriter.write(Frame.reply(join.requestId(), "OK"));
+        return true;
+    }
+
+    private void listenForClientFrames() throws IOException {
+        Frame frame;
+        while ((frame = frameReader.read()) != null) {
+            long requestId = frame.requestId();
+            switch (frame.opcode()) {
+                case WireProtocol.DISCONNECT -> {
+                    log.info("User '{}' requested to disconnect.", client.getUsername());
+                    return;
+                }
+                case WireProtocol.SEND_MESSAGE -> {
+                    if (frame.fields().size() != 3) {
+                        frameWriter.write(Frame.reply(requestId, "ERROR Invalid send-message frame."));
+                        break;
+                    }
+                    int seq = workspaceHandler.handleSendMessage(client, frame.field(0), frame.field(1), frame.field(2));
+                    frameWriter.write(Frame.of(WireProtocol.OK, requestId, String.valueOf(seq)));
+                }
+                case WireProtocol.GET_CHATS -> {
+                    List<String> fields = new ArrayList<>();
+                    for (ChatSummary chat : workspaceHandler.handleGetChats(client)) {
+                        fields.add(chat.name());
+                        fields.add(String.valueOf(chat.unreadCount()));
+                        fields.add(String.valueOf(chat.totalMessages()));
+                    }
+                    frameWriter.write(new Frame(WireProtocol.OK, requestId, fields));
+                }
+                case WireProtocol.GET_MESSAGES -> {
+                    if (frame.fields().size() != 1) {
+                        frameWriter.write(Frame.reply(requestId, "ERROR Invalid get-messages frame."));
+                        break;
+                    }
+                    List<String> fields = new ArrayList<>();
+                    for (Message message : workspaceHandler.handleGetMessages(client, frame.field(0))) {
+                        fields.add(String.valueOf(message.getSeq()));
+                        fields.add(message.getFromUsername());
+                        fields.add(message.getType());
+                        fields.add(message.getBody());
+                    }
+                    frameWriter.write(new Frame(WireProtocol.OK, requestId, fields));
+                }
+                default -> frameWriter.write(Frame.reply(requestId, "ERROR Unknown command."));
+            }
+        }
+    }
+}
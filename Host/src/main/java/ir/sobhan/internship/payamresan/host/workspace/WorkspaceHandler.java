@@ -1,11 +1,13 @@
 package ir.sobhan.internship.payamresan.host.workspace;
 
+import ir.sobhan.internship.payamresan.host.config.ExecutionMode;
 import ir.sobhan.internship.payamresan.host.connector.CentralServerConnector;
+import ir.sobhan.internship.payamresan.host.workspace.model.ChatSummary;
 import ir.sobhan.internship.payamresan.host.workspace.model.ConnectedClient;
+import ir.sobhan.internship.payamresan.host.workspace.model.InboxSummary;
 import ir.sobhan.internship.payamresan.host.workspace.model.Message;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
-import org.json.JSONArray;
-import org.json.JSONObject;
 import ir.sobhan.internship.payamresan.host.workspace.model.WorkspaceState;
 
 import java.io.IOException;
@@ -14,14 +16,17 @@ import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Slf4j
 public class WorkspaceHandler implements Runnable {
 
+    @Getter
     private final int port;
     private final String creatorPhone;
     private final CentralServerConnector serverConnector;
@@ -29,25 +34,43 @@ public class WorkspaceHandler implements Runnable {
     private final ConcurrentHashMap<String, List<Message>> conversations;
     private final ConcurrentHashMap<String, AtomicInteger> sequenceCounters;
     private final ConcurrentHashMap<String, Integer> lastReadSequence;
+    // The name each phone last joined under, so the Central Server can ask for a user's unread counts by phone.
+    private final ConcurrentHashMap<String, String> usernamesByPhone;
+    // Conversation ids by participant, so a user's chats are found without going through every conversation.
+    private final ConcurrentHashMap<String, Set<String>> conversationsByUser = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<String, ConnectedClient> connectedClientsByUsername = new ConcurrentHashMap<>();
+    // Sends in one conversation take its stripe's lock so seq numbers and list order match; conversations on other
+    // stripes go ahead at the same time. j.u.c locks rather than synchronized, so a blocked virtual thread does not
+    // pin its carrier.
+    private static final int CONVERSATION_LOCK_STRIPES = 64;
+    private final ReentrantLock[] conversationLocks = newConversationLocks();
+    private final LongAdder messagesSent = new LongAdder();
+    // Every accepted socket, authenticated or not, so that deleting the workspace can disconnect everyone.
+    private final Set<Socket> clientSockets = ConcurrentHashMap.newKeySet();
+    private volatile ServerSocket serverSocket;
+    private volatile boolean stopped;
 
-    public WorkspaceHandler(int port, String creatorPhone, CentralServerConnector serverConnector) {
+    public WorkspaceHandler(int port, String creatorPhone, CentralServerConnector serverConnector, ExecutionMode executionMode) {
         this.port = port;
         this.creatorPhone = creatorPhone;
         this.serverConnector = serverConnector;
-        this.clientThreadPool = Executors.newCachedThreadPool();
+        this.clientThreadPool = executionMode.newClientExecutor("Workspace-" + port + "-Client-");
         this.conversations = new ConcurrentHashMap<>();
         this.sequenceCounters = new ConcurrentHashMap<>();
         this.lastReadSequence = new ConcurrentHashMap<>();
+        this.usernamesByPhone = new ConcurrentHashMap<>();
     }
-    public WorkspaceHandler(WorkspaceState state, CentralServerConnector serverConnector) {
+    public WorkspaceHandler(WorkspaceState state, CentralServerConnector serverConnector, ExecutionMode executionMode) {
         this.port = state.getPort();
         this.creatorPhone = state.getCreatorPhone();
         this.serverConnector = serverConnector;
-        this.clientThreadPool = Executors.newCachedThreadPool();
+        this.clientThreadPool = executionMode.newClientExecutor("Workspace-" + port + "-Client-");
         this.conversations = state.getConversations();
         this.sequenceCounters = state.getSequenceCounters();
         this.lastReadSequence = state.getLastReadSequence();
+        // Absent from snapshots taken before hosts kept it; users show up again as they rejoin.
+        this.usernamesByPhone = state.getUsernamesByPhone() != null ? state.getUsernamesByPhone() : new ConcurrentHashMap<>();
+        this.conversations.keySet().forEach(this::indexConversation);
         log.info("Workspace on port {} restored from saved state.", this.port);
     }
     public WorkspaceState getPersistentState() {
@@ -57,21 +80,24 @@ public class WorkspaceHandler implements Runnable {
         state.setConversations(this.conversations);
         state.setSequenceCounters(this.sequenceCounters);
         state.setLastReadSequence(this.lastReadSequence);
+        state.setUsernamesByPhone(this.usernamesByPhone);
         return state;
     }
     @Override
     public void run() {
         try (ServerSocket serverSocket = new ServerSocket(port)) {
+            this.serverSocket = serverSocket;
             log.info("Workspace is now running and listening on port {}", port);
             WorkspaceManager.notifyWorkspaceStarted(port);
 
-            while (!Thread.currentThread().isInterrupted()) {
+            while (!Thread.currentThread().isInterrupted() && !stopped) {
                 try {
                     Socket clientSocket = serverSocket.accept();
+                    clientSockets.add(clientSocket);
                     ClientConnectionHandler clientHandler = new ClientConnectionHandler(clientSocket, this, serverConnector);
                     clientThreadPool.submit(clientHandler);
                 } catch (IOException e) {
-                    if (Thread.currentThread().isInterrupted()) break;
+                    if (Thread.currentThread().isInterrupted() || stopped) break;
                     log.error("Error accepting client connection on port {}", port, e);
                 }
             }
@@ -84,15 +110,49 @@ public class WorkspaceHandler implements Runnable {
         }
     }
 
-    public synchronized boolean registerAuthenticatedClient(ConnectedClient client) {
-        if (connectedClientsByUsername.containsKey(client.getUsername())) {
+    /** Stops accepting, disconnects every client and lets the accept thread finish. */
+    public void shutdown() {
+        stopped = true;
+        ServerSocket socket = serverSocket;
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            log.warn("Error closing server socket of workspace on port {}", port, e);
+        }
+        for (Socket clientSocket : clientSockets) {
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                log.debug("Error closing client socket: {}", e.getMessage());
+            }
+        }
+        clientThreadPool.shutdownNow();
+    }
+
+    void clientSocketClosed(Socket socket) {
+        clientSockets.remove(socket);
+    }
+
+    public boolean registerAuthenticatedClient(ConnectedClient client) {
+        if (connectedClientsByUsername.putIfAbsent(client.getUsername(), client) != null) {
             return false;
         }
-        connectedClientsByUsername.put(client.getUsername(), client);
+        usernamesByPhone.put(client.getPhoneNumber(), client.getUsername());
         log.info("User '{}' successfully joined the workspace on port {}.", client.getUsername(), port);
         return true;
     }
 
+    public int getConnectedClientCount() {
+        return connectedClientsByUsername.size();
+    }
+
+    /** Messages sent since this workspace was started or restored. */
+    public long getMessageCount() {
+        return messagesSent.sum();
+    }
+
     public void removeClient(ConnectedClient client) {
         if (client != null && client.getUsername() != null) {
             connectedClientsByUsername.remove(client.getUsername());
@@ -100,91 +160,114 @@ public class WorkspaceHandler implements Runnable {
         }
     }
 
-    public synchronized void handleSendMessage(ConnectedClient sender, String recipientUsername, String messageJson) {
+    private static ReentrantLock[] newConversationLocks() {
+        ReentrantLock[] locks = new ReentrantLock[CONVERSATION_LOCK_STRIPES];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        return locks;
+    }
+
+    /**
+     * Stores the message, pushes it to the recipient if online and returns its sequence number. Only numbering and
+     * appending hold a lock, that of the conversation's stripe; the push happens after it is released, so a
+     * recipient with a full socket buffer holds up no other sender. A conversation has two participants and each
+     * sends from one connection, so pushes still reach the recipient in seq order.
+     */
+    public int handleSendMessage(ConnectedClient sender, String recipientUsername, String type, String body) {
         ConnectedClient recipient = connectedClientsByUsername.get(recipientUsername);
         String conversationId = createConversationId(sender.getUsername(), recipientUsername);
-        sequenceCounters.putIfAbsent(conversationId, new AtomicInteger(0));
-        int seq = sequenceCounters.get(conversationId).incrementAndGet();
-
+        Message message;
+        ReentrantLock lock = conversationLocks[(conversationId.hashCode() & 0x7fffffff) % CONVERSATION_LOCK_STRIPES];
+        lock.lock();
         try {
-            JSONObject json = new JSONObject(messageJson);
-            Message message = new Message(seq, sender.getUsername(), json.getString("type"), json.getString("body"));
-
-            conversations.putIfAbsent(conversationId, Collections.synchronizedList(new ArrayList<>()));
-            conversations.get(conversationId).add(message);
-
-            String senderLastReadKey = sender.getUsername() + "-" + conversationId;
-            lastReadSequence.put(senderLastReadKey, seq);
-
-            if (recipient != null) {
-                String messageToSend = String.format("receive-message %s %s", sender.getUsername(), message.toJsonString());
-                recipient.getWriter().println(messageToSend);
-            } else {
-                log.warn("Recipient '{}' is not online. Message will be stored.", recipientUsername);
+            List<Message> messages = conversations.get(conversationId);
+            if (messages == null) {
+                messages = Collections.synchronizedList(new ArrayList<>());
+                conversations.put(conversationId, messages);
+                indexConversation(conversationId);
             }
-            sender.getWriter().println("OK " + seq);
-        } catch (Exception e) {
-            log.error("Error parsing message JSON from user {}", sender.getUsername(), e);
-            sender.getWriter().println("ERROR: Invalid JSON format.");
+            int seq = sequenceCounters.computeIfAbsent(conversationId, id -> new AtomicInteger()).incrementAndGet();
+            message = new Message(seq, sender.getUsername(), type, body);
+            messages.add(message);
+            lastReadSequence.put(sender.getUsername() + "-" + conversationId, seq);
+        } finally {
+            lock.unlock();
+        }
+        messagesSent.increment();
+
+        if (recipient != null) {
+            recipient.getOutput().deliver(message);
+        } else {
+            log.warn("Recipient '{}' is not online. Message will be stored.", recipientUsername);
         }
+        return message.getSeq();
     }
 
+    static String createConversationId(String user1, String user2) {
+        return user1.compareTo(user2) <= 0 ? user1 + "-" + user2 : user2 + "-" + user1;
+    }
 
-    private String createConversationId(String user1, String user2) {
-        List<String> users = new ArrayList<>();
-        users.add(user1);
-        users.add(user2);
-        Collections.sort(users);
-        return String.join("-", users);
+    private void indexConversation(String conversationId) {
+        for (String user : conversationId.split("-")) {
+            conversationsByUser.computeIfAbsent(user, u -> ConcurrentHashMap.newKeySet()).add(conversationId);
+        }
     }
 
-    public void handleGetChats(ConnectedClient requester) {
-        JSONArray chatsArray = new JSONArray();
+    public List<ChatSummary> handleGetChats(ConnectedClient requester) {
+        List<ChatSummary> chats = new ArrayList<>();
         String requesterUsername = requester.getUsername();
 
-        for (String conversationId : conversations.keySet()) {
-            if (conversationId.contains(requesterUsername)) {
-                String[] users = conversationId.split("-");
-                String otherUsername = users[0].equals(requesterUsername) ? users[1] : users[0];
+        for (String conversationId : conversationsByUser.getOrDefault(requesterUsername, Set.of())) {
+            String[] users = conversationId.split("-");
+            String otherUsername = users[0].equals(requesterUsername) ? users[1] : users[0];
 
-                List<Message> messages = conversations.get(conversationId);
-                int totalMessages = messages.size();
-                String lastReadKey = requesterUsername + "-" + conversationId;
-                int lastReadSeq = lastReadSequence.getOrDefault(lastReadKey, 0);
-                int unreadCount = totalMessages - lastReadSeq;
+            List<Message> messages = conversations.get(conversationId);
+            int totalMessages = messages.size();
+            String lastReadKey = requesterUsername + "-" + conversationId;
+            int lastReadSeq = lastReadSequence.getOrDefault(lastReadKey, 0);
+            int unreadCount = totalMessages - lastReadSeq;
 
-                JSONObject chatInfo = new JSONObject();
-                chatInfo.put("name", otherUsername);
-                chatInfo.put("unread_count", unreadCount);
-                chatInfo.put("total_messages", totalMessages);
+            chats.add(new ChatSummary(otherUsername, unreadCount, totalMessages));
+        }
+        log.debug("Listed {} chat(s) for user '{}'", chats.size(), requesterUsername);
+        return chats;
+    }
 
-                chatsArray.put(chatInfo);
+    /** The unread counts of whoever joined with this phone, or null if nobody did. */
+    public InboxSummary summarizeInbox(String phoneNumber) {
+        String username = usernamesByPhone.get(phoneNumber);
+        if (username == null) {
+            return null;
+        }
+        int unreadMessages = 0, unreadChats = 0;
+        for (String conversationId : conversationsByUser.getOrDefault(username, Set.of())) {
+            int unread = conversations.get(conversationId).size() - lastReadSequence.getOrDefault(username + "-" + conversationId, 0);
+            if (unread > 0) {
+                unreadMessages += unread;
+                unreadChats++;
             }
         }
-        requester.getWriter().println("OK " + chatsArray.toString());
-        log.debug("Sent chat list to user '{}'", requesterUsername);
+        return new InboxSummary(unreadMessages, unreadChats);
     }
-public void handleGetMessages(ConnectedClient requester, String otherUsername) {
-    String conversationId = createConversationId(requester.getUsername(), otherUsername);
-    List<Message> messages = conversations.get(conversationId);
 
-    JSONArray messagesArray = new JSONArray();
-    if (messages != null && !messages.isEmpty()) {
-        for (Message msg : messages) {
-            messagesArray.put(new JSONObject(msg.toJsonString()));
+    /** Returns the conversation with another user and marks it as read. */
+    public List<Message> handleGetMessages(ConnectedClient requester, String otherUsername) {
+        String conversationId = createConversationId(requester.getUsername(), otherUsername);
+        List<Message> messages = conversations.get(conversationId);
+        if (messages == null) {
+            return List.of();
         }
-
-        int lastSeqInChat = messages.get(messages.size() - 1).getSeq();
-        String lastReadKey = requester.getUsername() + "-" + conversationId;
-        lastReadSequence.put(lastReadKey, lastSeqInChat);
-        log.debug("Marked conversation '{}' as read for user '{}' up to seq {}.", conversationId, requester.getUsername(), lastSeqInChat);
+        List<Message> snapshot;
+        synchronized (messages) {
+            snapshot = new ArrayList<>(messages);
+        }
+        if (!snapshot.isEmpty()) {
+            int lastSeqInChat = snapshot.get(snapshot.size() - 1).getSeq();
+            String lastReadKey = requester.getUsername() + "-" + conversationId;
+            lastReadSequence.put(lastReadKey, lastSeqInChat);
+            log.debug("Marked conversation '{}' as read for user '{}' up to seq {}.", conversationId, requester.getUsername(), lastSeqInChat);
+        }
+        return snapshot;
     }
-
-    requester.getWriter().println("OK " + messagesArray.toString());
-    log.debug("Sent message history for chat with '{}' to user '{}'", otherUsername, requester.getUsername());
-}
 }
-
-
-
-
@@ -1,56 +1,116 @@
 package ir.sobhan.internship.payamresan.host.workspace;
 
+import ir.sobhan.internship.payamresan.host.config.ExecutionMode;
 import ir.sobhan.internship.payamresan.host.connector.CentralServerConnector;
 import lombok.extern.slf4j.Slf4j;
-import java.io.FileReader;
-import java.io.FileWriter;
+import ir.sobhan.internship.payamresan.host.storage.SnapshotFormat;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.Reader;
-import java.io.Writer;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import ir.sobhan.internship.payamresan.host.workspace.model.WorkspaceState;
 import ir.sobhan.internship.payamresan.host.workspace.model.HostPersistentState;
-
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import ir.sobhan.internship.payamresan.host.workspace.model.InboxSummary;
 
 @Slf4j
 public class WorkspaceManager {
     private final ConcurrentHashMap<Integer, WorkspaceHandler> runningWorkspaces = new ConcurrentHashMap<>();
     private static final ConcurrentHashMap<Integer, CompletableFuture<Boolean>> startupNotifiers = new ConcurrentHashMap<>();
+    private static final long STARTUP_TIMEOUT_SECONDS = 5;
+    private final ExecutionMode executionMode;
 
-    public WorkspaceManager() {
-        log.info("Workspace Manager initialized.");
+    public WorkspaceManager(ExecutionMode executionMode) {
+        this.executionMode = executionMode;
+        log.info("Workspace Manager initialized ({} threads).", executionMode.name().toLowerCase());
     }
 
-    public boolean createAndStartWorkspace(int port, String creatorPhone, CentralServerConnector serverConnector) {
-        if (runningWorkspaces.containsKey(port)) {
+    /**
+     * Starts a workspace without blocking the caller; the future completes once its server socket is bound
+     * (true) or binding failed or timed out (false).
+     */
+    public CompletableFuture<Boolean> createAndStartWorkspace(int port, String creatorPhone, CentralServerConnector serverConnector) {
+        WorkspaceHandler workspaceHandler = new WorkspaceHandler(port, creatorPhone, serverConnector, executionMode);
+        if (runningWorkspaces.putIfAbsent(port, workspaceHandler) != null) {
             log.warn("Attempted to create a workspace on an already used port: {}", port);
-            return false;
+            return CompletableFuture.completedFuture(false);
         }
 
         log.info("Attempting to create and start a new workspace on port {} for user {}", port, creatorPhone);
 
         CompletableFuture<Boolean> startupResult = new CompletableFuture<>();
         startupNotifiers.put(port, startupResult);
+        Thread workspaceThread = executionMode.startThread("Workspace-Port-" + port, workspaceHandler);
 
-        WorkspaceHandler workspaceHandler = new WorkspaceHandler(port, creatorPhone, serverConnector);
-        Thread workspaceThread = new Thread(workspaceHandler);
-        workspaceThread.setName("Workspace-Port-" + port);
-        workspaceThread.start();
+        return startupResult
+                .orTimeout(STARTUP_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .exceptionally(e -> {
+                    log.error("Workspace on port {} failed to start in time.", port, e);
+                    workspaceThread.interrupt();
+                    return false;
+                })
+                .whenComplete((started, e) -> {
+                    startupNotifiers.remove(port);
+                    if (!started) {
+                        runningWorkspaces.remove(port, workspaceHandler);
+                    }
+                });
+    }
 
-        runningWorkspaces.put(port, workspaceHandler);
-        try {
-            return startupResult.get(5, TimeUnit.SECONDS);
-        } catch (Exception e) {
-            log.error("Workspace on port {} failed to start in time or was interrupted.", port, e);
-            workspaceThread.interrupt();
+    /** Stops the workspace on this port and forgets its data; false if no workspace runs there. */
+    public boolean deleteWorkspace(int port) {
+        WorkspaceHandler handler = runningWorkspaces.remove(port);
+        if (handler == null) {
+            log.warn("Asked to delete a workspace on port {}, but none is running there.", port);
             return false;
-        } finally {
-            startupNotifiers.remove(port);
         }
+        handler.shutdown();
+        log.info("Deleted workspace on port {}.", port);
+        return true;
+    }
+
+    /** Ports of all workspaces this host runs, including ones still starting, in ascending order. */
+    public int[] getRunningPorts() {
+        return runningWorkspaces.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+    }
+
+    public int getWorkspaceCount() {
+        return runningWorkspaces.size();
+    }
+
+    public int getConnectedClientCount() {
+        int clients = 0;
+        for (WorkspaceHandler handler : runningWorkspaces.values()) {
+            clients += handler.getConnectedClientCount();
+        }
+        return clients;
+    }
+
+    public long getMessageCount() {
+        long messages = 0;
+        for (WorkspaceHandler handler : runningWorkspaces.values()) {
+            messages += handler.getMessageCount();
+        }
+        return messages;
+    }
+
+    /** The user's unread counts by port, for every workspace here they have joined. */
+    public Map<Integer, InboxSummary> summarizeInbox(String phoneNumber) {
+        Map<Integer, InboxSummary> inbox = new TreeMap<>();
+        runningWorkspaces.forEach((port, handler) -> {
+            InboxSummary summary = handler.summarizeInbox(phoneNumber);
+            if (summary != null) {
+                inbox.put(port, summary);
+            }
+        });
+        return inbox;
     }
 
     public static void notifyWorkspaceStarted(int port) {
@@ -78,31 +138,30 @@ public class WorkspaceManager {
         });
         state.setRunningWorkspaces(workspaceStates);
 
-        Gson gson = new GsonBuilder().setPrettyPrinting().create();
-        try (Writer writer = new FileWriter(filePath)) {
-            gson.toJson(state, writer);
-            log.info("Host state successfully saved.");
+        long started = System.nanoTime();
+        try (OutputStream out = new FileOutputStream(filePath)) {
+            SnapshotFormat.forFile(filePath).write(state, out);
+            log.info("Host state successfully saved in {} ms.", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
         } catch (IOException e) {
             log.error("Failed to save host state to file.", e);
         }
     }
     public synchronized void loadAndRestartWorkspaces(String filePath, CentralServerConnector serverConnector) {
         log.info("Attempting to load host state from {}...", filePath);
-        Gson gson = new Gson();
-        try (Reader reader = new FileReader(filePath)) {
-            HostPersistentState loadedState = gson.fromJson(reader, HostPersistentState.class);
-            if (loadedState != null && loadedState.getRunningWorkspaces() != null) {
-                log.info("Found {} saved workspaces. Attempting to restart them...", loadedState.getRunningWorkspaces().size());
+        long started = System.nanoTime();
+        try (InputStream in = new FileInputStream(filePath)) {
+            HostPersistentState loadedState = SnapshotFormat.detect(Path.of(filePath)).read(in);
+            if (loadedState.getRunningWorkspaces() != null) {
+                log.info("Found {} saved workspaces in {} ms. Attempting to restart them...", loadedState.getRunningWorkspaces().size(),
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
                 loadedState.getRunningWorkspaces().forEach((port, wsState) -> {
                     log.debug("Restarting workspace on port {}", port);
-                    WorkspaceHandler handler = new WorkspaceHandler(wsState, serverConnector);
-                    Thread thread = new Thread(handler);
-                    thread.setName("Workspace-Port-" + port);
-                    thread.start();
+                    WorkspaceHandler handler = new WorkspaceHandler(wsState, serverConnector, executionMode);
+                    executionMode.startThread("Workspace-Port-" + port, handler);
                     runningWorkspaces.put(port, handler);
                 });
             }
-        } catch (IOException e) {
+        } catch (FileNotFoundException e) {
             log.warn("No existing host data file found at '{}'. Starting fresh.", filePath);
         } catch (Exception e) {
             log.error("Failed to load or parse host state from file.", e);
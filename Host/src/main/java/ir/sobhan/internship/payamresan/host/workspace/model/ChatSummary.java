@@ -0,0 +1,5 @@
+package ir.sobhan.internship.payamresan.host.workspace.model;
+
+/** One entry of a user's chat list: the other user and the message counts of their conversation. */
+public record ChatSummary(String name, int unreadCount, int totalMessages) {
+}
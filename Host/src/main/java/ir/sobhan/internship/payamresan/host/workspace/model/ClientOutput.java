@@ -0,0 +1,6 @@
+package ir.sobhan.internship.payamresan.host.workspace.model;
+
+/** Pushes messages to a connected client in whichever protocol its connection speaks. */
+public interface ClientOutput {
+    void deliver(Message message);
+}
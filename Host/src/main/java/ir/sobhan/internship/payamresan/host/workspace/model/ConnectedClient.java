@@ -1,23 +1,22 @@
 package ir.sobhan.internship.payamresan.host.workspace.model;
 
 import lombok.Getter;
-import java.io.PrintWriter;
 import java.net.Socket;
 
 @Getter
 public class ConnectedClient {
     private final String phoneNumber;
     private final Socket socket;
-    private final PrintWriter writer;
+    private final ClientOutput output;
     private String username;
 
-    public ConnectedClient(String phoneNumber, Socket socket, PrintWriter writer) {
+    public ConnectedClient(String phoneNumber, Socket socket, ClientOutput output) {
         this.phoneNumber = phoneNumber;
         this.socket = socket;
-        this.writer = writer;
+        this.output = output;
     }
 
     public void setUsername(String username) {
         this.username = username;
     }
-}
\ No newline at end of file
+}
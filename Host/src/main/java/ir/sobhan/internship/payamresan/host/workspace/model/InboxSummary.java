@@ -0,0 +1,5 @@
+package ir.sobhan.internship.payamresan.host.workspace.model;
+
+/** A user's unread messages in one workspace, and in how many of their conversations there are any. */
+public record InboxSummary(int unreadMessages, int unreadChats) {
+}
@@ -15,4 +15,5 @@ public class WorkspaceState {
     private ConcurrentHashMap<String, List<Message>> conversations;
     private ConcurrentHashMap<String, AtomicInteger> sequenceCounters;
     private ConcurrentHashMap<String, Integer> lastReadSequence;
+    private ConcurrentHashMap<String, String> usernamesByPhone;
 }
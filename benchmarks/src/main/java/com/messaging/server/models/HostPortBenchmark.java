@@ -0,0 +1,59 @@
+package com.messaging.server.models;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** {@link Host#getAvailablePort} followed by the release of that port, on ranges of different size and fill. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HostPortBenchmark {
+
+    @Param({"100", "10000", "60000"})
+    int ports;
+
+    @Param({"0", "0.5", "0.99"})
+    double used;
+
+    Host host;
+
+    @Setup
+    public void setUp() {
+        host = new Host("127.0.0.1", 1024, 1024 + ports - 1);
+        Random random = new Random(1);
+        while (ports - host.getFreePortCount() < (int) (ports * used)) {
+            host.markPortUsed(1024 + random.nextInt(ports));
+        }
+    }
+
+    @Benchmark
+    public int allocate() {
+        int port = host.getAvailablePort();
+        host.releasePort(port);
+        return port;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int allocateContended() {
+        int port = host.getAvailablePort();
+        host.releasePort(port);
+        return port;
+    }
+}
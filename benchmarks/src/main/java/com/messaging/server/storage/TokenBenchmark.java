@@ -0,0 +1,94 @@
+package com.messaging.server.storage;
+
+import com.messaging.server.models.Token;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link DataStore#findAndInvalidateToken} next to {@code liveTokens} other unexpired tokens. A redeemed token is
+ * gone, so hits are timed over batches of {@value #BATCH} tokens issued before each iteration (the score is per
+ * batch, per thread); misses need no setup.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class TokenBenchmark {
+    private static final int BATCH = 100_000;
+    private static final AtomicLong NEXT_TOKEN = new AtomicLong();
+
+    @Param({"0", "100000", "1000000"})
+    int liveTokens;
+
+    DataStore dataStore;
+
+    @Setup
+    public void setUp() {
+        // A fresh JVM per parameter value, so the singleton starts empty each time.
+        dataStore = DataStore.getInstance();
+        for (int i = 0; i < liveTokens; i++) {
+            dataStore.saveToken(new Token("live" + i, "0912" + i));
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Batch {
+        String[] tokens = new String[BATCH];
+        int next;
+
+        @Setup(Level.Iteration)
+        public void issue(TokenBenchmark benchmark) {
+            for (int i = 0; i < BATCH; i++) {
+                tokens[i] = "t" + NEXT_TOKEN.incrementAndGet();
+                benchmark.dataStore.saveToken(new Token(tokens[i], "09120000000"));
+            }
+            next = 0;
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 3, batchSize = BATCH)
+    @Measurement(iterations = 5, batchSize = BATCH)
+    public Optional<Token> redeem(Batch batch) {
+        return dataStore.findAndInvalidateToken(batch.tokens[batch.next++]);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 3, batchSize = BATCH)
+    @Measurement(iterations = 5, batchSize = BATCH)
+    @Threads(4)
+    public Optional<Token> redeemContended(Batch batch) {
+        return dataStore.findAndInvalidateToken(batch.tokens[batch.next++]);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public Optional<Token> miss() {
+        return dataStore.findAndInvalidateToken("unknown");
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @Threads(4)
+    public Optional<Token> missContended() {
+        return dataStore.findAndInvalidateToken("unknown");
+    }
+}
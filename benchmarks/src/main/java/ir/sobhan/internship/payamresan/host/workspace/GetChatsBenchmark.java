@@ -0,0 +1,57 @@
+package ir.sobhan.internship.payamresan.host.workspace;
+
+import ir.sobhan.internship.payamresan.host.workspace.model.ChatSummary;
+import ir.sobhan.internship.payamresan.host.workspace.model.ConnectedClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** {@link WorkspaceHandler#handleGetChats} for a user taking part in one of every ten of the workspace's conversations. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class GetChatsBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    int conversations;
+
+    WorkspaceHandler workspace;
+    ConnectedClient requester;
+
+    @Setup
+    public void setUp() {
+        workspace = Workspaces.newWorkspace();
+        requester = Workspaces.join(workspace, "alice");
+        ConnectedClient other = Workspaces.join(workspace, "bob");
+        for (int i = 0; i < conversations; i++) {
+            ConnectedClient sender = i % 10 == 0 ? requester : other;
+            workspace.handleSendMessage(sender, "user" + i, "text", Workspaces.BODY);
+        }
+    }
+
+    @Benchmark
+    public List<ChatSummary> getChats() {
+        return workspace.handleGetChats(requester);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public List<ChatSummary> getChatsContended() {
+        return workspace.handleGetChats(requester);
+    }
+}
@@ -0,0 +1,56 @@
+package ir.sobhan.internship.payamresan.host.workspace;
+
+import ir.sobhan.internship.payamresan.host.workspace.model.ConnectedClient;
+import ir.sobhan.internship.payamresan.host.workspace.model.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** {@link WorkspaceHandler#handleGetMessages} on a conversation holding {@code messages} messages. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class GetMessagesBenchmark {
+
+    @Param({"1", "1000", "1000000"})
+    int messages;
+
+    WorkspaceHandler workspace;
+    ConnectedClient requester;
+
+    @Setup
+    public void setUp() {
+        workspace = Workspaces.newWorkspace();
+        requester = Workspaces.join(workspace, "alice");
+        ConnectedClient other = Workspaces.join(workspace, "bob");
+        for (int i = 0; i < messages; i++) {
+            workspace.handleSendMessage(i % 2 == 0 ? requester : other, i % 2 == 0 ? "bob" : "alice", "text", Workspaces.BODY);
+        }
+    }
+
+    @Benchmark
+    public List<Message> getMessages() {
+        return workspace.handleGetMessages(requester, "bob");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public List<Message> getMessagesContended() {
+        return workspace.handleGetMessages(requester, "bob");
+    }
+}
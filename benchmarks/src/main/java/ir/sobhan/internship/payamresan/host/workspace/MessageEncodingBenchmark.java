@@ -0,0 +1,55 @@
+package ir.sobhan.internship.payamresan.host.workspace;
+
+import ir.sobhan.internship.payamresan.host.workspace.model.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/** The per-message helpers on the send path: {@link Message#toJsonString} and the conversation id. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageEncodingBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Payload {
+        @Param({"16", "1024"})
+        int bodyLength;
+
+        Message message;
+
+        @Setup
+        public void setUp() {
+            message = new Message(42, "alice", "text", "x".repeat(bodyLength));
+        }
+    }
+
+    @Benchmark
+    public String toJsonString(Payload payload) {
+        return payload.message.toJsonString();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String toJsonStringContended(Payload payload) {
+        return payload.message.toJsonString();
+    }
+
+    @Benchmark
+    public String createConversationId() {
+        return WorkspaceHandler.createConversationId("bob", "alice");
+    }
+}
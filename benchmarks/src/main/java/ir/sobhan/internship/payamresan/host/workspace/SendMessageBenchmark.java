@@ -0,0 +1,84 @@
+package ir.sobhan.internship.payamresan.host.workspace;
+
+import ir.sobhan.internship.payamresan.host.workspace.model.ConnectedClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link WorkspaceHandler#handleSendMessage} with each sender spreading messages over {@code conversations}
+ * existing conversations. The workspace is rebuilt every iteration so stored messages do not pile up.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class SendMessageBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    int conversations;
+
+    WorkspaceHandler workspace;
+    String[] recipients;
+    final AtomicInteger senders = new AtomicInteger();
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        workspace = Workspaces.newWorkspace();
+        recipients = new String[conversations];
+        for (int i = 0; i < conversations; i++) {
+            recipients[i] = "user" + i;
+            Workspaces.join(workspace, recipients[i]);
+        }
+        senders.set(0);
+    }
+
+    @State(Scope.Thread)
+    public static class Sender {
+        ConnectedClient client;
+        String[] recipients;
+        int next;
+
+        @Setup(Level.Iteration)
+        public void setUp(SendMessageBenchmark benchmark) {
+            recipients = benchmark.recipients;
+            client = Workspaces.join(benchmark.workspace, "sender" + benchmark.senders.incrementAndGet());
+            for (String recipient : recipients) {
+                benchmark.workspace.handleSendMessage(client, recipient, "text", Workspaces.BODY);
+            }
+            next = 0;
+        }
+
+        String nextRecipient() {
+            String recipient = recipients[next];
+            next = next + 1 == recipients.length ? 0 : next + 1;
+            return recipient;
+        }
+    }
+
+    @Benchmark
+    public int send(Sender sender) {
+        return workspace.handleSendMessage(sender.client, sender.nextRecipient(), "text", Workspaces.BODY);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int sendContended(Sender sender) {
+        return workspace.handleSendMessage(sender.client, sender.nextRecipient(), "text", Workspaces.BODY);
+    }
+}
@@ -0,0 +1,77 @@
+package ir.sobhan.internship.payamresan.host.workspace;
+
+import ir.sobhan.internship.payamresan.host.workspace.model.ConnectedClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link WorkspaceHandler#handleSendMessage} in a workspace where one recipient's socket is backed up: pushing to
+ * {@code slow} blocks for 100 µs, as a write to a full TCP buffer would. {@code fast} reports what three senders to
+ * responsive recipients pay meanwhile.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class SlowRecipientBenchmark {
+    private static final long SLOW_PUSH_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    WorkspaceHandler workspace;
+    ConnectedClient slowSender;
+    final AtomicInteger fastSenders = new AtomicInteger();
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        workspace = Workspaces.newWorkspace();
+        ConnectedClient slow = new ConnectedClient("0912slow", null, message -> LockSupport.parkNanos(SLOW_PUSH_NANOS));
+        slow.setUsername("slow");
+        workspace.registerAuthenticatedClient(slow);
+        slowSender = Workspaces.join(workspace, "slowSender");
+        fastSenders.set(0);
+    }
+
+    @State(Scope.Thread)
+    public static class FastSender {
+        ConnectedClient client;
+        String recipient;
+
+        @Setup(Level.Iteration)
+        public void setUp(SlowRecipientBenchmark benchmark) {
+            int id = benchmark.fastSenders.incrementAndGet();
+            client = Workspaces.join(benchmark.workspace, "sender" + id);
+            recipient = "recipient" + id;
+            Workspaces.join(benchmark.workspace, recipient);
+        }
+    }
+
+    @Benchmark
+    @Group("backedUp")
+    @GroupThreads(1)
+    public int slow() {
+        return workspace.handleSendMessage(slowSender, "slow", "text", Workspaces.BODY);
+    }
+
+    @Benchmark
+    @Group("backedUp")
+    @GroupThreads(3)
+    public int fast(FastSender sender) {
+        return workspace.handleSendMessage(sender.client, sender.recipient, "text", Workspaces.BODY);
+    }
+}
@@ -0,0 +1,25 @@
+package ir.sobhan.internship.payamresan.host.workspace;
+
+import ir.sobhan.internship.payamresan.host.config.ExecutionMode;
+import ir.sobhan.internship.payamresan.host.workspace.model.ConnectedClient;
+
+/** Builds workspaces for the benchmarks without opening any socket. */
+final class Workspaces {
+    static final String BODY = "hello, this is a benchmark message";
+
+    private Workspaces() {
+    }
+
+    static WorkspaceHandler newWorkspace() {
+        return new WorkspaceHandler(9100, "09120000000", null, ExecutionMode.VIRTUAL);
+    }
+
+    /** Joins a user whose pushed messages are dropped, so sends take the online-recipient path. */
+    static ConnectedClient join(WorkspaceHandler workspace, String username) {
+        ConnectedClient client = new ConnectedClient("0912" + username, null, message -> {
+        });
+        client.setUsername(username);
+        workspace.registerAuthenticatedClient(client);
+        return client;
+    }
+}
@@ -8,7 +8,7 @@ public class ClientApp {
 
     public static void main(String[] args) {
         log.info("Client Application Started.");
-        log.info("Available commands: register, login, logout, create-workspace, connect-workspace, send-message, get-chats, get-messages, disconnect, exit");
+        log.info("Available commands: register, login, logout, create-workspace, delete-workspace, connect-workspace, list-workspaces, my-workspaces, get-inbox, send-message, get-chats, get-messages, disconnect, exit");
 
         String centralServerIp = "127.0.0.1";
         int centralServerPort = 8000;
@@ -28,6 +28,7 @@ public class ClientApp {
             if ("exit".equalsIgnoreCase(command)) {
                 log.info("Exiting application...");
                 connectionManager.disconnect();
+                connectionManager.closeCentralSession();
                 break;
             }
 
@@ -42,9 +43,21 @@ public class ClientApp {
                 case "create-workspace":
                     connectionManager.createWorkspace(commandLine);
                     break;
+                case "delete-workspace":
+                    connectionManager.deleteWorkspace(commandLine);
+                    break;
                 case "connect-workspace":
                     connectionManager.connectToWorkspace(commandLine);
                     break;
+                case "list-workspaces":
+                    connectionManager.listWorkspaces(commandLine);
+                    break;
+                case "my-workspaces":
+                    connectionManager.myWorkspaces(commandLine);
+                    break;
+                case "get-inbox":
+                    connectionManager.getInbox();
+                    break;
                 case "disconnect":
                     connectionManager.disconnect();
                     break;
@@ -2,10 +2,15 @@ package ir.sobhan.internship.payamresan.client;
 
 import lombok.extern.slf4j.Slf4j;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 @Slf4j
 public class ConnectionManager {
@@ -13,34 +18,87 @@ public class ConnectionManager {
     private final String centralServerIp;
     private final int centralServerPort;
     private String loggedInUserPhone;
-    private String loggedInUserPassword;
+    // Sent instead of the password by every command that needs the user.
+    private String sessionId;
     private Socket workspaceSocket;
     private PrintWriter workspaceWriter;
     private BufferedReader workspaceReader;
     private Thread listenerThread;
+    // One long-lived session to the central server, reused by every command.
+    private Socket centralSocket;
+    private PrintWriter centralWriter;
+    private BufferedReader centralReader;
 
     public ConnectionManager(String centralServerIp, int centralServerPort) {
         this.centralServerIp = centralServerIp;
         this.centralServerPort = centralServerPort;
     }
     public boolean isLoggedIn() {
-        return loggedInUserPhone != null && loggedInUserPassword != null;
+        return loggedInUserPhone != null && sessionId != null;
     }
 
     private String sendCommandToCentralServer(String command) {
-        try (Socket socket = new Socket(centralServerIp, centralServerPort);
-             PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
-             BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+        return sendCommandsToCentralServer(List.of(command)).get(0);
+    }
 
-            log.debug("Sending to Central Server: {}", command);
-            writer.println(command);
-            String response = reader.readLine();
-            log.debug("Received from Central Server: {}", response);
-            return response;
+    /**
+     * Writes all commands on the central session before reading any reply (pipelining).
+     * Replies are returned in the same order as the commands.
+     */
+    public synchronized List<String> sendCommandsToCentralServer(List<String> commands) {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            boolean reusedSession = centralSocket != null;
+            List<String> responses = new ArrayList<>(commands.size());
+            try {
+                if (!reusedSession) {
+                    openCentralSession();
+                }
+                for (String command : commands) {
+                    log.debug("Sending to Central Server: {}", command);
+                    centralWriter.println(command);
+                }
+                centralWriter.flush();
+                for (int i = 0; i < commands.size(); i++) {
+                    String response = centralReader.readLine();
+                    if (response == null) {
+                        throw new IOException("Central server closed the session.");
+                    }
+                    log.debug("Received from Central Server: {}", response);
+                    responses.add(response);
+                }
+                return responses;
+            } catch (IOException e) {
+                closeCentralSession();
+                // A session the server already closed (e.g. idle timeout) fails before any reply; retry once on a fresh one.
+                if (!reusedSession || !responses.isEmpty()) {
+                    log.error("Cannot connect to central server: {}", e.getMessage());
+                    break;
+                }
+                log.debug("Central session is no longer usable, reconnecting: {}", e.getMessage());
+            }
+        }
+        return Collections.nCopies(commands.size(), "ERROR: Cannot connect to central server.");
+    }
+
+    private void openCentralSession() throws IOException {
+        centralSocket = new Socket(centralServerIp, centralServerPort);
+        centralSocket.setTcpNoDelay(true);
+        centralWriter = new PrintWriter(new BufferedWriter(new OutputStreamWriter(centralSocket.getOutputStream())), false);
+        centralReader = new BufferedReader(new InputStreamReader(centralSocket.getInputStream()));
+    }
 
+    public synchronized void closeCentralSession() {
+        if (centralSocket == null) {
+            return;
+        }
+        try {
+            centralSocket.close();
         } catch (IOException e) {
-            log.error("Cannot connect to central server: {}", e.getMessage());
-            return "ERROR: Cannot connect to central server.";
+            log.error("Error while closing central session: {}", e.getMessage());
+        } finally {
+            centralSocket = null;
+            centralWriter = null;
+            centralReader = null;
         }
     }
 
@@ -62,9 +120,10 @@ public class ConnectionManager {
         String response = sendCommandToCentralServer(command);
         System.out.println(response);
 
-        if (response != null && response.equalsIgnoreCase("OK")) {
+        // OK <session>
+        if (response != null && response.startsWith("OK ")) {
             this.loggedInUserPhone = parts[1];
-            this.loggedInUserPassword = parts[2];
+            this.sessionId = response.substring(3);
             log.info("User {} successfully logged in.", loggedInUserPhone);
         }
     }
@@ -75,8 +134,9 @@ public class ConnectionManager {
             return;
         }
         disconnect();
+        sendCommandToCentralServer("logout " + sessionId);
         this.loggedInUserPhone = null;
-        this.loggedInUserPassword = null;
+        this.sessionId = null;
         System.out.println("Successfully logged out.");
     }
     public void createWorkspace(String command) {
@@ -90,7 +150,23 @@ public class ConnectionManager {
             return;
         }
         String workspaceName = parts[1];
-        String fullCommand = String.format("create-workspace %s %s %s", loggedInUserPhone, loggedInUserPassword, workspaceName);
+        String fullCommand = String.format("create-workspace %s %s", sessionId, workspaceName);
+
+        String response = sendCommandToCentralServer(fullCommand);
+        System.out.println(response);
+    }
+
+    public void deleteWorkspace(String command) {
+        if (!isLoggedIn()) {
+            System.out.println("ERROR: Please log in first.");
+            return;
+        }
+        String[] parts = command.split(" ");
+        if (parts.length != 2) {
+            System.out.println("ERROR: Invalid format. Use: delete-workspace <workspace_name>");
+            return;
+        }
+        String fullCommand = String.format("delete-workspace %s %s", sessionId, parts[1]);
 
         String response = sendCommandToCentralServer(fullCommand);
         System.out.println(response);
@@ -113,12 +189,42 @@ public class ConnectionManager {
             return;
         }
         String workspaceName = parts[1];
-        String fullCommand = String.format("connect-workspace %s %s %s", loggedInUserPhone, loggedInUserPassword, workspaceName);
+        String fullCommand = String.format("connect-workspace %s %s", sessionId, workspaceName);
 
         String response = sendCommandToCentralServer(fullCommand);
 
     }
 
+    /** list-workspaces [prefix] [cursor] [limit], sent as typed. */
+    public void listWorkspaces(String command) {
+        System.out.println(sendCommandToCentralServer(command));
+    }
+
+    public void myWorkspaces(String command) {
+        if (!isLoggedIn()) {
+            System.out.println("ERROR: Please log in first.");
+            return;
+        }
+        String[] parts = command.split(" ");
+        if (parts.length > 3) {
+            System.out.println("ERROR: Invalid format. Use: my-workspaces [cursor] [limit]");
+            return;
+        }
+        StringBuilder fullCommand = new StringBuilder("my-workspaces ").append(sessionId);
+        for (int i = 1; i < parts.length; i++) {
+            fullCommand.append(' ').append(parts[i]);
+        }
+        System.out.println(sendCommandToCentralServer(fullCommand.toString()));
+    }
+
+    public void getInbox() {
+        if (!isLoggedIn()) {
+            System.out.println("ERROR: Please log in first.");
+            return;
+        }
+        System.out.println(sendCommandToCentralServer("get-inbox " + sessionId));
+    }
+
     public void disconnect() {
         if (workspaceSocket == null || workspaceSocket.isClosed()) {
             System.out.println("You are not connected to any workspace.");
@@ -0,0 +1,176 @@
+package ir.sobhan.internship.payamresan.client;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Imports users from a file through {@code register-bulk}. Each line holds {@code <phone> <password>} (or the two
+ * separated by a comma); blank lines and lines starting with {@code #} are skipped. The file is streamed in batches
+ * over one central server connection, with up to {@link #WINDOW} batches in flight, and every rejected row is
+ * reported with its line number.
+ * <p>
+ * Usage: {@code UserImporter <central_ip> <central_port> <file> [batch_rows]}
+ */
+@Slf4j
+public class UserImporter {
+    private static final int DEFAULT_BATCH_ROWS = 1000;
+    // Well under the server's 64 KB line limit.
+    private static final int MAX_BATCH_CHARS = 60 * 1024;
+    private static final int WINDOW = 32;
+    private static final Pattern FIELD_SEPARATOR = Pattern.compile("[\\s,]+");
+
+    /** The rows of one {@code register-bulk} command and the file lines they came from. */
+    private record Batch(String command, int[] lineNumbers) {
+    }
+
+    private final PrintWriter writer;
+    private final BufferedReader reader;
+    private final Semaphore window = new Semaphore(WINDOW);
+    // Batches sent and not yet answered, in the order the server answers them.
+    private final ConcurrentLinkedQueue<Batch> inFlight = new ConcurrentLinkedQueue<>();
+    private final AtomicLong imported = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private volatile IOException failure;
+
+    private UserImporter(Socket socket) throws IOException {
+        this.writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)), false);
+        this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3 || args.length > 4) {
+            log.error("Usage: UserImporter <central_ip> <central_port> <file> [batch_rows]");
+            return;
+        }
+        int batchRows = args.length == 4 ? Integer.parseInt(args[3]) : DEFAULT_BATCH_ROWS;
+        try (Socket socket = new Socket(args[0], Integer.parseInt(args[1]))) {
+            new UserImporter(socket).run(Path.of(args[2]), batchRows);
+        }
+    }
+
+    private void run(Path file, int batchRows) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        Thread replies = Thread.ofPlatform().name("Import-Replies").start(this::readReplies);
+        long malformed = 0;
+        try (BufferedReader lines = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            StringBuilder command = new StringBuilder();
+            List<Integer> lineNumbers = new ArrayList<>(batchRows);
+            String line;
+            int lineNumber = 0;
+            while ((line = lines.readLine()) != null && failure == null) {
+                lineNumber++;
+                line = line.strip();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = FIELD_SEPARATOR.split(line);
+                if (fields.length != 2) {
+                    log.warn("Line {}: expected <phone> <password>, skipped.", lineNumber);
+                    malformed++;
+                    continue;
+                }
+                if (!lineNumbers.isEmpty() && (lineNumbers.size() == batchRows
+                        || command.length() + line.length() + 2 > MAX_BATCH_CHARS)) {
+                    send(command, lineNumbers);
+                }
+                if (lineNumbers.isEmpty()) {
+                    command.append("register-bulk");
+                }
+                command.append(' ').append(fields[0]).append(' ').append(fields[1]);
+                lineNumbers.add(lineNumber);
+            }
+            if (!lineNumbers.isEmpty()) {
+                send(command, lineNumbers);
+            }
+        }
+        // Once every permit is back, every batch has been answered.
+        while (failure == null && !window.tryAcquire(WINDOW, 100, TimeUnit.MILLISECONDS)) {
+            // waiting for the last replies
+        }
+        replies.interrupt();
+        if (failure != null) {
+            log.error("Import aborted: {}", failure.getMessage());
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        log.info("Imported {} users, rejected {} and skipped {} malformed lines in {} s ({} users/s).",
+                imported.get(), rejected.get(), malformed, String.format("%.2f", seconds),
+                Math.round(imported.get() / seconds));
+    }
+
+    private void send(StringBuilder command, List<Integer> lineNumbers) throws InterruptedException {
+        Batch batch = new Batch(command.toString(), lineNumbers.stream().mapToInt(Integer::intValue).toArray());
+        command.setLength(0);
+        lineNumbers.clear();
+        window.acquire();
+        write(batch);
+    }
+
+    private void write(Batch batch) {
+        synchronized (writer) {
+            inFlight.add(batch);
+            writer.println(batch.command());
+            writer.flush();
+        }
+    }
+
+    private void readReplies() {
+        try {
+            String reply;
+            while ((reply = reader.readLine()) != null) {
+                Batch batch = inFlight.poll();
+                if (batch == null) {
+                    throw new IOException("Unexpected reply: " + reply);
+                }
+                if (reply.startsWith("ERROR BUSY")) {
+                    // Shed under load: send it again after the server's hint, keeping its place in the window.
+                    String[] words = reply.split(" ");
+                    long retryAfter = words.length > 2 ? Long.parseLong(words[2]) : 100;
+                    Thread.ofVirtual().start(() -> {
+                        try {
+                            Thread.sleep(retryAfter);
+                            write(batch);
+                        } catch (InterruptedException ignored) {
+                            // the import is over
+                        }
+                    });
+                    continue;
+                }
+                if (!reply.startsWith("OK ")) {
+                    log.warn("Lines {}-{} rejected: {}", batch.lineNumbers()[0],
+                            batch.lineNumbers()[batch.lineNumbers().length - 1], reply);
+                    rejected.addAndGet(batch.lineNumbers().length);
+                } else {
+                    String[] words = reply.split(" ");
+                    imported.addAndGet(Long.parseLong(words[1]));
+                    for (int i = 2; i < words.length; i++) {
+                        int colon = words[i].indexOf(':');
+                        log.warn("Line {}: {}", batch.lineNumbers()[Integer.parseInt(words[i].substring(0, colon))],
+                                words[i].substring(colon + 1));
+                        rejected.incrementAndGet();
+                    }
+                }
+                window.release();
+            }
+            throw new IOException("Central server closed the connection");
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package ir.sobhan.internship.payamresan.client.load;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Headless load run against a central server and its hosts: registers the users, creates the workspaces, joins
+ * every virtual client and then drives the configured command mix for a fixed time. See {@link LoadOptions} for
+ * the arguments. Each virtual client runs on its own virtual thread.
+ */
+@Slf4j
+public class LoadGenerator {
+    // Late deliveries of the last messages are still counted for this long after the run ends.
+    private static final long DRAIN_MILLIS = 1000;
+
+    public static void main(String[] args) throws InterruptedException {
+        LoadOptions options;
+        try {
+            options = LoadOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            log.error("{}. See LoadOptions for the available options.", e.getMessage());
+            return;
+        }
+        LoadStats stats = new LoadStats();
+        List<VirtualClient> clients = new ArrayList<>(options.users());
+        for (int i = 0; i < options.users(); i++) {
+            clients.add(new VirtualClient(i, options, stats));
+        }
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            long start = System.nanoTime();
+            // Workspace creators first, so that every workspace exists before anyone joins.
+            runPhase("create workspaces", executor, clients.subList(0, options.workspaces()), client -> client::setUp);
+            runPhase("register users", executor, clients.subList(options.workspaces(), clients.size()), client -> client::setUp);
+            log.info("Registered and logged in {} users and created {} workspaces in {} ms.", options.users(), options.workspaces(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+            runPhase("join workspaces", executor, clients, client -> client::connect);
+            log.info("All {} clients joined, running the mix {} for {} s.", options.users(), options.mix(), options.durationSeconds());
+
+            long runStart = System.nanoTime();
+            long deadline = runStart + TimeUnit.SECONDS.toNanos(options.durationSeconds());
+            runPhase("run", executor, clients, client -> () -> client.run(deadline));
+            double elapsedSeconds = (System.nanoTime() - runStart) / 1e9;
+            Thread.sleep(DRAIN_MILLIS);
+            clients.forEach(VirtualClient::close);
+
+            report(options, stats, elapsedSeconds);
+        } catch (ExecutionException e) {
+            log.error("Load run aborted: {}", e.getCause().getMessage());
+            clients.forEach(VirtualClient::close);
+        }
+    }
+
+    interface Step {
+        void run() throws Exception;
+    }
+
+    private static void runPhase(String name, ExecutorService executor, List<VirtualClient> clients,
+                                 Function<VirtualClient, Step> step) throws InterruptedException, ExecutionException {
+        List<Future<Void>> results = new ArrayList<>(clients.size());
+        for (VirtualClient client : clients) {
+            Step action = step.apply(client);
+            Callable<Void> task = () -> {
+                action.run();
+                return null;
+            };
+            results.add(executor.submit(task));
+        }
+        int failed = 0;
+        ExecutionException firstFailure = null;
+        for (Future<Void> result : results) {
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                failed++;
+                if (firstFailure == null) {
+                    firstFailure = e;
+                }
+            }
+        }
+        if (firstFailure != null) {
+            log.error("{} of {} clients failed to {}.", failed, clients.size(), name);
+            throw firstFailure;
+        }
+    }
+
+    private static void report(LoadOptions options, LoadStats stats, double elapsedSeconds) {
+        long sent = stats.sent.sum();
+        System.out.printf("Run %s: %d users in %d workspaces, %.1f s, mix %s%n", options.runId(), options.users(),
+                options.workspaces(), elapsedSeconds, options.mix());
+        System.out.printf("  messages     %d sent, %.0f msg/s, %d delivered, %d errors%n", sent, sent / elapsedSeconds,
+                stats.delivery.getCount(), stats.errors.sum());
+        if (stats.busy.sum() > 0) {
+            System.out.printf("  central      %d busy replies retried%n", stats.busy.sum());
+        }
+        System.out.printf("  connect      %s%n", stats.connect.summary());
+        System.out.printf("  delivery     %s%n", stats.delivery.summary());
+        stats.operations.entrySet().stream()
+                .filter(entry -> entry.getValue().getCount() > 0)
+                .sorted(Map.Entry.comparingByKey())
+                .forEach(entry -> System.out.printf("  %-12s %s%n", entry.getKey(), entry.getValue().summary()));
+    }
+}
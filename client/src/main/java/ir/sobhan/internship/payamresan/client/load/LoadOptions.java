@@ -0,0 +1,76 @@
+package ir.sobhan.internship.payamresan.client.load;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Settings of a load run, from {@code --name value} arguments:
+ * <pre>
+ * --central 127.0.0.1:8000   central server
+ * --users 100                virtual clients, one registered user each
+ * --workspaces 5             workspaces; user i joins workspace i % workspaces
+ * --duration 30              seconds of load after every client has joined
+ * --think-ms 0               pause between two operations of a client (0: next one as soon as the reply arrives)
+ * --mix send-message=80,get-chats=10,get-messages=10
+ * --run-id &lt;base36 time&gt;      prefix of phone numbers and workspace names, so runs don't collide
+ * </pre>
+ */
+record LoadOptions(String centralHost, int centralPort, int users, int workspaces, int durationSeconds, long thinkMillis,
+                   Map<String, Integer> mix, String runId) {
+
+    static final String SEND_MESSAGE = "send-message";
+    static final String GET_CHATS = "get-chats";
+    static final String GET_MESSAGES = "get-messages";
+
+    static LoadOptions parse(String[] args) {
+        Map<String, String> values = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                throw new IllegalArgumentException("Expected --<name> <value>, got '" + args[i] + "'");
+            }
+            values.put(args[i].substring(2), args[++i]);
+        }
+        String central = values.getOrDefault("central", "127.0.0.1:8000");
+        int colon = central.lastIndexOf(':');
+        LoadOptions options = new LoadOptions(central.substring(0, colon), Integer.parseInt(central.substring(colon + 1)),
+                Integer.parseInt(values.getOrDefault("users", "100")),
+                Integer.parseInt(values.getOrDefault("workspaces", "5")),
+                Integer.parseInt(values.getOrDefault("duration", "30")),
+                Long.parseLong(values.getOrDefault("think-ms", "0")),
+                parseMix(values.getOrDefault("mix", "send-message=80,get-chats=10,get-messages=10")),
+                values.getOrDefault("run-id", Long.toString(System.currentTimeMillis(), 36)));
+        values.keySet().removeAll(List.of("central", "users", "workspaces", "duration", "think-ms", "mix", "run-id"));
+        if (!values.isEmpty()) {
+            throw new IllegalArgumentException("Unknown options " + values.keySet());
+        }
+        if (options.workspaces < 1 || options.users < 2 * options.workspaces) {
+            throw new IllegalArgumentException("Need at least one workspace and two users per workspace");
+        }
+        return options;
+    }
+
+    private static Map<String, Integer> parseMix(String value) {
+        Map<String, Integer> mix = new LinkedHashMap<>();
+        for (String entry : value.split(",")) {
+            String[] parts = entry.split("=");
+            String operation = parts[0].trim();
+            if (!operation.equals(SEND_MESSAGE) && !operation.equals(GET_CHATS) && !operation.equals(GET_MESSAGES)) {
+                throw new IllegalArgumentException("Unknown operation '" + operation + "' in --mix");
+            }
+            mix.put(operation, Integer.parseInt(parts[1].trim()));
+        }
+        if (mix.values().stream().mapToInt(Integer::intValue).sum() <= 0) {
+            throw new IllegalArgumentException("--mix needs a positive weight");
+        }
+        return mix;
+    }
+
+    String phone(int user) {
+        return runId + "u" + user;
+    }
+
+    String workspaceName(int workspace) {
+        return runId + "ws" + workspace;
+    }
+}
@@ -0,0 +1,22 @@
+package ir.sobhan.internship.payamresan.client.load;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/** What the virtual clients of one run measured. */
+class LoadStats {
+    final LatencyRecorder connect = new LatencyRecorder();
+    final LatencyRecorder delivery = new LatencyRecorder();
+    final Map<String, LatencyRecorder> operations = Map.of(
+            LoadOptions.SEND_MESSAGE, new LatencyRecorder(),
+            LoadOptions.GET_CHATS, new LatencyRecorder(),
+            LoadOptions.GET_MESSAGES, new LatencyRecorder());
+    final LongAdder sent = new LongAdder();
+    final LongAdder errors = new LongAdder();
+    // Central commands answered with ERROR BUSY and retried.
+    final LongAdder busy = new LongAdder();
+
+    LatencyRecorder operation(String name) {
+        return operations.get(name);
+    }
+}
@@ -0,0 +1,243 @@
+package ir.sobhan.internship.payamresan.client.load;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * One simulated user: registers, joins its workspace like the CLI does ({@code connect-workspace}, then
+ * {@code connect <token>} and a username) and runs a closed loop of workspace commands. A reader thread takes
+ * {@code receive-message} pushes apart from replies; message bodies carry the send time, so the delay from a send
+ * to its delivery can be measured within this process.
+ */
+@Slf4j
+class VirtualClient {
+    private static final long REPLY_TIMEOUT_SECONDS = 10;
+    private static final int BUSY_RETRIES = 20;
+    private static final String BODY_FIELD = "\"body\":\"";
+
+    private final int index;
+    private final LoadOptions options;
+    private final LoadStats stats;
+    private final String phone;
+    private final String password;
+    private final String username;
+    private final int workspace;
+    private String sessionId;
+    private Socket workspaceSocket;
+    private PrintWriter workspaceWriter;
+    private volatile CompletableFuture<String> pendingReply;
+
+    VirtualClient(int index, LoadOptions options, LoadStats stats) {
+        this.index = index;
+        this.options = options;
+        this.stats = stats;
+        this.phone = options.phone(index);
+        this.password = "pw" + index;
+        this.username = "u" + index;
+        this.workspace = index % options.workspaces();
+    }
+
+    /** Registers the user and logs in; the first user of each workspace also creates it. */
+    void setUp() throws IOException {
+        try (Socket socket = new Socket(options.centralHost(), options.centralPort())) {
+            PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            expectOk("register", centralExchange(writer, reader, "register " + phone + " " + password));
+            String login = centralExchange(writer, reader, "login " + phone + " " + password);
+            expectOk("login", login);
+            sessionId = login.substring(3); // OK <session>
+            if (index < options.workspaces()) {
+                expectOk("create-workspace", centralExchange(writer, reader,
+                        "create-workspace " + sessionId + " " + options.workspaceName(workspace)));
+            }
+            writer.println("quit");
+        }
+    }
+
+    /** Gets a token from the central server and joins the workspace with it. */
+    void connect() throws IOException {
+        long start = System.nanoTime();
+        String[] address;
+        try (Socket socket = new Socket(options.centralHost(), options.centralPort())) {
+            PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            String reply = centralExchange(writer, reader, "connect-workspace " + sessionId + " " + options.workspaceName(workspace));
+            expectOk("connect-workspace", reply);
+            // OK <ip> <port> <token>
+            address = reply.split(" ");
+            writer.println("quit");
+        }
+        workspaceSocket = new Socket(address[1], Integer.parseInt(address[2]));
+        workspaceSocket.setTcpNoDelay(true);
+        workspaceWriter = new PrintWriter(workspaceSocket.getOutputStream(), true);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(workspaceSocket.getInputStream()));
+        String prompt = exchange(workspaceWriter, reader, "connect " + address[3]);
+        if (!"username?".equals(prompt)) {
+            throw new IOException("Workspace refused the token: " + prompt);
+        }
+        expectOk("join", exchange(workspaceWriter, reader, username));
+        stats.connect.recordNanos(System.nanoTime() - start);
+        Thread.ofVirtual().name("Load-Reader-" + index).start(() -> readWorkspace(reader));
+    }
+
+    /** Runs commands until the deadline, each after the reply to the previous one. */
+    void run(long deadlineNanos) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (System.nanoTime() < deadlineNanos && !workspaceSocket.isClosed()) {
+            String operation = pickOperation(random);
+            String command = switch (operation) {
+                case LoadOptions.SEND_MESSAGE -> "send-message " + randomPeer(random)
+                        + " {\"type\":\"text\",\"body\":\"" + System.nanoTime() + "\"}";
+                case LoadOptions.GET_MESSAGES -> "get-messages " + randomPeer(random);
+                default -> "get-chats";
+            };
+            long start = System.nanoTime();
+            try {
+                String reply = request(command);
+                stats.operation(operation).recordNanos(System.nanoTime() - start);
+                if (!reply.startsWith("OK")) {
+                    stats.errors.increment();
+                    log.debug("{} failed for {}: {}", operation, username, reply);
+                } else if (operation.equals(LoadOptions.SEND_MESSAGE)) {
+                    stats.sent.increment();
+                }
+            } catch (TimeoutException | ExecutionException e) {
+                stats.errors.increment();
+                log.warn("{} got no reply to {}: {}", username, operation, e.toString());
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (options.thinkMillis() > 0) {
+                try {
+                    Thread.sleep(options.thinkMillis());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    void close() {
+        if (workspaceSocket == null) {
+            return;
+        }
+        workspaceWriter.println("disconnect");
+        try {
+            workspaceSocket.close();
+        } catch (IOException e) {
+            log.debug("Error closing workspace socket of {}: {}", username, e.getMessage());
+        }
+    }
+
+    private String request(String command) throws InterruptedException, ExecutionException, TimeoutException {
+        CompletableFuture<String> reply = new CompletableFuture<>();
+        pendingReply = reply;
+        workspaceWriter.println(command);
+        return reply.get(REPLY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void readWorkspace(BufferedReader reader) {
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("receive-message ")) {
+                    onDelivery(line);
+                    continue;
+                }
+                CompletableFuture<String> reply = pendingReply;
+                pendingReply = null;
+                if (reply != null) {
+                    reply.complete(line);
+                } else {
+                    log.warn("{} received an unexpected line: {}", username, line);
+                }
+            }
+        } catch (IOException e) {
+            if (!workspaceSocket.isClosed()) {
+                log.warn("Workspace connection of {} lost: {}", username, e.getMessage());
+            }
+        }
+        CompletableFuture<String> reply = pendingReply;
+        if (reply != null) {
+            reply.completeExceptionally(new IOException("Workspace connection closed"));
+        }
+    }
+
+    private void onDelivery(String line) {
+        // receive-message <from> {"from":...,"body":"<send time>",...}
+        int start = line.indexOf(BODY_FIELD);
+        int end = start < 0 ? -1 : line.indexOf('"', start + BODY_FIELD.length());
+        try {
+            long sentAt = Long.parseLong(line.substring(start + BODY_FIELD.length(), end));
+            stats.delivery.recordNanos(System.nanoTime() - sentAt);
+        } catch (RuntimeException e) {
+            log.debug("{} received a message without a send time: {}", username, line);
+        }
+    }
+
+    private String pickOperation(ThreadLocalRandom random) {
+        int total = options.mix().values().stream().mapToInt(Integer::intValue).sum();
+        int pick = random.nextInt(total);
+        for (var entry : options.mix().entrySet()) {
+            pick -= entry.getValue();
+            if (pick < 0) {
+                return entry.getKey();
+            }
+        }
+        return LoadOptions.GET_CHATS;
+    }
+
+    /** Another user of the same workspace. */
+    private String randomPeer(ThreadLocalRandom random) {
+        int members = (options.users() - workspace + options.workspaces() - 1) / options.workspaces();
+        int peer;
+        do {
+            peer = workspace + random.nextInt(members) * options.workspaces();
+        } while (peer == index);
+        return "u" + peer;
+    }
+
+    private static String exchange(PrintWriter writer, BufferedReader reader, String line) throws IOException {
+        writer.println(line);
+        String reply = reader.readLine();
+        if (reply == null) {
+            throw new IOException("Connection closed before a reply to '" + line.split(" ")[0] + "'");
+        }
+        return reply;
+    }
+
+    /** Like {@link #exchange}, but waits as long as the central server asks and retries while it is busy. */
+    private String centralExchange(PrintWriter writer, BufferedReader reader, String line) throws IOException {
+        String reply = exchange(writer, reader, line);
+        for (int attempt = 0; attempt < BUSY_RETRIES && reply.startsWith("ERROR BUSY "); attempt++) {
+            stats.busy.increment();
+            try {
+                Thread.sleep(Long.parseLong(reply.substring("ERROR BUSY ".length()).trim()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while the central server was busy", e);
+            }
+            reply = exchange(writer, reader, line);
+        }
+        return reply;
+    }
+
+    private static void expectOk(String step, String reply) throws IOException {
+        if (!reply.startsWith("OK")) {
+            throw new IOException(step + " failed: " + reply);
+        }
+    }
+}
@@ -1,27 +1,62 @@
 package com.messaging.server;
 
+import com.messaging.server.admission.AdmissionControl;
+import com.messaging.server.cluster.Cluster;
+import com.messaging.server.cluster.ClusterSecret;
+import com.messaging.server.cluster.KeyHandoff;
+import com.messaging.server.cluster.Replication;
+import com.messaging.server.config.ExecutionMode;
 import com.messaging.server.handlers.ConnectionHandler;
+import com.messaging.server.metrics.ServerMetrics;
+import com.messaging.server.network.NioServer;
 import com.messaging.server.storage.DataStore;
+import com.messaging.server.storage.SnapshotFormat;
+import com.messaging.server.storage.UserStorage;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.file.Path;
 import java.util.Scanner;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 @Slf4j
 public class CentralServer {
 
-    private static final int PORT = 8000;
-    private static final int THREAD_POOL_SIZE = 50;
-    private static final String DATA_FILE_PATH = "central_server_data.json";
+    private static final int DEFAULT_PORT = 8000;
+    // Sockets are multiplexed over a few selector threads; commands run on a small worker pool
+    // or, in virtual execution mode, on one virtual thread each.
+    private static final int IO_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private static final int WORKER_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final String DATA_FILE_BASE_NAME = "central_server_data";
+    private static final String JOURNAL_DIRECTORY_NAME = "central_server_journal";
+    private static final String USER_TABLE_BASE_NAME = "central_server_users";
     private static volatile boolean isRunning = true;
 
     public static void main(String[] args) {
+        // Usage: java CentralServer [port]; several nodes on one machine keep their data apart by port.
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        String suffix = port == DEFAULT_PORT ? "" : "_" + port;
+        ClusterSecret clusterSecret = ClusterSecret.fromSystemProperties();
+        Cluster cluster = Cluster.fromSystemProperties(port, clusterSecret);
+
         // ۱. بارگذاری داده‌های قبلی در زمان راه‌اندازی
-        DataStore.getInstance().loadStateFromFile(DATA_FILE_PATH);
+        SnapshotFormat snapshotFormat = SnapshotFormat.fromSystemProperties();
+        String dataFileBaseName = DATA_FILE_BASE_NAME + suffix;
+        String dataFilePath = snapshotFormat.fileName(dataFileBaseName);
+        Path journalDirectory = Path.of(JOURNAL_DIRECTORY_NAME + suffix);
+        try {
+            DataStore.getInstance().configureUserStorage(UserStorage.fromSystemProperties(), USER_TABLE_BASE_NAME + suffix);
+        } catch (IOException e) {
+            log.error("FATAL: Could not open the user table {}", USER_TABLE_BASE_NAME + suffix, e);
+            System.exit(1);
+        }
+        DataStore.getInstance().loadStateFromFile(snapshotFormat.fileToLoad(dataFileBaseName));
+        try {
+            DataStore.getInstance().startJournal(journalDirectory, dataFilePath);
+        } catch (IOException e) {
+            log.error("FATAL: Could not open the journal in {}", journalDirectory, e);
+            System.exit(1);
+        }
 
         // ۲. راه‌اندازی یک Thread جدید برای گوش دادن به دستور shutdown
         Thread shutdownListener = new Thread(() -> {
@@ -42,37 +77,49 @@ public class CentralServer {
         shutdownListener.setDaemon(true); // این Thread با بسته شدن برنامه اصلی، بسته می‌شود
         shutdownListener.start();
 
-        ExecutorService executorService = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
+        ExecutionMode executionMode = ExecutionMode.fromSystemProperties();
+        ExecutorService commandExecutor = executionMode.newExecutor("Central-Worker-", WORKER_THREADS);
+        AdmissionControl admission = AdmissionControl.fromSystemProperties(commandExecutor);
+        ServerMetrics.getInstance().monitorExecutor(commandExecutor);
+        ServerMetrics.getInstance().monitorAdmission(admission);
+        Replication replication = Replication.fromSystemProperties(DataStore.getInstance(), dataFilePath, clusterSecret);
+        if ((cluster.isClustered() || replication.isStandby()) && !clusterSecret.isConfigured()) {
+            log.error("FATAL: Set {} on every clustered node and standby, and on the primary of a standby.", ClusterSecret.PROPERTY);
+            System.exit(1);
+        }
+        ServerMetrics.getInstance().monitorReplication(replication);
+        ServerMetrics.getInstance().startPeriodicLog();
+        NioServer server = null;
 
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            log.info("Central Server is running and listening on port {}", PORT);
+        try {
+            server = new NioServer(port, IO_THREADS, connection -> new ConnectionHandler(connection, admission, cluster, replication, clusterSecret));
+            server.start();
+            replication.start();
+            log.info("Central Server is running and listening on port {} ({} I/O threads, {} command threads)", port, IO_THREADS,
+                    executionMode == ExecutionMode.VIRTUAL ? "virtual" : WORKER_THREADS);
+            if (cluster.isClustered()) {
+                new KeyHandoff(cluster, DataStore.getInstance()).start();
+            }
 
             while (isRunning) {
-                try {
-                    // یک timeout کوتاه به accept اضافه می‌کنیم تا حلقه بتواند وضعیت isRunning را چک کند.
-                    serverSocket.setSoTimeout(1000);
-                    Socket clientSocket = serverSocket.accept();
-                    // فقط در صورتی که سرور هنوز در حال اجرا باشد، اتصال جدید را پردازش کن
-                    if (isRunning) {
-                        log.info("Accepted new connection from {}", clientSocket.getRemoteSocketAddress());
-                        executorService.submit(new ConnectionHandler(clientSocket));
-                    }
-                } catch (java.net.SocketTimeoutException e) {
-                    // این خطا طبیعی است و فقط برای این است که حلقه بتواند isRunning را چک کند.
-                    // نیازی به انجام کاری نیست.
-                } catch (IOException e) {
-                    if (isRunning) {
-                        log.error("Error accepting client connection", e);
-                    }
-                }
+                Thread.sleep(500);
             }
         } catch (IOException e) {
-            log.error("FATAL: Could not start server on port {}", PORT, e);
+            log.error("FATAL: Could not start server on port {}", port, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
             log.info("Server is shutting down...");
-            executorService.shutdown();
+            if (server != null) {
+                server.stop();
+            }
+            commandExecutor.shutdown();
+            ServerMetrics.getInstance().stopPeriodicLog();
+            cluster.close();
+            replication.close();
             // ۳. ذخیره داده‌ها قبل از خروج کامل
-            DataStore.getInstance().saveStateToFile(DATA_FILE_PATH);
+            DataStore.getInstance().saveStateToFile(dataFilePath);
+            DataStore.getInstance().closeJournal();
             log.info("Central Server has shut down completely.");
             // این خط تضمین می‌کند که برنامه به طور کامل بسته شود
             System.exit(0);
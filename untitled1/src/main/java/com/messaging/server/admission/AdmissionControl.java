@@ -0,0 +1,130 @@
+package com.messaging.server.admission;
+
+import lombok.Getter;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides whether a command is taken on or answered at once with {@code ERROR BUSY <retry-after-ms>}. At most
+ * {@code payamresan.max-pending-commands} commands may be admitted and unfinished at a time: {@link CommandPriority#BULK}
+ * commands are shed once half of them are taken, {@link CommandPriority#INTERACTIVE} ones once all are, and
+ * {@link CommandPriority#CONTROL} commands are admitted however many are pending. Each source address may also have at
+ * most {@code payamresan.max-commands-per-ip} commands pending, of any priority; only commands arriving over an
+ * authenticated link from another central node are not counted. A limit of 0 turns that check off.
+ */
+public class AdmissionControl {
+    public static final String MAX_PENDING_PROPERTY = "payamresan.max-pending-commands";
+    public static final String MAX_PER_SOURCE_PROPERTY = "payamresan.max-commands-per-ip";
+    private static final long BASE_RETRY_AFTER_MS = 100;
+    private static final long MAX_RETRY_AFTER_MS = 5000;
+
+    private final Executor[] executors = new Executor[CommandPriority.values().length];
+    @Getter
+    private final int capacity;
+    private final int perSourceLimit;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final ConcurrentHashMap<InetAddress, Integer> pendingBySource = new ConcurrentHashMap<>();
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder shedOverloaded = new LongAdder();
+    private final LongAdder shedPerSource = new LongAdder();
+
+    public AdmissionControl(Executor executor, int capacity, int perSourceLimit) {
+        for (CommandPriority priority : CommandPriority.values()) {
+            executors[priority.ordinal()] = task -> executor.execute(PriorityThreadPool.prioritized(priority, task));
+        }
+        this.capacity = capacity;
+        this.perSourceLimit = perSourceLimit;
+    }
+
+    public static AdmissionControl fromSystemProperties(Executor executor) {
+        return new AdmissionControl(executor, Integer.getInteger(MAX_PENDING_PROPERTY, 2048),
+                Integer.getInteger(MAX_PER_SOURCE_PROPERTY, 256));
+    }
+
+    /**
+     * Takes on a command from {@code source}, or null for one from an authenticated central node.
+     * Every admitted command must be {@link #release released} once it has been answered.
+     */
+    public boolean tryAdmit(CommandPriority priority, InetAddress source) {
+        if (source != null && perSourceLimit > 0 && !tryAcquireSource(source)) {
+            shedPerSource.increment();
+            return false;
+        }
+        if (priority == CommandPriority.CONTROL) {
+            pending.incrementAndGet();
+            admitted.increment();
+            return true;
+        }
+        int limit = capacity <= 0 ? Integer.MAX_VALUE : priority == CommandPriority.BULK ? capacity / 2 : capacity;
+        int current;
+        do {
+            current = pending.get();
+            if (current >= limit) {
+                if (source != null && perSourceLimit > 0) {
+                    releaseSource(source);
+                }
+                shedOverloaded.increment();
+                return false;
+            }
+        } while (!pending.compareAndSet(current, current + 1));
+        admitted.increment();
+        return true;
+    }
+
+    public void release(CommandPriority priority, InetAddress source) {
+        pending.decrementAndGet();
+        if (source != null && perSourceLimit > 0) {
+            releaseSource(source);
+        }
+    }
+
+    /** The reply to a shed command; the hint grows with the backlog and is jittered so retries spread out. */
+    public String busyReply() {
+        long hint = BASE_RETRY_AFTER_MS * (1 + 4L * pending.get() / Math.max(1, capacity));
+        hint += ThreadLocalRandom.current().nextLong(hint / 2 + 1);
+        return "ERROR BUSY " + Math.min(hint, MAX_RETRY_AFTER_MS);
+    }
+
+    /** Runs tasks ahead of lower priorities when the command executor is a {@link PriorityThreadPool}. */
+    public Executor executor(CommandPriority priority) {
+        return executors[priority.ordinal()];
+    }
+
+    public int getPending() {
+        return pending.get();
+    }
+
+    public long getAdmitted() {
+        return admitted.sum();
+    }
+
+    public long getShedOverloaded() {
+        return shedOverloaded.sum();
+    }
+
+    public long getShedPerSource() {
+        return shedPerSource.sum();
+    }
+
+    private boolean tryAcquireSource(InetAddress source) {
+        boolean[] acquired = new boolean[1];
+        pendingBySource.compute(source, (address, count) -> {
+            int current = count == null ? 0 : count;
+            if (current >= perSourceLimit) {
+                return count;
+            }
+            acquired[0] = true;
+            return current + 1;
+        });
+        return acquired[0];
+    }
+
+    private void releaseSource(InetAddress source) {
+        pendingBySource.computeIfPresent(source, (address, count) -> count == 1 ? null : count - 1);
+    }
+}
@@ -0,0 +1,36 @@
+package com.messaging.server.admission;
+
+/** Which commands go first when the Central Server is busy; declared from most to least urgent. */
+public enum CommandPriority {
+    /** Host links, traffic between central nodes and standbys, {@code whois}, {@code stats} and {@code quit}: never shed for load. */
+    CONTROL,
+    /** Commands a user is waiting on. */
+    INTERACTIVE,
+    /** Work that can wait, such as {@code register} and {@code register-bulk}; shed first. */
+    BULK;
+
+    /** The priority of a command from a client or host; null is an unknown opcode. */
+    public static CommandPriority of(String command) {
+        if (command == null) {
+            return INTERACTIVE;
+        }
+        return switch (command) {
+            case "whois", "create-host", "stats", "quit" -> CONTROL;
+            case "register", "register-bulk" -> BULK;
+            default -> INTERACTIVE;
+        };
+    }
+
+    /** The priority of a command sent, or forwarded, by an authenticated central node. */
+    public static CommandPriority ofPeer(String command) {
+        if (command == null) {
+            return INTERACTIVE;
+        }
+        return switch (command) {
+            case "place-workspace", "release-workspace", "adopt-user", "adopt-workspace", "adopt-session",
+                 "verify-password", "resolve-session", "workspace-page", "inbox-part", "workspace-at", "replicate",
+                 "promote" -> CONTROL;
+            default -> of(command);
+        };
+    }
+}
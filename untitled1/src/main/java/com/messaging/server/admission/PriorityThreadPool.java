@@ -0,0 +1,42 @@
+package com.messaging.server.admission;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed pool whose queued tasks run by {@link CommandPriority}, and in submission order within one priority.
+ * Tasks not wrapped with {@link #prioritized} run as {@link CommandPriority#INTERACTIVE}.
+ */
+public class PriorityThreadPool extends ThreadPoolExecutor {
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    public PriorityThreadPool(int threads, ThreadFactory threadFactory) {
+        super(threads, threads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(), threadFactory);
+    }
+
+    public static Runnable prioritized(CommandPriority priority, Runnable task) {
+        return new PrioritizedTask(priority, SEQUENCE.getAndIncrement(), task);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        super.execute(task instanceof PrioritizedTask ? task : prioritized(CommandPriority.INTERACTIVE, task));
+    }
+
+    private record PrioritizedTask(CommandPriority priority, long sequence, Runnable task)
+            implements Runnable, Comparable<PrioritizedTask> {
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask other) {
+            int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.messaging.server.auth;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Issues workspace join tokens that a host can verify on its own, using the key it received at
+ * {@code create-host} registration. Format: {@code s1.<payload>.<hmac>}, both parts base64url, where
+ * the payload is {@code phone|workspace|port|expiryMillis|nonce}.
+ */
+public final class SignedTokenIssuer {
+    public static final String ENABLED_PROPERTY = "payamresan.signed-tokens";
+    public static final String PREFIX = "s1.";
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int KEY_LENGTH_BYTES = 32;
+    private static final int NONCE_LENGTH_BYTES = 12;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+    private SignedTokenIssuer() {
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.getBoolean(ENABLED_PROPERTY);
+    }
+
+    public static byte[] newKey() {
+        byte[] key = new byte[KEY_LENGTH_BYTES];
+        RANDOM.nextBytes(key);
+        return key;
+    }
+
+    public static String encodeKey(byte[] key) {
+        return ENCODER.encodeToString(key);
+    }
+
+    public static String issue(byte[] key, String phoneNumber, String workspaceName, int port, long ttlMillis) {
+        byte[] nonce = new byte[NONCE_LENGTH_BYTES];
+        RANDOM.nextBytes(nonce);
+        String payload = phoneNumber + "|" + workspaceName + "|" + port + "|"
+                + (System.currentTimeMillis() + ttlMillis) + "|" + ENCODER.encodeToString(nonce);
+        byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+            return PREFIX + ENCODER.encodeToString(payloadBytes) + "." + ENCODER.encodeToString(mac.doFinal(payloadBytes));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(MAC_ALGORITHM + " is not available", e);
+        }
+    }
+}
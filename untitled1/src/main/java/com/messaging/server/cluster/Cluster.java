@@ -0,0 +1,97 @@
+package com.messaging.server.cluster;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The central nodes that share users (keyed by phone number), workspaces (by name) and join tokens (by value) on a
+ * consistent-hash ring. Configured with {@code -Dpayamresan.cluster=<host:port>,<host:port>,...}, listing every node
+ * including this one; this node is the entry with its own listening port unless {@code payamresan.cluster.self}
+ * names it. Without the property the server runs alone and owns every key. Nodes authenticate to each other with the
+ * {@link ClusterSecret}, which every node of a cluster must set.
+ */
+@Slf4j
+public final class Cluster {
+    public static final String NODES_PROPERTY = "payamresan.cluster";
+    public static final String SELF_PROPERTY = "payamresan.cluster.self";
+
+    @Getter
+    private final String self;
+    private final HashRing ring;
+    private final Map<String, PeerClient> peers = new LinkedHashMap<>();
+    // Peer calls block on a socket, so each one gets a virtual thread.
+    private final ExecutorService peerExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("Cluster-Peer-", 0).factory());
+
+    Cluster(String self, List<String> nodes, ClusterSecret secret) {
+        this.self = self;
+        this.ring = new HashRing(nodes);
+        for (String node : nodes) {
+            if (!node.equals(self)) {
+                peers.put(node, new PeerClient(node, secret));
+            }
+        }
+    }
+
+    public static Cluster fromSystemProperties(int port, ClusterSecret secret) {
+        String value = System.getProperty(NODES_PROPERTY, "").trim();
+        if (value.isEmpty()) {
+            String self = "127.0.0.1:" + port;
+            return new Cluster(self, List.of(self), secret);
+        }
+        List<String> nodes = Arrays.stream(value.split(",")).map(String::trim).filter(node -> !node.isEmpty()).distinct().toList();
+        String self = System.getProperty(SELF_PROPERTY);
+        if (self == null) {
+            self = nodes.stream().filter(node -> node.endsWith(":" + port)).findFirst().orElse(null);
+        }
+        if (self == null || !nodes.contains(self)) {
+            throw new IllegalArgumentException(NODES_PROPERTY + " '" + value + "' does not list this node (port " + port
+                    + "); set " + SELF_PROPERTY + " to its entry");
+        }
+        log.info("Central node {} of a cluster of {}: {}", self, nodes.size(), nodes);
+        return new Cluster(self, nodes, secret);
+    }
+
+    public boolean isClustered() {
+        return !peers.isEmpty();
+    }
+
+    public String ownerOf(String key) {
+        return isClustered() ? ring.ownerOf(key) : self;
+    }
+
+    public boolean isLocal(String key) {
+        return ownerOf(key).equals(self);
+    }
+
+    /** The other nodes, in configuration order. */
+    public List<String> getPeers() {
+        return new ArrayList<>(peers.keySet());
+    }
+
+    /**
+     * Sends one command line to another node and completes with its reply. Fails with an
+     * {@link UncheckedIOException} if the node cannot be reached.
+     */
+    public CompletableFuture<String> send(String node, String line) {
+        PeerClient peer = peers.get(node);
+        if (peer == null) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Unknown central node " + node));
+        }
+        return CompletableFuture.supplyAsync(() -> peer.exchange(line), peerExecutor);
+    }
+
+    public void close() {
+        peers.values().forEach(PeerClient::close);
+        peerExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,43 @@
+package com.messaging.server.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * The secret shared by central nodes and their standbys, set with {@code -Dpayamresan.cluster.secret=<secret>}.
+ * A node opens each connection to another one with {@code peer <secret>}; only a connection that did so may send the
+ * commands nodes exchange among themselves. Without the property no connection is accepted as a peer.
+ */
+public final class ClusterSecret {
+    public static final String PROPERTY = "payamresan.cluster.secret";
+    public static final String COMMAND = "peer";
+
+    // Null when no secret is configured.
+    private final byte[] secret;
+
+    ClusterSecret(String secret) {
+        this.secret = secret == null ? null : secret.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static ClusterSecret fromSystemProperties() {
+        String value = System.getProperty(PROPERTY, "").trim();
+        if (value.chars().anyMatch(Character::isWhitespace)) {
+            throw new IllegalArgumentException(PROPERTY + " may not contain whitespace");
+        }
+        return new ClusterSecret(value.isEmpty() ? null : value);
+    }
+
+    public boolean isConfigured() {
+        return secret != null;
+    }
+
+    /** Whether {@code presented} is the configured secret; compared in constant time. */
+    public boolean matches(String presented) {
+        return secret != null && MessageDigest.isEqual(secret, presented.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** The first line a node sends on a connection to another node. */
+    String greeting() {
+        return COMMAND + " " + new String(secret, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,49 @@
+package com.messaging.server.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent-hash ring over node addresses. Each node is placed at {@link #VIRTUAL_NODES} points so keys spread
+ * evenly, and adding or removing a node only moves the keys between its points and their predecessors, about 1/N.
+ * Hashes come from MD5 so every node computes the same ring regardless of JVM.
+ */
+final class HashRing {
+    static final int VIRTUAL_NODES = 160;
+
+    private final TreeMap<Long, String> points = new TreeMap<>();
+
+    HashRing(List<String> nodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A hash ring needs at least one node");
+        }
+        for (String node : nodes) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                points.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    String ownerOf(String key) {
+        Map.Entry<Long, String> point = points.ceilingEntry(hash(key));
+        return (point != null ? point : points.firstEntry()).getValue();
+    }
+
+    private static long hash(String value) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (digest[i] & 0xFF);
+        }
+        return hash;
+    }
+}
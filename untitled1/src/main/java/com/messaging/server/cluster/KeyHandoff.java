@@ -0,0 +1,126 @@
+package com.messaging.server.cluster;
+
+import com.messaging.server.models.Host;
+import com.messaging.server.models.Session;
+import com.messaging.server.models.User;
+import com.messaging.server.models.Workspace;
+import com.messaging.server.storage.DataStore;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves the users, workspaces and login sessions this node stores but no longer owns, e.g. after a node was added to
+ * the ring, to their owners with {@code adopt-user} / {@code adopt-workspace} / {@code adopt-session}, and forgets
+ * each one once its owner confirms.
+ * Keys whose owner cannot be reached are retried until every key has moved.
+ */
+@Slf4j
+public class KeyHandoff implements Runnable {
+    private static final long RETRY_DELAY_SECONDS = 5;
+
+    private final Cluster cluster;
+    private final DataStore dataStore;
+
+    public KeyHandoff(Cluster cluster, DataStore dataStore) {
+        this.cluster = cluster;
+        this.dataStore = dataStore;
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, "Key-Handoff");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!handOffOnce()) {
+                TimeUnit.SECONDS.sleep(RETRY_DELAY_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Returns true once nothing is left to move. */
+    private boolean handOffOnce() {
+        // Only the foreign users are copied out; the table itself may be far larger than the heap.
+        List<User> users = new ArrayList<>();
+        dataStore.forEachUser(user -> {
+            if (!cluster.ownerOf(user.getPhoneNumber()).equals(cluster.getSelf())) {
+                users.add(user);
+            }
+        });
+        List<Workspace> workspaces = dataStore.getWorkspaces();
+        List<Session> sessions = dataStore.getSessions();
+        // A node that failed once is skipped for the rest of the round instead of timing out on every key.
+        Set<String> unreachable = new HashSet<>();
+        int foreignUsers = 0, movedUsers = 0, foreignWorkspaces = 0, movedWorkspaces = 0, foreignSessions = 0, movedSessions = 0;
+        for (User user : users) {
+            String owner = cluster.ownerOf(user.getPhoneNumber());
+            foreignUsers++;
+            if (adopted(owner, unreachable, "adopt-user " + user.getPhoneNumber() + " " + user.getPassword())) {
+                dataStore.removeUser(user.getPhoneNumber());
+                movedUsers++;
+            }
+        }
+        for (Workspace workspace : workspaces) {
+            String owner = cluster.ownerOf(workspace.getName());
+            if (owner.equals(cluster.getSelf())) {
+                continue;
+            }
+            foreignWorkspaces++;
+            Host host = workspace.getHost();
+            String command = "adopt-workspace " + workspace.getName() + " " + host.getAddress() + " " + host.getStartPort() + " "
+                    + host.getEndPort() + " " + workspace.getPort() + " " + workspace.getCreatorPhoneNumber();
+            if (adopted(owner, unreachable, command)) {
+                dataStore.handOffWorkspace(workspace.getName());
+                movedWorkspaces++;
+            }
+        }
+        for (Session session : sessions) {
+            String owner = cluster.ownerOf(session.getId());
+            if (owner.equals(cluster.getSelf())) {
+                continue;
+            }
+            foreignSessions++;
+            if (adopted(owner, unreachable, "adopt-session " + session.getId() + " " + session.getPhoneNumber() + " "
+                    + session.getExpiryTimeMillis())) {
+                dataStore.closeSession(session.getId());
+                movedSessions++;
+            }
+        }
+        if (foreignUsers > 0 || foreignWorkspaces > 0 || foreignSessions > 0) {
+            log.info("Handed off {} of {} foreign user(s) ({} stored), {} of {} foreign workspace(s) ({} stored) and {} of {} foreign session(s) ({} stored).",
+                    movedUsers, foreignUsers, dataStore.getUserCount(), movedWorkspaces, foreignWorkspaces, workspaces.size(),
+                    movedSessions, foreignSessions, sessions.size());
+        }
+        return movedUsers == foreignUsers && movedWorkspaces == foreignWorkspaces && movedSessions == foreignSessions;
+    }
+
+    private boolean adopted(String owner, Set<String> unreachable, String command) {
+        if (unreachable.contains(owner)) {
+            return false;
+        }
+        try {
+            // Forwarded like any command routed to its owner, so the owner runs it without routing it again.
+            String reply = cluster.send(owner, "fwd " + command).join();
+            if (!reply.startsWith("OK")) {
+                log.warn("Node {} refused '{}': {}", owner, command.substring(0, command.indexOf(' ')), reply);
+                return false;
+            }
+            return true;
+        } catch (CompletionException e) {
+            log.warn("Could not hand off to {}, retrying in {} s: {}", owner, RETRY_DELAY_SECONDS, e.getCause().getMessage());
+            unreachable.add(owner);
+            return false;
+        }
+    }
+}
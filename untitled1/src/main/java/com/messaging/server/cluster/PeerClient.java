@@ -0,0 +1,113 @@
+package com.messaging.server.cluster;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Sends commands to one other central node over pooled client sessions, one command at a time per session. Each
+ * session opens with the {@link ClusterSecret}. The peer closes sessions that stay idle, so a failure on a pooled
+ * session is retried once on a new one.
+ */
+@Slf4j
+final class PeerClient {
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+    private static final int READ_TIMEOUT_MS = 15_000;
+
+    private final String node;
+    private final InetSocketAddress address;
+    private final ClusterSecret secret;
+    private final ConcurrentLinkedQueue<Session> idleSessions = new ConcurrentLinkedQueue<>();
+
+    PeerClient(String node, ClusterSecret secret) {
+        this.node = node;
+        this.secret = secret;
+        int colon = node.lastIndexOf(':');
+        this.address = new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+    }
+
+    /** Blocks until the peer answers; throws {@link UncheckedIOException} if it cannot be reached. */
+    String exchange(String line) {
+        while (true) {
+            Session session = idleSessions.poll();
+            boolean pooled = session != null;
+            try {
+                if (session == null) {
+                    session = new Session(address, secret);
+                }
+                String reply = session.exchange(line);
+                idleSessions.offer(session);
+                return reply;
+            } catch (IOException e) {
+                if (session != null) {
+                    session.close();
+                }
+                // A timed-out command may still run on the peer, so only a stale session is worth a retry.
+                if (!pooled || e instanceof SocketTimeoutException) {
+                    throw new UncheckedIOException("Central node " + node + " is unreachable", e);
+                }
+                log.debug("Pooled session to {} failed, retrying on a new one: {}", node, e.getMessage());
+            }
+        }
+    }
+
+    void close() {
+        Session session;
+        while ((session = idleSessions.poll()) != null) {
+            session.close();
+        }
+    }
+
+    private static final class Session {
+        private final Socket socket;
+        private final PrintWriter writer;
+        private final BufferedReader reader;
+
+        Session(InetSocketAddress address, ClusterSecret secret) throws IOException {
+            socket = new Socket();
+            try {
+                socket.connect(address, CONNECT_TIMEOUT_MS);
+                socket.setSoTimeout(READ_TIMEOUT_MS);
+                socket.setTcpNoDelay(true);
+                writer = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+                reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                String reply = exchange(secret.greeting());
+                if (!reply.startsWith("OK")) {
+                    throw new IOException("Peer refused the cluster secret: " + reply);
+                }
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        String exchange(String line) throws IOException {
+            writer.println(line);
+            if (writer.checkError()) {
+                throw new IOException("Write failed");
+            }
+            String reply = reader.readLine();
+            if (reply == null) {
+                throw new IOException("Session closed by peer");
+            }
+            return reply;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Nothing left to release.
+            }
+        }
+    }
+}
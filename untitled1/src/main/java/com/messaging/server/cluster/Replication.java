@@ -0,0 +1,135 @@
+package com.messaging.server.cluster;
+
+import com.messaging.server.network.NioConnection;
+import com.messaging.server.storage.DataStore;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hot-standby replication. A node started with {@code -Dpayamresan.standby-of=<host:port>} streams every mutation of
+ * that primary into its own store (and its own journal), answers {@code login}, {@code whois} and the workspace
+ * listings itself, and refuses other writes until it is promoted with {@code promote}. Any node serves standbys that
+ * show the {@link ClusterSecret}: each such {@code replicate} connection gets a {@link ReplicationFeed}.
+ */
+@Slf4j
+public final class Replication {
+    public static final String PRIMARY_PROPERTY = "payamresan.standby-of";
+    private static final long HEARTBEAT_INTERVAL_MS = 1000;
+
+    private final DataStore dataStore;
+    // The node this one replicates, or null once it is (or has become) a primary.
+    private volatile String primary;
+    private final PeerClient primaryClient;
+    private final StandbyReplicator replicator;
+    private final Set<ReplicationFeed> feeds = ConcurrentHashMap.newKeySet();
+    private final ExecutorService primaryExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("Primary-Call-", 0).factory());
+    private final ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "Replication-Heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    Replication(String primary, DataStore dataStore, String snapshotPath, ClusterSecret secret) {
+        this.primary = primary;
+        this.dataStore = dataStore;
+        this.primaryClient = primary == null ? null : new PeerClient(primary, secret);
+        this.replicator = primary == null ? null : new StandbyReplicator(primary, dataStore, snapshotPath, secret);
+    }
+
+    public static Replication fromSystemProperties(DataStore dataStore, String snapshotPath, ClusterSecret secret) {
+        String primary = System.getProperty(PRIMARY_PROPERTY, "").trim();
+        return new Replication(primary.isEmpty() ? null : primary, dataStore, snapshotPath, secret);
+    }
+
+    public void start() {
+        heartbeats.scheduleAtFixedRate(() -> feeds.forEach(ReplicationFeed::heartbeat),
+                HEARTBEAT_INTERVAL_MS, HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        if (replicator != null) {
+            log.info("Running as a read-only standby of {}.", primary);
+            replicator.start();
+        }
+    }
+
+    public boolean isStandby() {
+        return primary != null;
+    }
+
+    /** Whether this standby holds its primary's whole state: not while a bootstrap runs, still while the primary is away. */
+    public boolean isSynced() {
+        return replicator != null && replicator.isSynced();
+    }
+
+    public String getPrimary() {
+        return primary;
+    }
+
+    /**
+     * Sends one command line to the primary and completes with its reply. Fails with an
+     * {@link UncheckedIOException} if it cannot be reached.
+     */
+    public CompletableFuture<String> sendToPrimary(String line) {
+        if (!isStandby()) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Not a standby"));
+        }
+        return CompletableFuture.supplyAsync(() -> primaryClient.exchange(line), primaryExecutor);
+    }
+
+    /** Stops replicating and takes writes from now on; false if this node is not a standby. */
+    public synchronized boolean promote() {
+        if (!isStandby()) {
+            return false;
+        }
+        long started = System.nanoTime();
+        replicator.stop();
+        String former = primary;
+        primary = null;
+        primaryClient.close();
+        log.warn("Promoted to primary in {} ms; no longer replicating from {} ({} records applied).",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started), former, replicator.getApplied());
+        return true;
+    }
+
+    /** Turns a connection that sent {@code replicate} into a feed for the standby on the other end. */
+    public ReplicationFeed openFeed(NioConnection connection) {
+        ReplicationFeed feed = new ReplicationFeed(connection, dataStore, this);
+        feeds.add(feed);
+        log.info("Standby {} connected for replication.", connection.getRemoteAddress());
+        return feed;
+    }
+
+    void feedClosed(ReplicationFeed feed) {
+        feeds.remove(feed);
+    }
+
+    public List<ReplicationFeed> getFeeds() {
+        return List.copyOf(feeds);
+    }
+
+    /** Records applied from the primary since the last (re)connect, or 0 on a primary. */
+    public long getApplied() {
+        return replicator == null ? 0 : replicator.getApplied();
+    }
+
+    /** When the primary was last heard from, or 0 on a primary. */
+    public long getLastContactMillis() {
+        return replicator == null ? 0 : replicator.getLastContactMillis();
+    }
+
+    public void close() {
+        if (isStandby()) {
+            replicator.stop();
+            primaryClient.close();
+        }
+        heartbeats.shutdownNow();
+        primaryExecutor.shutdownNow();
+    }
+}
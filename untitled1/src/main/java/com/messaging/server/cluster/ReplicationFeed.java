@@ -0,0 +1,124 @@
+package com.messaging.server.cluster;
+
+import com.messaging.server.network.NioConnection;
+import com.messaging.server.storage.DataStore;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * The primary's end of a standby's {@code replicate} connection. Once the standby acknowledges the OK, the feed sends
+ * the whole state as {@code m <mutation>} lines, then {@code synced}, then every further mutation as it is applied.
+ * Mutations made during the bootstrap are held back until it is done, so the standby sees them after the state they
+ * change. The standby reports {@code ack <count>} of the records it applied; a standby that falls too far behind is
+ * dropped and starts over when it reconnects.
+ */
+@Slf4j
+public final class ReplicationFeed implements Consumer<String> {
+    private static final long MAX_UNACKNOWLEDGED = 1_000_000;
+    // The bootstrap waits for acknowledgements beyond this, so a slow standby does not pile it up in memory here.
+    private static final long BOOTSTRAP_WINDOW = 50_000;
+    private static final long IDLE_TIMEOUT_SECONDS = 10;
+
+    private final NioConnection connection;
+    private final DataStore dataStore;
+    private final Replication replication;
+    // Live mutations held back while the bootstrap runs; null once it is done.
+    private List<String> heldBack = new ArrayList<>();
+    private long sent;
+    private volatile long acknowledged;
+    private volatile boolean started;
+
+    ReplicationFeed(NioConnection connection, DataStore dataStore, Replication replication) {
+        this.connection = connection;
+        this.dataStore = dataStore;
+        this.replication = replication;
+        connection.setIdleTimeout(IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS); // acks arrive every second
+    }
+
+    /** A line from the standby. */
+    public void onLine(String line) {
+        if (!line.startsWith("ack ")) {
+            log.warn("Unexpected line from standby {}: {}", connection.getRemoteAddress(), line);
+            return;
+        }
+        acknowledged = Long.parseLong(line.substring(4));
+        if (!started) {
+            started = true;
+            Thread.ofVirtual().name("Replication-Feed").start(this::bootstrap);
+        }
+    }
+
+    private void bootstrap() {
+        long startedAt = System.nanoTime();
+        dataStore.addReplica(this);
+        dataStore.writeReplicaBootstrap(line -> {
+            while (sentSoFar() - acknowledged > BOOTSTRAP_WINDOW && connection.isOpen()) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (connection.isOpen()) {
+                send(line);
+            }
+        });
+        int releasedCount;
+        synchronized (this) {
+            releasedCount = heldBack.size();
+            heldBack.forEach(this::send);
+            heldBack = null;
+            connection.send("synced");
+        }
+        log.info("Standby {} bootstrapped with {} records ({} held back) in {} ms.", connection.getRemoteAddress(),
+                sentSoFar(), releasedCount, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+    }
+
+    @Override
+    public synchronized void accept(String line) {
+        if (heldBack != null) {
+            heldBack.add(line);
+            return;
+        }
+        send(line);
+        if (sent - acknowledged > MAX_UNACKNOWLEDGED) {
+            log.warn("Standby {} is {} records behind; dropping it.", connection.getRemoteAddress(), sent - acknowledged);
+            connection.close();
+        }
+    }
+
+    private synchronized void send(String line) {
+        sent++;
+        connection.send("m " + line);
+    }
+
+    private synchronized long sentSoFar() {
+        return sent;
+    }
+
+    /** Lets the standby tell a quiet primary from a lost one. */
+    void heartbeat() {
+        connection.send("hb");
+    }
+
+    /** Records sent but not yet applied by the standby. */
+    public long getLag() {
+        return Math.max(0, sentSoFar() - acknowledged);
+    }
+
+    public String getStandbyAddress() {
+        return String.valueOf(connection.getRemoteAddress());
+    }
+
+    /** Called once the connection is closed. */
+    public void close() {
+        dataStore.removeReplica(this);
+        replication.feedClosed(this);
+        log.warn("Standby {} disconnected.", connection.getRemoteAddress());
+    }
+}
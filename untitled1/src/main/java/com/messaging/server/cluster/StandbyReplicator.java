@@ -0,0 +1,173 @@
+package com.messaging.server.cluster;
+
+import com.messaging.server.storage.DataStore;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a standby's {@link DataStore} a copy of its primary's: connects with the {@link ClusterSecret} and
+ * {@code fwd replicate}, empties the store and snapshots it empty, applies the primary's bootstrap and then its live mutations, and acknowledges what it applied once a second.
+ * A lost connection is retried; every reconnect starts over with a fresh bootstrap.
+ */
+@Slf4j
+final class StandbyReplicator implements Runnable {
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+    // The primary sends a heartbeat every second, so this much silence means it is gone.
+    private static final int READ_TIMEOUT_MS = 5000;
+    private static final long RETRY_DELAY_MS = 1000;
+    private static final long ACK_INTERVAL_MS = 1000;
+    // Acknowledged in between as well, so the primary's bootstrap window keeps moving.
+    private static final long ACK_EVERY_RECORDS = 10_000;
+
+    private final String primary;
+    private final InetSocketAddress address;
+    private final DataStore dataStore;
+    private final String snapshotPath;
+    private final ClusterSecret secret;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile Socket socket;
+    @Getter
+    private volatile boolean synced;
+    @Getter
+    private volatile long applied;
+    @Getter
+    private volatile long lastContactMillis;
+
+    StandbyReplicator(String primary, DataStore dataStore, String snapshotPath, ClusterSecret secret) {
+        this.primary = primary;
+        int colon = primary.lastIndexOf(':');
+        this.address = new InetSocketAddress(primary.substring(0, colon), Integer.parseInt(primary.substring(colon + 1)));
+        this.dataStore = dataStore;
+        this.snapshotPath = snapshotPath;
+        this.secret = secret;
+        this.thread = new Thread(this, "Standby-Replicator");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                replicate();
+            } catch (IOException e) {
+                if (running) {
+                    log.warn("Replication from primary {} interrupted: {}", primary, e.getMessage());
+                }
+            }
+            synchronized (this) {
+                try {
+                    if (running) {
+                        wait(RETRY_DELAY_MS); // cut short by stop()
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void replicate() throws IOException {
+        try (Socket connection = new Socket()) {
+            socket = connection;
+            connection.connect(address, CONNECT_TIMEOUT_MS);
+            connection.setSoTimeout(READ_TIMEOUT_MS);
+            PrintWriter writer = new PrintWriter(connection.getOutputStream(), true, StandardCharsets.UTF_8);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+            writer.println(secret.greeting());
+            String reply = reader.readLine();
+            if (!"OK".equals(reply)) {
+                throw new IOException("Primary refused the cluster secret: " + reply);
+            }
+            writer.println("fwd replicate");
+            reply = reader.readLine();
+            if (!"OK".equals(reply)) {
+                throw new IOException("Primary refused replication: " + reply);
+            }
+            // Until the bootstrap is through, the store holds only part of the state. Before that, and while the
+            // primary is unreachable, it keeps the last state it had.
+            synced = false;
+            dataStore.resetForReplica();
+            // The journal still holds the records from before the reset; a snapshot of the empty store drops them.
+            if (!dataStore.saveStateToFile(snapshotPath)) {
+                throw new IOException("Could not snapshot the emptied store");
+            }
+            applied = 0;
+            long started = System.nanoTime();
+            Thread acknowledger = Thread.ofVirtual().name("Standby-Ack").start(() -> acknowledge(connection, writer));
+            log.info("Replicating from primary {}.", primary);
+            try {
+                String line;
+                while (running && (line = reader.readLine()) != null) {
+                    lastContactMillis = System.currentTimeMillis();
+                    if (line.startsWith("m ")) {
+                        dataStore.applyReplicated(line.substring(2));
+                        if (++applied % ACK_EVERY_RECORDS == 0) {
+                            writer.println("ack " + applied);
+                        }
+                    } else if (line.equals("synced")) {
+                        synced = true;
+                        log.info("Caught up with primary {}: {} records in {} ms.", primary, applied,
+                                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+                        // Spares a restart replaying the whole bootstrap from the journal.
+                        Thread.ofVirtual().name("Standby-Snapshot").start(() -> dataStore.saveStateToFile(snapshotPath));
+                    }
+                }
+                if (running) {
+                    throw new IOException("Primary closed the connection");
+                }
+            } finally {
+                acknowledger.interrupt();
+            }
+        } finally {
+            socket = null;
+        }
+    }
+
+    private void acknowledge(Socket connection, PrintWriter writer) {
+        // The first ack starts the bootstrap.
+        while (!connection.isClosed()) {
+            writer.println("ack " + applied);
+            try {
+                TimeUnit.MILLISECONDS.sleep(ACK_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /** Stops replicating; returns once no further mutation will be applied. */
+    void stop() {
+        running = false;
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException ignored) {
+                // Closing only unblocks the reader.
+            }
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+        // Not interrupted: an interrupt would close the file channels a mutation may be writing to.
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.messaging.server.config;
+
+import com.messaging.server.admission.PriorityThreadPool;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * How command handlers are scheduled. Selected with {@code -Dpayamresan.execution-mode=platform|virtual}.
+ */
+@Slf4j
+public enum ExecutionMode {
+    PLATFORM,
+    VIRTUAL;
+
+    public static final String PROPERTY = "payamresan.execution-mode";
+
+    public static ExecutionMode fromSystemProperties() {
+        String value = System.getProperty(PROPERTY, PLATFORM.name());
+        try {
+            return valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            log.warn("Unknown execution mode '{}', falling back to {}.", value, PLATFORM);
+            return PLATFORM;
+        }
+    }
+
+    /**
+     * A fixed pool of {@code platformThreads} that runs queued commands by priority in platform mode, one virtual
+     * thread per task otherwise.
+     */
+    public ExecutorService newExecutor(String threadNamePrefix, int platformThreads) {
+        if (this == VIRTUAL) {
+            return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(threadNamePrefix, 0).factory());
+        }
+        return new PriorityThreadPool(platformThreads, Thread.ofPlatform().name(threadNamePrefix, 0).factory());
+    }
+}
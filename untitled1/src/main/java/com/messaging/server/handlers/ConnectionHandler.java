@@ -1,287 +1,1292 @@
 package com.messaging.server.handlers;
 
+import com.messaging.server.admission.AdmissionControl;
+import com.messaging.server.admission.CommandPriority;
+import com.messaging.server.auth.SignedTokenIssuer;
+import com.messaging.server.cluster.Cluster;
+import com.messaging.server.cluster.ClusterSecret;
+import com.messaging.server.cluster.Replication;
+import com.messaging.server.cluster.ReplicationFeed;
+import com.messaging.server.metrics.ServerMetrics;
 import com.messaging.server.models.*;
+import com.messaging.server.network.Frame;
+import com.messaging.server.network.LineHandler;
+import com.messaging.server.network.NioConnection;
+import com.messaging.server.network.WireProtocol;
+import com.messaging.server.placement.PlacementStrategy;
 import com.messaging.server.storage.DataStore;
 import lombok.extern.slf4j.Slf4j;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 @Slf4j
-public class ConnectionHandler implements Runnable {
+public class ConnectionHandler implements LineHandler {
 
-    private final Socket socket;
+    private static final int VERIFICATION_CONNECT_TIMEOUT_MS = 3000;
+    // The verification connect blocks for up to its timeout, so it gets a virtual thread instead of a command worker.
+    private static final Executor VERIFICATION_EXECUTOR = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("Host-Verification-", 0).factory());
+    private static final long SESSION_IDLE_TIMEOUT_MINUTES = 5;
+    private static final long HOST_REQUEST_TIMEOUT_SECONDS = 10;
+    // How long get-inbox waits for hosts; whatever has not answered by then is left out and the reply says partial.
+    public static final String INBOX_DEADLINE_PROPERTY = "payamresan.inbox-deadline-ms";
+    private static final long INBOX_DEADLINE_MS = Long.getLong(INBOX_DEADLINE_PROPERTY, 1000);
+    // Other central nodes wait the same deadline for their hosts, so they get this much longer to answer.
+    private static final long INBOX_PEER_MARGIN_MS = 500;
+    // Pipelined commands beyond this many pause reading from the socket until the backlog halves.
+    private static final int MAX_PIPELINED_COMMANDS = 128;
+    private static final boolean SIGNED_TOKENS = SignedTokenIssuer.isEnabled();
+    private static final PlacementStrategy PLACEMENT = PlacementStrategy.fromSystemProperties();
+    // Prefix of a command another central node has already routed here.
+    private static final String FORWARDED = "fwd";
+    // Bulk commands run to tens of kilobytes; only their start goes to the log.
+    private static final int MAX_LOGGED_LINE = 200;
+    private static final String NO_AVAILABLE_HOSTS = "ERROR No available hosts";
+    private static final String UNKNOWN_HOST = "ERROR Unknown host";
+    private static final String PORT_RANGE_CHANGE_BLOCKED = "ERROR Host still has workspaces on its registered port range";
+    private static final String RANDOM_ID_CHARS = "abcdefghijklmnopqrstuvwxyz0123456789";
+    private static final int SESSION_ID_LENGTH = 24; // about 124 random bits
+    private static final int DEFAULT_PAGE_SIZE = 50;
+    private static final int MAX_PAGE_SIZE = 500;
+    // Stands for an omitted prefix or cursor, and for the cursor after the last page.
+    private static final String NONE = "-";
+    // What a standby answers itself; every other command is a write only its primary takes.
+    private static final Set<String> STANDBY_COMMANDS = Set.of("login", "whois", "list-workspaces", "my-workspaces",
+            "stats", "quit", "promote");
+    // Only accepted on a connection that opened with the cluster secret; to anyone else they do not exist.
+    private static final Set<String> PEER_COMMANDS = Set.of("place-workspace", "release-workspace", "adopt-user",
+            "adopt-workspace", "adopt-session", "verify-password", "resolve-session", "workspace-page", "inbox-part",
+            "workspace-at", "replicate", "promote");
+
+    private final NioConnection connection;
     private final DataStore dataStore;
-    private BufferedReader reader;
-    private PrintWriter writer;
-    private boolean keepConnectionAlive = false;
+    private final AdmissionControl admission;
+    // Host links and the create-host handshake are never shed and run ahead of client commands.
+    private final Executor controlExecutor;
+    private final InetAddress sourceAddress;
+    private final Cluster cluster;
+    private final Replication replication;
+    private final ClusterSecret clusterSecret;
+    private final ServerMetrics metrics = ServerMetrics.getInstance();
+    // Commands of one connection run one after another; the chain is only touched on the event loop thread.
+    private CompletableFuture<Void> pipeline = CompletableFuture.completedFuture(null);
+    // Set while a handshake waits for the next line from the peer.
+    private CompletableFuture<String> pendingRead;
+    private final AtomicInteger commandsInFlight = new AtomicInteger();
+    private volatile HostConnection hostConnection;
+    private volatile ReplicationFeed replicationFeed;
+    // Set once the other end has shown the cluster secret.
+    private volatile boolean authenticatedPeer;
+    private volatile boolean quitRequested;
 
-    public ConnectionHandler(Socket socket) {
-        this.socket = socket;
+    public ConnectionHandler(NioConnection connection, AdmissionControl admission, Cluster cluster, Replication replication,
+                             ClusterSecret clusterSecret) {
+        this.connection = connection;
+        this.admission = admission;
+        this.controlExecutor = admission.executor(CommandPriority.CONTROL);
+        this.sourceAddress = connection.getRemoteAddress() instanceof InetSocketAddress address ? address.getAddress() : null;
+        this.cluster = cluster;
+        this.replication = replication;
+        this.clusterSecret = clusterSecret;
         this.dataStore = DataStore.getInstance();
+        metrics.connectionOpened();
+        // A connection is a session: clients may send any number of commands, pipelined or not.
+        connection.setIdleTimeout(SESSION_IDLE_TIMEOUT_MINUTES, TimeUnit.MINUTES);
     }
 
     @Override
-    public void run() {
-        try {
-            setupStreams();
-            String commandLine = reader.readLine();
-            if (commandLine != null) {
-                log.info("Received command from [{}]: {}", socket.getRemoteSocketAddress(), commandLine);
-                processInitialCommand(commandLine);
-            }
-        } catch (IOException e) {
-            log.error("IO error with connection [{}]: {}", socket.getRemoteSocketAddress(), e.getMessage());
-        } finally {
-            if (!keepConnectionAlive) {
-                closeConnection();
+    public void onLine(String line) {
+        HostConnection host = hostConnection;
+        if (host != null) {
+            if (line.startsWith("req ")) {
+                controlExecutor.execute(() -> handleHostRequest(host, line));
             } else {
-                log.info("Connection for {} will be kept alive.", socket.getRemoteSocketAddress());
+                host.onMessage(line);
             }
+            return;
+        }
+        ReplicationFeed feed = replicationFeed;
+        if (feed != null) {
+            feed.onLine(line);
+            return;
+        }
+        CompletableFuture<String> read;
+        synchronized (this) {
+            read = pendingRead;
+            pendingRead = null;
+        }
+        if (read != null) {
+            read.complete(line);
+            return;
+        }
+        String[] words = line.split(" ");
+        String command = words[0].toLowerCase();
+        log.info("Received command from [{}]: {}", connection.getRemoteAddress(), command.equals(ClusterSecret.COMMAND) ? command + " ***"
+                : line.length() > MAX_LOGGED_LINE ? line.substring(0, MAX_LOGGED_LINE) + "... (" + line.length() + " chars)" : line);
+        String[] args = Arrays.copyOfRange(words, 1, words.length);
+        enqueue(0, line, command, args, () -> processInitialCommand(command, args, line, 0));
+    }
+
+    @Override
+    public void onFrame(Frame frame) {
+        HostConnection host = hostConnection;
+        if (host != null) {
+            switch (frame.opcode()) {
+                case WireProtocol.WHOIS_BATCH -> controlExecutor.execute(() -> handleHostRequest(host, frame.requestId(), "whois-batch", frame.fieldArray()));
+                case WireProtocol.SYNC_WORKSPACES -> controlExecutor.execute(() -> handleHostRequest(host, frame.requestId(), "sync-workspaces", frame.fieldArray()));
+                default -> host.onFrame(frame);
+            }
+            return;
+        }
+        CompletableFuture<String> read;
+        synchronized (this) {
+            read = pendingRead;
+            pendingRead = null;
+        }
+        if (read != null) {
+            // Handshake steps arrive as frames but are awaited as the lines they replace.
+            read.complete(frame.opcode() == WireProtocol.CHECK ? "check" : frame.fields().isEmpty() ? "" : frame.field(0));
+            return;
+        }
+        String command = WireProtocol.commandName(frame.opcode());
+        log.info("Received command from [{}]: {} {}", connection.getRemoteAddress(), command, frame.fields().size());
+        enqueue(frame.requestId(), command, command, frame.fieldArray(), () -> command == null ? CompletableFuture.completedFuture("ERROR Unknown command")
+                : processInitialCommand(command, frame.fieldArray(), null, frame.requestId()));
+    }
+
+    /**
+     * Runs commands one after another so that replies leave in the order the commands arrived. A command that
+     * admission control sheds is answered with {@code ERROR BUSY} in its turn, without taking up a worker.
+     */
+    private void enqueue(long requestId, String description, String name, String[] args, Supplier<CompletableFuture<String>> command) {
+        if (commandsInFlight.incrementAndGet() == MAX_PIPELINED_COMMANDS) {
+            connection.setReadingEnabled(false);
+        }
+        // A node's commands were admitted by the node a client sent them to, and count against that client's address there.
+        boolean peer = authenticatedPeer;
+        CommandPriority priority = !peer ? CommandPriority.of(name)
+                : CommandPriority.ofPeer(FORWARDED.equals(name) && args.length > 0 ? args[0].toLowerCase() : name);
+        InetAddress source = peer ? null : sourceAddress;
+        if (!admission.tryAdmit(priority, source)) {
+            String busy = admission.busyReply();
+            log.debug("Shed {} from [{}]: {}", name, connection.getRemoteAddress(), busy);
+            pipeline = pipeline.thenAccept(ignored -> respond(requestId, busy));
+            return;
+        }
+        long queuedAt = System.nanoTime();
+        metrics.commandQueued();
+        pipeline = pipeline
+                .thenComposeAsync(ignored -> {
+                    metrics.commandStarted(System.nanoTime() - queuedAt);
+                    return command.get();
+                }, admission.executor(priority))
+                .exceptionally(e -> failureReply(description, e))
+                .thenAccept(response -> {
+                    admission.release(priority, source);
+                    respond(requestId, response);
+                });
+    }
+
+    /** The answer to a command that failed instead of producing a reply. */
+    private String failureReply(String description, Throwable e) {
+        if ((e instanceof CompletionException ? e.getCause() : e) instanceof IOException) {
+            log.error("Could not save the change made by a command from [{}]: {}", connection.getRemoteAddress(), description, e);
+            return "ERROR Could not save the change";
+        }
+        log.error("Error processing command from [{}]: {}", connection.getRemoteAddress(), description, e);
+        return "ERROR Invalid command format.";
+    }
+
+    @Override
+    public void onClose() {
+        metrics.connectionClosed();
+        CompletableFuture<String> read;
+        synchronized (this) {
+            read = pendingRead;
+            pendingRead = null;
+        }
+        if (read != null) {
+            read.completeExceptionally(new IOException("Connection closed during handshake"));
+        }
+        HostConnection host = hostConnection;
+        if (host != null) {
+            host.onClosed();
+            dataStore.unregisterActiveHostConnection(host);
+            log.warn("Persistent connection to host {} was closed.", host.getHostId());
+        }
+        ReplicationFeed feed = replicationFeed;
+        if (feed != null) {
+            feed.close();
         }
     }
 
-    private void setupStreams() throws IOException {
-        reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        writer = new PrintWriter(socket.getOutputStream(), true);
+    private void respond(long requestId, String response) {
+        reply(requestId, response);
+        if (quitRequested) {
+            connection.closeAfterFlush();
+        }
+        if (commandsInFlight.decrementAndGet() == MAX_PIPELINED_COMMANDS / 2) {
+            connection.setReadingEnabled(true);
+        }
     }
 
-    private void processInitialCommand(String commandLine) throws IOException {
-        String[] parts = commandLine.split(" ", 2);
-        String command = parts[0].toLowerCase();
+    private void reply(long requestId, String response) {
+        if (connection.isBinary()) {
+            connection.sendFrame(Frame.reply(requestId, response));
+        } else {
+            connection.send(response);
+        }
+    }
+
+    /** Returns a future for the next line the peer sends; must be called before the peer is prompted. */
+    private synchronized CompletableFuture<String> expectLine() {
+        pendingRead = new CompletableFuture<>();
+        return pendingRead;
+    }
+
+    /** Runs or forwards a command, recording the latency of tracked client commands. */
+    private CompletableFuture<String> processInitialCommand(String command, String[] args, String line, long requestId) {
+        ServerMetrics.CommandMetrics commandMetrics = metrics.command(FORWARDED.equals(command) && args.length > 0 ? args[0].toLowerCase() : command);
+        if (commandMetrics == null) {
+            return routeCommand(command, args, line, requestId);
+        }
+        long start = System.nanoTime();
+        return routeCommand(command, args, line, requestId).whenComplete((response, error) ->
+                commandMetrics.record(System.nanoTime() - start, error != null || response.startsWith("ERROR")));
+    }
+
+    /**
+     * Runs a command here or forwards it to the node that owns its key. {@code line} is the command as received
+     * in text form, or null if it arrived as a frame.
+     */
+    private CompletableFuture<String> routeCommand(String command, String[] args, String line, long requestId) {
+        if (FORWARDED.equals(command)) {
+            if (!authenticatedPeer) {
+                log.warn("Refused a forwarded command from [{}], which is not an authenticated central node.", connection.getRemoteAddress());
+                return CompletableFuture.completedFuture("ERROR Unknown command");
+            }
+            // Already routed by another node, so it runs here even if the two disagree about the ring.
+            return args.length > 0 ? executeCommand(args[0].toLowerCase(), Arrays.copyOfRange(args, 1, args.length), requestId)
+                    : CompletableFuture.completedFuture("ERROR Invalid command format.");
+        }
+        String key = routingKey(command, args);
+        if (key != null && !cluster.isLocal(key)) {
+            String owner = cluster.ownerOf(key);
+            String forwarded = line != null ? line : command + " " + String.join(" ", args);
+            return cluster.send(owner, FORWARDED + " " + forwarded).exceptionally(e -> {
+                log.warn("Could not forward '{}' to central node {}: {}", command, owner, e.getMessage());
+                return "ERROR Central node " + owner + " is unavailable";
+            });
+        }
+        return executeCommand(command, args, requestId);
+    }
+
+    /**
+     * The key that decides which node runs a command: the phone for users, the name for workspaces, the token for
+     * whois and the session id for logout.
+     */
+    private static String routingKey(String command, String[] args) {
+        if (args.length == 0) {
+            return null;
+        }
+        return switch (command) {
+            case "register", "login", "whois", "logout" -> args[0];
+            // <session> <workspace> or <phone> <password> <workspace>
+            case "create-workspace", "delete-workspace", "connect-workspace" ->
+                    args.length == 2 || args.length == 3 ? args[args.length - 1] : null;
+            default -> null;
+        };
+    }
 
+    private CompletableFuture<String> executeCommand(String command, String[] args, long requestId) {
+        if (command.equals(ClusterSecret.COMMAND)) {
+            return CompletableFuture.completedFuture(handlePeer(args));
+        }
+        if (PEER_COMMANDS.contains(command) && !authenticatedPeer) {
+            log.warn("Refused '{}' from [{}], which is not an authenticated central node.", command, connection.getRemoteAddress());
+            return CompletableFuture.completedFuture("ERROR Unknown command");
+        }
+        if (replication.isStandby()) {
+            if (!STANDBY_COMMANDS.contains(command)) {
+                return CompletableFuture.completedFuture("ERROR Read-only standby of " + replication.getPrimary());
+            }
+            if (!replication.isSynced() && !command.equals("promote") && !command.equals("quit")) {
+                return CompletableFuture.completedFuture("ERROR Standby is not in sync with " + replication.getPrimary());
+            }
+        }
         switch (command) {
-            case "register": handleRegister(parts); break;
-            case "login": handleLogin(parts); break;
-            case "create-host": handleCreateHost(parts); break;
-            case "create-workspace": handleCreateWorkspace(parts); break;
-            case "connect-workspace": handleConnectWorkspace(parts); break;
-            case "whois": handleWhois(parts); break;
-            default: writer.println("ERROR Unknown command");
+            case "register": return handleRegister(args);
+            case "register-bulk": return handleRegisterBulk(args);
+            case "login": return replication.isStandby() ? handleStandbyLogin(args) : handleLogin(args);
+            case "logout": return handleLogout(args);
+            case "create-host": return handleCreateHost(args, requestId);
+            case "create-workspace": return handleCreateWorkspace(args);
+            case "delete-workspace": return handleDeleteWorkspace(args);
+            case "connect-workspace": return handleConnectWorkspace(args);
+            case "whois": return replication.isStandby() ? handleStandbyWhois(args) : CompletableFuture.completedFuture(handleWhois(args));
+            case "promote": return CompletableFuture.completedFuture(replication.promote() ? "OK" : "ERROR Not a standby");
+            case "stats": return CompletableFuture.completedFuture("OK " + metrics.toJson());
+            case "list-workspaces": return handleListWorkspaces(args);
+            case "my-workspaces": return handleMyWorkspaces(args);
+            case "get-inbox": return handleGetInbox(args);
+            // Sent between central nodes only.
+            case "place-workspace": return handlePlaceWorkspace(args);
+            case "release-workspace": return handleReleaseWorkspace(args);
+            case "adopt-user": return handleAdoptUser(args);
+            case "adopt-workspace": return handleAdoptWorkspace(args);
+            case "adopt-session": return handleAdoptSession(args);
+            case "verify-password": return CompletableFuture.completedFuture(handleVerifyPassword(args));
+            case "resolve-session": return CompletableFuture.completedFuture(handleResolveSession(args));
+            case "workspace-page": return CompletableFuture.completedFuture(handleWorkspacePage(args));
+            case "inbox-part": return handleInboxPart(args);
+            case "workspace-at": return CompletableFuture.completedFuture(handleWorkspaceAt(args));
+            case "replicate": return CompletableFuture.completedFuture(handleReplicate());
+            case "quit":
+                quitRequested = true;
+                return CompletableFuture.completedFuture("OK");
+            default: return CompletableFuture.completedFuture("ERROR Unknown command");
         }
     }
 
-    private void handleCreateHost(String[] parts) throws IOException {
-        // ... (validation logic as before) ...
+    private CompletableFuture<String> handleCreateHost(String[] args, long requestId) {
+        if (args.length != 3) {
+            return CompletableFuture.completedFuture("ERROR Invalid command format. Use: create-host <address> <startPort> <endPort>");
+        }
         String address = "127.0.0.1"; // Assuming localhost for simplicity
-        int startPort = Integer.parseInt(parts[1].split(" ")[1]);
-        int endPort = Integer.parseInt(parts[1].split(" ")[2]);
+        int startPort = Integer.parseInt(args[1]);
+        int endPort = Integer.parseInt(args[2]);
+        if (startPort > endPort) {
+            return CompletableFuture.completedFuture("ERROR Invalid port range.");
+        }
+        if (dataStore.isPortRangeInUse(new Host(address, startPort, endPort))) {
+            return CompletableFuture.completedFuture("ERROR Port range overlaps another host.");
+        }
+        if (dataStore.isPortRangeChangeBlocked(new Host(address, startPort, endPort))) {
+            return CompletableFuture.completedFuture(PORT_RANGE_CHANGE_BLOCKED);
+        }
 
         // --- Handshake ---
-        int randomPort = ThreadLocalRandom.current().nextInt(startPort, endPort + 1);
-        writer.println("OK " + randomPort);
-        String checkResponse = reader.readLine();
-        if (checkResponse == null || !checkResponse.equalsIgnoreCase("check")) {
-            writer.println("ERROR Invalid handshake sequence.");
-            return;
-        }
-        String verificationCode = String.format("%010d", new SecureRandom().nextLong(1_000_000_000L, 10_000_000_000L));
-        try (Socket verificationSocket = new Socket(address, randomPort)) {
+        int randomPort = pickVerificationPort(address, startPort, endPort);
+        CompletableFuture<String> checkResponse = expectLine();
+        reply(requestId, "OK " + randomPort);
+
+        return checkResponse.thenComposeAsync(check -> {
+            if (check == null || !check.equalsIgnoreCase("check")) {
+                return CompletableFuture.completedFuture("ERROR Invalid handshake sequence.");
+            }
+            String verificationCode = String.format("%010d", new SecureRandom().nextLong(1_000_000_000L, 10_000_000_000L));
+            CompletableFuture<String> codeFromHost = expectLine();
+            return CompletableFuture.supplyAsync(() -> sendVerificationCode(address, randomPort, verificationCode), VERIFICATION_EXECUTOR)
+                    .thenCompose(sent -> !sent ? CompletableFuture.completedFuture("ERROR Could not connect to host on verification port.")
+                            : codeFromHost.thenComposeAsync(code -> verificationCode.equals(code) ? registerHostLink(address, startPort, endPort)
+                                    : CompletableFuture.completedFuture("ERROR Invalid code"), controlExecutor));
+        }, controlExecutor);
+    }
+
+    private CompletableFuture<String> registerHostLink(String address, int startPort, int endPort) {
+        Host requested = new Host(address, startPort, endPort);
+        return dataStore.registerHost(requested).thenApply(registered -> {
+            if (registered.isEmpty()) {
+                return dataStore.isPortRangeChangeBlocked(requested) ? PORT_RANGE_CHANGE_BLOCKED : "ERROR Port range overlaps another host.";
+            }
+            Host host = registered.get();
+            HostConnection hostConn = new HostConnection(host, connection);
+            dataStore.registerActiveHostConnection(host.getId(), hostConn);
+            connection.setIdleTimeout(0, TimeUnit.MINUTES); // The host link stays open while the host is up.
+            this.hostConnection = hostConn;
+            return "OK " + SignedTokenIssuer.encodeKey(host.getTokenKey());
+        });
+    }
+
+    /** Connects to the port the host was told to open and writes the code; false if the host cannot be reached. */
+    private static boolean sendVerificationCode(String address, int port, String verificationCode) {
+        try (Socket verificationSocket = new Socket()) {
+            verificationSocket.connect(new InetSocketAddress(address, port), VERIFICATION_CONNECT_TIMEOUT_MS);
             new PrintWriter(verificationSocket.getOutputStream(), true).println(verificationCode);
+            return true;
         } catch (IOException e) {
-            writer.println("ERROR Could not connect to host on verification port.");
-            return;
-        }
-        String codeFromHost = reader.readLine();
-        if (verificationCode.equals(codeFromHost)) {
-            Host host = new Host(address, startPort, endPort);
-            HostConnection connection = new HostConnection(socket, writer, reader);
-            dataStore.registerHost(host);
-            dataStore.registerActiveHostConnection(host.getId(), connection);
-            writer.println("OK");
-            this.keepConnectionAlive = true; // CRITICAL: Signal to not close this connection.
-        } else {
-            writer.println("ERROR Invalid code");
+            return false;
         }
     }
 
-    private void handleCreateWorkspace(String[] parts) {
-        String[] args = parts[1].split(" ");
-        String phone = args[0], password = args[1], workspaceName = args[2];
+    private int pickVerificationPort(String address, int startPort, int endPort) {
+        // A reconnecting host keeps serving its workspaces, so avoid the ports they are known to hold.
+        Host known = dataStore.findHost(address + ":" + startPort).orElse(null);
+        int port = ThreadLocalRandom.current().nextInt(startPort, endPort + 1);
+        for (int attempt = 0; known != null && known.isPortUsed(port) && attempt < 16; attempt++) {
+            port = ThreadLocalRandom.current().nextInt(startPort, endPort + 1);
+        }
+        return port;
+    }
 
-        if (dataStore.findUser(phone).filter(u -> u.getPassword().equals(password)).isEmpty()) {
-            writer.println("ERROR Invalid credentials"); return;
+    private CompletableFuture<String> handleCreateWorkspace(String[] args) {
+        if (args.length != 2 && args.length != 3) {
+            return CompletableFuture.completedFuture("ERROR Invalid command format. Use: create-workspace <session> <workspace>");
         }
-        if (dataStore.isWorkspaceNameTaken(workspaceName)) {
-            writer.println("ERROR Workspace name is already taken"); return;
+        String workspaceName = args[args.length - 1];
+
+        return authenticate(args).thenCompose(caller -> {
+            if (caller.isEmpty()) {
+                return CompletableFuture.completedFuture(authenticationError(args));
+            }
+            String phone = caller.get();
+            // Held across the host round trip, so two creators of one name cannot both get a port.
+            if (!dataStore.reserveWorkspaceName(workspaceName)) {
+                return CompletableFuture.completedFuture("ERROR Workspace name is already taken");
+            }
+            return placeWorkspace(phone).thenCompose(placement -> {
+                if (!placement.startsWith("OK ")) {
+                    return CompletableFuture.completedFuture(placement);
+                }
+                // OK <address> <startPort> <endPort> <port>
+                String[] p = placement.split(" ");
+                int startPort = Integer.parseInt(p[2]), endPort = Integer.parseInt(p[3]), port = Integer.parseInt(p[4]);
+                // A host linked to another node is only known here by its coordinates.
+                Host host = dataStore.findHost(p[1] + ":" + startPort).orElseGet(() -> new Host(p[1], startPort, endPort));
+                return dataStore.createWorkspace(new Workspace(workspaceName, host, port, phone)).thenApply(ignored -> {
+                    log.info("Successfully created workspace '{}' on host {}", workspaceName, host.getId());
+                    return "OK " + host.getAddress() + " " + port;
+                });
+            }).whenComplete((reply, error) -> dataStore.releaseWorkspaceName(workspaceName));
+        });
+    }
+
+    /**
+     * Starts a workspace on a host linked to this node or, if none can take it, on one linked to another node.
+     * Replies {@code OK <address> <startPort> <endPort> <port>} or an error.
+     */
+    private CompletableFuture<String> placeWorkspace(String phone) {
+        CompletableFuture<String> placement = placeOnLocalHost(phone);
+        for (String peer : cluster.getPeers()) {
+            placement = placement.thenCompose(reply -> !NO_AVAILABLE_HOSTS.equals(reply) ? CompletableFuture.completedFuture(reply)
+                    : cluster.send(peer, FORWARDED + " place-workspace " + phone).exceptionally(e -> NO_AVAILABLE_HOSTS));
         }
+        return placement;
+    }
 
-        Optional<Host> hostOpt = dataStore.getRandomAvailableHost();
-        if (hostOpt.isEmpty()) {
-            writer.println("ERROR No available hosts"); return;
+    private CompletableFuture<String> placeOnLocalHost(String phone) {
+        HostConnection hostConn = PLACEMENT.choose(dataStore.getPlacementCandidates());
+        if (hostConn == null) {
+            return CompletableFuture.completedFuture(NO_AVAILABLE_HOSTS);
         }
-        Host host = hostOpt.get();
+        Host host = hostConn.getHost();
         int port = host.getAvailablePort();
         if (port == -1) {
-            writer.println("ERROR Selected host has no available ports"); return;
+            return CompletableFuture.completedFuture("ERROR Selected host has no available ports");
         }
+        hostConn.recordPlacement();
 
-        Optional<HostConnection> connOpt = dataStore.getActiveHostConnection(host.getId());
-        if (connOpt.isEmpty()) {
-            writer.println("ERROR Host is registered but its connection is lost.");
-            dataStore.removeHost(host.getId()); // Cleanup inconsistent state
-            return;
-        }
+        log.debug("Sending create-workspace command to host {}", host.getId());
+        return hostConn.sendRequest("create-workspace " + port + " " + phone, HOST_REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .handle((hostResponse, failure) -> {
+                    Throwable error = failure instanceof CompletionException ? failure.getCause() : failure;
+                    if (error instanceof TimeoutException) {
+                        log.warn("Host {} did not answer create-workspace for port {} in time.", host.getId(), port);
+                        return "ERROR Host did not respond in time.";
+                    }
+                    if (error != null) {
+                        log.error("Lost connection to host {} during create-workspace.", host.getId(), error);
+                        dataStore.removeHost(host.getId()); // The host is offline, remove it.
+                        return "ERROR Communication with host failed.";
+                    }
+                    log.debug("Received response from host {}: {}", host.getId(), hostResponse);
+                    if (hostResponse.equalsIgnoreCase("OK")) {
+                        return "OK " + host.getAddress() + " " + host.getStartPort() + " " + host.getEndPort() + " " + port;
+                    }
+                    log.warn("Host {} failed to create workspace on port {}", host.getId(), port);
+                    host.releasePort(port);
+                    return "ERROR Host failed to create workspace.";
+                });
+    }
 
-        HostConnection hostConnection = connOpt.get();
-        // Synchronize on the connection object to ensure thread safety
-        synchronized (hostConnection) {
-            try {
-                log.debug("Sending create-workspace command to host {}", host.getId());
-                hostConnection.getWriter().println("create-workspace " + port + " " + phone);
+    private CompletableFuture<String> handlePlaceWorkspace(String[] args) {
+        // Internal: another node owns the workspace record and only needs one of this node's hosts to run it.
+        if (args.length != 1) {
+            return CompletableFuture.completedFuture("ERROR Invalid command format. Use: place-workspace <phone>");
+        }
+        return placeOnLocalHost(args[0]);
+    }
 
-                // Block and wait for the host's response on the persistent connection
-                String hostResponse = hostConnection.getReader().readLine();
-                log.debug("Received response from host {}: {}", host.getId(), hostResponse);
+    private CompletableFuture<String> handleDeleteWorkspace(String[] args) {
+        if (args.length != 2 && args.length != 3) {
+            return CompletableFuture.completedFuture("ERROR Invalid command format. Use: delete-workspace <session> <workspace>");
+        }
+        String workspaceName = args[args.length - 1];
 
-                if (hostResponse != null && hostResponse.equalsIgnoreCase("OK")) {
-                    Workspace workspace = new Workspace(workspaceName, host, port, phone);
-                    dataStore.createWorkspace(workspace);
-                    writer.println("OK " + host.getAddress() + " " + port);
-                    log.info("Successfully created workspace '{}' on host {}", workspaceName, host.getId());
-                } else {
-                    writer.println("ERROR Host failed to create workspace.");
-                    log.warn("Host {} failed to create workspace on port {}", host.getId(), port);
+        return authenticate(args).thenCompose(caller -> {
+            if (caller.isEmpty()) {
+                return CompletableFuture.completedFuture(authenticationError(args));
+            }
+            String phone = caller.get();
+            Optional<Workspace> wsOpt = dataStore.findWorkspace(workspaceName);
+            if (wsOpt.isEmpty()) {
+                return CompletableFuture.completedFuture("ERROR Workspace not found");
+            }
+            Workspace workspace = wsOpt.get();
+            if (!workspace.getCreatorPhoneNumber().equals(phone)) {
+                return CompletableFuture.completedFuture("ERROR Only the creator can delete a workspace");
+            }
+            String hostId = workspace.getHost().getId();
+            return stopOnHost(hostId, workspace.getPort()).thenCompose(reply -> {
+                if (UNKNOWN_HOST.equals(reply)) {
+                    if (dataStore.findHost(hostId).isPresent()) {
+                        return CompletableFuture.completedFuture("ERROR Host is not connected.");
+                    }
+                    reply = "OK"; // The host is gone for good, so is the workspace.
+                }
+                if (!reply.equals("OK")) {
+                    return CompletableFuture.completedFuture(reply);
                 }
-            } catch (IOException e) {
-                writer.println("ERROR Communication with host failed.");
-                log.error("Lost connection to host {} during create-workspace.", host.getId(), e);
-                dataStore.removeHost(host.getId()); // The host is offline, remove it.
+                return dataStore.deleteWorkspace(workspaceName).thenApply(ignored -> {
+                    log.info("Deleted workspace '{}' on host {}, port {} is free again", workspaceName, hostId, workspace.getPort());
+                    return "OK";
+                });
+            });
+        });
+    }
+
+    /** Stops the workspace on whichever node the host is linked to; {@link #UNKNOWN_HOST} if it is linked nowhere. */
+    private CompletableFuture<String> stopOnHost(String hostId, int port) {
+        CompletableFuture<String> stopped = stopOnLocalHost(hostId, port);
+        for (String peer : cluster.getPeers()) {
+            stopped = stopped.thenCompose(reply -> !UNKNOWN_HOST.equals(reply) ? CompletableFuture.completedFuture(reply)
+                    : cluster.send(peer, FORWARDED + " release-workspace " + hostId + " " + port).exceptionally(e -> UNKNOWN_HOST));
+        }
+        return stopped;
+    }
+
+    private CompletableFuture<String> stopOnLocalHost(String hostId, int port) {
+        Optional<HostConnection> connOpt = dataStore.getActiveHostConnection(hostId).filter(c -> c.getConnection().isOpen());
+        if (connOpt.isEmpty()) {
+            return CompletableFuture.completedFuture(UNKNOWN_HOST);
+        }
+        return connOpt.get().sendRequest("delete-workspace " + port, HOST_REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .handle((hostResponse, failure) -> {
+                    Throwable error = failure instanceof CompletionException ? failure.getCause() : failure;
+                    if (error instanceof TimeoutException) {
+                        return "ERROR Host did not respond in time.";
+                    }
+                    if (error != null) {
+                        log.error("Lost connection to host {} during delete-workspace.", hostId, error);
+                        return "ERROR Communication with host failed.";
+                    }
+                    if (!hostResponse.equalsIgnoreCase("OK")) {
+                        log.warn("Host {} failed to delete workspace on port {}: {}", hostId, port, hostResponse);
+                        return "ERROR Host failed to delete workspace.";
+                    }
+                    return "OK";
+                });
+    }
+
+    private CompletableFuture<String> handleReleaseWorkspace(String[] args) {
+        // Internal: release-workspace <hostId> <port>, for a workspace whose record lives on another node.
+        if (args.length != 2) {
+            return CompletableFuture.completedFuture("ERROR Invalid command format. Use: release-workspace <hostId> <port>");
+        }
+        String hostId = args[0];
+        int port = Integer.parseInt(args[1]);
+        return stopOnLocalHost(hostId, port).thenApply(reply -> {
+            if (reply.equals("OK")) {
+                dataStore.findHost(hostId).ifPresent(host -> host.releasePort(port));
             }
+            return reply;
+        });
+    }
+
+    /**
+     * The phone of the caller of a workspace command, which starts with either {@code <session>} or
+     * {@code <phone> <password>}; empty if the session or the credentials are not valid.
+     */
+    private CompletableFuture<Optional<String>> authenticate(String[] args) {
+        if (args.length == 2) {
+            return resolveSession(args[0]);
         }
+        String phone = args[0];
+        return checkCredentials(phone, args[1]).thenApply(valid -> valid ? Optional.of(phone) : Optional.empty());
     }
 
-    // Other handlers (register, login, connect-workspace, whois) remain largely the same
+    private static String authenticationError(String[] args) {
+        return args.length == 2 ? "ERROR Invalid or expired session" : "ERROR Invalid credentials";
+    }
 
-    private void handleRegister(String[] parts) {
-        if (parts.length != 2) {
-            writer.println("ERROR Invalid command format. Use: register <phone> <password>");
-            return;
+    /** One map probe if this node owns the session id, else one round trip to the node that does. */
+    private CompletableFuture<Optional<String>> resolveSession(String sessionId) {
+        if (cluster.isLocal(sessionId)) {
+            return CompletableFuture.completedFuture(dataStore.findSession(sessionId).map(Session::getPhoneNumber));
         }
-        String[] args = parts[1].split(" ");
+        return cluster.send(cluster.ownerOf(sessionId), FORWARDED + " resolve-session " + sessionId)
+                .handle((reply, error) -> error == null && reply.startsWith("OK ") ? Optional.of(reply.substring(3)) : Optional.empty());
+    }
+
+    /** Checks a password against the local copy of the user if there is one, else on the node that owns the user. */
+    private CompletableFuture<Boolean> checkCredentials(String phone, String password) {
+        Optional<User> user = dataStore.findUser(phone);
+        if (user.isPresent() || cluster.isLocal(phone)) {
+            return CompletableFuture.completedFuture(user.filter(u -> u.getPassword().equals(password)).isPresent());
+        }
+        return cluster.send(cluster.ownerOf(phone), FORWARDED + " verify-password " + phone + " " + password)
+                .handle((reply, error) -> error == null && "OK".equals(reply));
+    }
+
+    private String handleVerifyPassword(String[] args) {
+        // Internal: verify-password <phone> <password>, a login that opens no session.
         if (args.length != 2) {
-            writer.println("ERROR Invalid command format. Use: register <phone> <password>");
-            return;
+            return "ERROR Invalid command format. Use: verify-password <phone> <password>";
+        }
+        return dataStore.findUser(args[0]).filter(user -> user.getPassword().equals(args[1])).isPresent()
+                ? "OK" : "ERROR Invalid credentials";
+    }
+
+    private String handleResolveSession(String[] args) {
+        // Internal: resolve-session <session>, asked of the node that owns the session id.
+        if (args.length != 1) {
+            return "ERROR Invalid command format. Use: resolve-session <session>";
+        }
+        return dataStore.findSession(args[0]).map(session -> "OK " + session.getPhoneNumber())
+                .orElse("ERROR Invalid or expired session");
+    }
+
+    private CompletableFuture<String> handleAdoptSession(String[] args) {
+        // Internal: adopt-session <session> <phone> <expiryTimeMillis>, for a session id this node now owns.
+        if (args.length != 3) {
+            return CompletableFuture.completedFuture("ERROR Invalid command format. Use: adopt-session <session> <phone> <expiryTimeMillis>");
+        }
+        if (dataStore.findSession(args[0]).isPresent()) {
+            return CompletableFuture.completedFuture("OK");
+        }
+        return dataStore.openSession(new Session(args[0], args[1], Long.parseLong(args[2])))
+                .thenApply(opened -> opened ? "OK" : "ERROR Too many active sessions");
+    }
+
+    private CompletableFuture<String> handleAdoptUser(String[] args) {
+        // Internal: adopt-user <phone> <password>, sent by a node handing over a user this node now owns.
+        if (args.length != 2) {
+            return CompletableFuture.completedFuture("ERROR Invalid command format. Use: adopt-user <phone> <password>");
+        }
+        // A user registered here since the ring changed is newer than the handed-over copy.
+        if (dataStore.isUserRegistered(args[0])) {
+            return CompletableFuture.completedFuture("OK");
+        }
+        // The sender forgets the user on OK, so that only goes out once the copy here is on disk.
+        return dataStore.registerUser(new User(args[0], args[1])).thenApply(ignored -> "OK");
+    }
+
+    private CompletableFuture<String> handleAdoptWorkspace(String[] args) {
+        // Internal: adopt-workspace <name> <hostAddress> <hostStartPort> <hostEndPort> <port> <creatorPhone>
+        if (args.length != 6) {
+            return CompletableFuture.completedFuture("ERROR Invalid command format.");
+        }
+        String name = args[0], address = args[1];
+        int startPort = Integer.parseInt(args[2]), endPort = Integer.parseInt(args[3]), port = Integer.parseInt(args[4]);
+        if (dataStore.isWorkspaceNameTaken(name)) {
+            return CompletableFuture.completedFuture("OK");
+        }
+        Host host = dataStore.findHost(address + ":" + startPort).orElseGet(() -> new Host(address, startPort, endPort));
+        return dataStore.createWorkspace(new Workspace(name, host, port, args[5])).thenApply(ignored -> "OK");
+    }
+
+    // Other handlers (register, login, connect-workspace, whois) remain largely the same
+
+    private CompletableFuture<String> handleRegister(String[] args) {
+        if (args.length != 2) {
+            return CompletableFuture.completedFuture("ERROR Invalid command format. Use: register <phone> <password>");
         }
 
         String phone = args[0];
         String password = args[1];
 
         if (dataStore.isUserRegistered(phone)) {
-            writer.println("ERROR User already exists");
             log.warn("Registration failed for existing user: {}", phone);
-        } else {
-            User newUser = new User(phone, password);
-            dataStore.registerUser(newUser);
-            writer.println("OK");
+            return CompletableFuture.completedFuture("ERROR User already exists");
+        }
+        User newUser = new User(phone, password);
+        return dataStore.registerUser(newUser).thenApply(ignored -> {
             log.info("Successfully registered user: {}", phone);
+            return "OK";
+        });
+    }
+
+    private CompletableFuture<String> handleRegisterBulk(String[] args) {
+        // register-bulk <phone> <password> [<phone> <password>]...; answers OK <registered> [<row>:<reason>]...
+        if (args.length == 0 || args.length % 2 != 0) {
+            return CompletableFuture.completedFuture("ERROR Invalid command format. Use: register-bulk <phone> <password> [<phone> <password>]...");
         }
+        int rows = args.length / 2;
+        // Each node registers the rows it owns in one batch; rejected rows are numbered as in this command.
+        Map<String, List<Integer>> rowsByOwner = new LinkedHashMap<>();
+        for (int row = 0; row < rows; row++) {
+            rowsByOwner.computeIfAbsent(cluster.ownerOf(args[2 * row]), owner -> new ArrayList<>()).add(row);
+        }
+        List<CompletableFuture<List<DataStore.RejectedRow>>> parts = new ArrayList<>(rowsByOwner.size());
+        rowsByOwner.forEach((owner, ownerRows) -> parts.add(registerBulkOn(owner, args, ownerRows)));
+        return CompletableFuture.allOf(parts.toArray(CompletableFuture[]::new)).thenApply(ignored -> {
+            List<DataStore.RejectedRow> rejected = new ArrayList<>();
+            parts.forEach(part -> rejected.addAll(part.join()));
+            rejected.sort(Comparator.comparingInt(DataStore.RejectedRow::row));
+            log.info("Bulk registration: {} of {} users registered.", rows - rejected.size(), rows);
+            StringBuilder reply = new StringBuilder("OK ").append(rows - rejected.size());
+            rejected.forEach(row -> reply.append(' ').append(row.row()).append(':').append(row.reason()));
+            return reply.toString();
+        });
     }
 
-    private void handleLogin(String[] parts) {
-        if (parts.length != 2) {
-            writer.println("ERROR Invalid command format. Use: login <phone> <password>");
-            return;
+    /** Registers the given rows on one node and returns its rejections, numbered as in {@code args}. */
+    private CompletableFuture<List<DataStore.RejectedRow>> registerBulkOn(String owner, String[] args, List<Integer> rows) {
+        if (owner.equals(cluster.getSelf())) {
+            List<User> batch = new ArrayList<>(rows.size());
+            for (int row : rows) {
+                batch.add(new User(args[2 * row], args[2 * row + 1]));
+            }
+            return dataStore.registerUsers(batch).thenApply(rejectedHere -> {
+                List<DataStore.RejectedRow> rejected = new ArrayList<>(rejectedHere.size());
+                for (DataStore.RejectedRow row : rejectedHere) {
+                    rejected.add(new DataStore.RejectedRow(rows.get(row.row()), row.reason()));
+                }
+                return rejected;
+            });
         }
-        String[] args = parts[1].split(" ");
+        StringBuilder command = new StringBuilder(FORWARDED).append(" register-bulk");
+        for (int row : rows) {
+            command.append(' ').append(args[2 * row]).append(' ').append(args[2 * row + 1]);
+        }
+        return cluster.send(owner, command.toString()).handle((reply, error) -> {
+            List<DataStore.RejectedRow> rejected = new ArrayList<>();
+            if (error != null || !reply.startsWith("OK ")) {
+                log.warn("Bulk registration of {} users on central node {} failed: {}", rows.size(), owner,
+                        error != null ? error.getMessage() : reply);
+                rows.forEach(row -> rejected.add(new DataStore.RejectedRow(row, DataStore.RejectedRow.UNAVAILABLE)));
+                return rejected;
+            }
+            String[] words = reply.split(" ");
+            for (int i = 2; i < words.length; i++) {
+                int colon = words[i].indexOf(':');
+                rejected.add(new DataStore.RejectedRow(rows.get(Integer.parseInt(words[i].substring(0, colon))),
+                        words[i].substring(colon + 1)));
+            }
+            return rejected;
+        });
+    }
+
+    private CompletableFuture<String> handleLogin(String[] args) {
         if (args.length != 2) {
-            writer.println("ERROR Invalid command format. Use: login <phone> <password>");
-            return;
+            return CompletableFuture.completedFuture("ERROR Invalid command format. Use: login <phone> <password>");
         }
         String phone = args[0];
         String password = args[1];
 
-        dataStore.findUser(phone)
-                .filter(user -> user.getPassword().equals(password))
-                .ifPresentOrElse(
-                        user -> {
-                            writer.println("OK");
-                            log.info("User login successful: {}", phone);
-                        },
-                        () -> {
-                            writer.println("ERROR Invalid credentials");
-                            log.warn("User login failed for: {}", phone);
-                        }
-                );
+        if (dataStore.findUser(phone).filter(user -> user.getPassword().equals(password)).isEmpty()) {
+            log.warn("User login failed for: {}", phone);
+            return CompletableFuture.completedFuture("ERROR Invalid credentials");
+        }
+        String sessionId = newSessionId();
+        long expiry = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(Session.EXPIRATION_TIME_HOURS);
+        return dataStore.openSession(new Session(sessionId, phone, expiry)).thenApply(opened -> {
+            if (!opened) {
+                log.warn("Session table is full; refused login for {}", phone);
+                return "ERROR Too many active sessions";
+            }
+            log.info("User login successful: {}", phone);
+            return "OK " + sessionId;
+        });
     }
 
-    private void handleConnectWorkspace(String[] parts) {
-        // فرمت مورد انتظار: connect-workspace <phone> <password> <workspace_name>
-        if (parts.length != 2) {
-            writer.println("ERROR Invalid command format."); return;
+    /** Session ids are spread over the ring like tokens, so only hand out ids this node owns. */
+    private String newSessionId() {
+        String sessionId;
+        do {
+            sessionId = generateRandomString(SESSION_ID_LENGTH);
+        } while (!cluster.isLocal(sessionId));
+        return sessionId;
+    }
+
+    private CompletableFuture<String> handleStandbyLogin(String[] args) {
+        // The password is checked here; only opening the session is left to the primary, which streams it back.
+        if (args.length != 2) {
+            return CompletableFuture.completedFuture("ERROR Invalid command format. Use: login <phone> <password>");
         }
-        String[] args = parts[1].split(" ");
-        if (args.length != 3) {
-            writer.println("ERROR Invalid command format."); return;
+        String phone = args[0];
+        if (dataStore.findUser(phone).filter(user -> user.getPassword().equals(args[1])).isEmpty()) {
+            log.warn("User login failed for: {}", phone);
+            return CompletableFuture.completedFuture("ERROR Invalid credentials");
+        }
+        String sessionId = newSessionId();
+        long expiry = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(Session.EXPIRATION_TIME_HOURS);
+        String primary = replication.getPrimary();
+        return replication.sendToPrimary(FORWARDED + " adopt-session " + sessionId + " " + phone + " " + expiry)
+                .thenApply(reply -> {
+                    if (!reply.startsWith("OK")) {
+                        return reply;
+                    }
+                    // Also opened here, so the client can use it on this standby before the primary's record arrives.
+                    dataStore.openSession(new Session(sessionId, phone, expiry));
+                    log.info("User login successful: {}", phone);
+                    return "OK " + sessionId;
+                })
+                .exceptionally(e -> {
+                    log.warn("Could not open a session on primary {}: {}", primary, e.getMessage());
+                    return "ERROR Primary " + primary + " is unavailable";
+                });
+    }
+
+    private CompletableFuture<String> handleStandbyWhois(String[] args) {
+        if (args.length != 1) {
+            return CompletableFuture.completedFuture("ERROR Invalid command format. Use: whois <token>");
         }
-        String phone = args[0], password = args[1], workspaceName = args[2];
+        // Unknown tokens are refused here; a known one is redeemed on the primary, so it still works only once.
+        if (dataStore.findToken(args[0]).isEmpty()) {
+            log.warn("Token validation failed for: {}", args[0]);
+            return CompletableFuture.completedFuture("ERROR Invalid or expired token");
+        }
+        String primary = replication.getPrimary();
+        return replication.sendToPrimary(FORWARDED + " whois " + args[0]).exceptionally(e -> {
+            log.warn("Could not redeem a token on primary {}: {}", primary, e.getMessage());
+            return "ERROR Primary " + primary + " is unavailable";
+        });
+    }
+
+    private String handlePeer(String[] args) {
+        // Sent first by another central node or a standby; unlocks the commands nodes exchange among themselves.
+        if (args.length != 1 || !clusterSecret.matches(args[0])) {
+            log.warn("Rejected [{}] as a central node: wrong cluster secret.", connection.getRemoteAddress());
+            quitRequested = true;
+            return "ERROR Invalid cluster secret";
+        }
+        authenticatedPeer = true;
+        return "OK";
+    }
+
+    private String handleReplicate() {
+        // Internal: replicate, sent by a standby. From here on this connection carries the replication stream.
+        if (replicationFeed == null) {
+            replicationFeed = replication.openFeed(connection);
+        }
+        return "OK";
+    }
+
+    private CompletableFuture<String> handleLogout(String[] args) {
+        if (args.length != 1) {
+            return CompletableFuture.completedFuture("ERROR Invalid command format. Use: logout <session>");
+        }
+        return dataStore.closeSession(args[0]).thenApply(ignored -> "OK");
+    }
+
+    private CompletableFuture<String> handleConnectWorkspace(String[] args) {
+        // فرمت مورد انتظار: connect-workspace <session> <workspace_name> یا connect-workspace <phone> <password> <workspace_name>
+        if (args.length != 2 && args.length != 3) {
+            return CompletableFuture.completedFuture("ERROR Invalid command format.");
+        }
+        String workspaceName = args[args.length - 1];
 
         // ۱. اعتبارسنجی کاربر
-        if (dataStore.findUser(phone).filter(u -> u.getPassword().equals(password)).isEmpty()) {
-            writer.println("ERROR Invalid credentials"); return;
+        return authenticate(args).thenApply(caller -> {
+            if (caller.isEmpty()) {
+                return authenticationError(args);
+            }
+            String phone = caller.get();
+
+            // ۲. پیدا کردن فضای کار
+            Optional<Workspace> wsOpt = dataStore.findWorkspace(workspaceName);
+            if (wsOpt.isEmpty()) {
+                return "ERROR Workspace not found";
+            }
+            Workspace ws = wsOpt.get();
+
+            // ۳. ساخت توکن موقت
+            String tokenValue;
+            Optional<HostConnection> hostConn = SIGNED_TOKENS ? dataStore.getActiveHostConnection(ws.getHost().getId()) : Optional.empty();
+            if (hostConn.isPresent()) {
+                // The host checks this token itself; no whois round trip and nothing stored here.
+                tokenValue = SignedTokenIssuer.issue(hostConn.get().getTokenKey(), phone, workspaceName, ws.getPort(),
+                        TimeUnit.SECONDS.toMillis(Token.EXPIRATION_TIME_SECONDS));
+            } else {
+                // whois is routed by the token, so only hand out tokens this node owns.
+                do {
+                    tokenValue = generateRandomString(10);
+                } while (!cluster.isLocal(tokenValue));
+                Token token = new Token(tokenValue, phone);
+                dataStore.saveToken(token);
+            }
+
+            // ۴. ارسال پاسخ به کلاینت
+            log.info("Issued token for user {} to connect to workspace {}", phone, workspaceName);
+            return "OK " + ws.getHost().getAddress() + " " + ws.getPort() + " " + tokenValue;
+        });
+    }
+
+    private CompletableFuture<String> handleListWorkspaces(String[] args) {
+        // list-workspaces [prefix] [cursor] [limit]; "-" leaves out the prefix or the cursor
+        if (args.length > 3) {
+            return CompletableFuture.completedFuture("ERROR Invalid command format. Use: list-workspaces [prefix] [cursor] [limit]");
         }
+        return listWorkspaces(null, args.length > 0 ? args[0] : NONE, args.length > 1 ? args[1] : NONE,
+                args.length > 2 ? args[2] : null);
+    }
 
-        // ۲. پیدا کردن فضای کار
-        Optional<Workspace> wsOpt = dataStore.findWorkspace(workspaceName);
-        if (wsOpt.isEmpty()) {
-            writer.println("ERROR Workspace not found"); return;
+    private CompletableFuture<String> handleMyWorkspaces(String[] args) {
+        // my-workspaces <session> [cursor] [limit]: the workspaces the user created
+        if (args.length < 1 || args.length > 3) {
+            return CompletableFuture.completedFuture("ERROR Invalid command format. Use: my-workspaces <session> [cursor] [limit]");
         }
-        Workspace ws = wsOpt.get();
+        return resolveSession(args[0]).thenCompose(caller -> caller.isEmpty()
+                ? CompletableFuture.completedFuture("ERROR Invalid or expired session")
+                : listWorkspaces(caller.get(), NONE, args.length > 1 ? args[1] : NONE, args.length > 2 ? args[2] : null));
+    }
 
-        // ۳. ساخت توکن موقت
-        String tokenValue = generateRandomToken();
-        Token token = new Token(tokenValue, phone);
-        dataStore.saveToken(token);
+    /**
+     * Replies {@code OK <next cursor> <name>...} with the next page of workspace names, the cursor being {@link #NONE}
+     * after the last page. Workspaces are spread over the cluster, so every node contributes its own first page
+     * and the smallest names of all of them make up this one.
+     */
+    private CompletableFuture<String> listWorkspaces(String creator, String prefix, String cursor, String limitValue) {
+        int limit;
+        try {
+            limit = limitValue == null ? DEFAULT_PAGE_SIZE : Integer.parseInt(limitValue);
+        } catch (NumberFormatException e) {
+            return CompletableFuture.completedFuture("ERROR Invalid limit");
+        }
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            return CompletableFuture.completedFuture("ERROR Limit must be between 1 and " + MAX_PAGE_SIZE);
+        }
+        String page = localWorkspacePage(creator, prefix, cursor, limit);
+        if (!cluster.isClustered()) {
+            return CompletableFuture.completedFuture(page);
+        }
+        String request = FORWARDED + " workspace-page " + (creator == null ? NONE : creator) + " " + prefix + " " + cursor + " " + limit;
+        List<CompletableFuture<String>> pages = new ArrayList<>();
+        pages.add(CompletableFuture.completedFuture(page));
+        for (String peer : cluster.getPeers()) {
+            pages.add(cluster.send(peer, request).exceptionally(e -> "ERROR Central node " + peer + " is unavailable"));
+        }
+        return CompletableFuture.allOf(pages.toArray(CompletableFuture[]::new)).thenApply(ignored -> {
+            TreeSet<String> names = new TreeSet<>();
+            boolean more = false;
+            for (CompletableFuture<String> nodePage : pages) {
+                String[] words = nodePage.join().split(" ");
+                if (!"OK".equals(words[0])) {
+                    return nodePage.join(); // a partial listing would silently skip workspaces
+                }
+                more |= !NONE.equals(words[1]);
+                names.addAll(Arrays.asList(words).subList(2, words.length));
+            }
+            StringBuilder reply = new StringBuilder();
+            String last = null;
+            int taken = 0;
+            for (String name : names) {
+                if (taken == limit) {
+                    more = true;
+                    break;
+                }
+                reply.append(' ').append(name);
+                last = name;
+                taken++;
+            }
+            return "OK " + (more ? last : NONE) + reply;
+        });
+    }
 
-        // ۴. ارسال پاسخ به کلاینت
-        writer.println("OK " + ws.getHost().getAddress() + " " + ws.getPort() + " " + tokenValue);
-        log.info("Issued token for user {} to connect to workspace {}", phone, workspaceName);
+    private String handleWorkspacePage(String[] args) {
+        // Internal: workspace-page <creator> <prefix> <cursor> <limit>, this node's share of a directory page.
+        if (args.length != 4) {
+            return "ERROR Invalid command format. Use: workspace-page <creator> <prefix> <cursor> <limit>";
+        }
+        return localWorkspacePage(NONE.equals(args[0]) ? null : args[0], args[1], args[2], Integer.parseInt(args[3]));
+    }
+
+    private String localWorkspacePage(String creator, String prefix, String cursor, int limit) {
+        DataStore.WorkspacePage page = dataStore.listWorkspaces(creator, NONE.equals(prefix) ? "" : prefix,
+                NONE.equals(cursor) ? null : cursor, limit);
+        StringBuilder reply = new StringBuilder("OK ").append(page.more() ? page.names().getLast() : NONE);
+        page.names().forEach(name -> reply.append(' ').append(name));
+        return reply.toString();
+    }
+
+    private CompletableFuture<String> handleGetInbox(String[] args) {
+        // get-inbox <session>: OK <unread> <complete|partial> [<workspace>:<unread>:<chats>]...
+        if (args.length != 1) {
+            return CompletableFuture.completedFuture("ERROR Invalid command format. Use: get-inbox <session>");
+        }
+        return resolveSession(args[0]).thenCompose(caller -> caller.isEmpty()
+                ? CompletableFuture.completedFuture("ERROR Invalid or expired session")
+                : gatherInbox(caller.get()));
+    }
+
+    /**
+     * Asks every host linked to any central node, all at once, for the user's unread counts per workspace, then
+     * names the workspaces. Hosts only know ports, and a workspace's record may live on another node than its host's link.
+     */
+    private CompletableFuture<String> gatherInbox(String phone) {
+        List<CompletableFuture<String>> parts = new ArrayList<>();
+        parts.add(localInbox(phone));
+        for (String peer : cluster.getPeers()) {
+            parts.add(cluster.send(peer, FORWARDED + " inbox-part " + phone)
+                    .completeOnTimeout("ERROR Central node " + peer + " did not answer in time",
+                            INBOX_DEADLINE_MS + INBOX_PEER_MARGIN_MS, TimeUnit.MILLISECONDS)
+                    .exceptionally(e -> "ERROR Central node " + peer + " is unavailable"));
+        }
+        return CompletableFuture.allOf(parts.toArray(CompletableFuture[]::new)).thenCompose(ignored -> {
+            boolean partial = false;
+            List<String[]> entries = new ArrayList<>();
+            for (CompletableFuture<String> part : parts) {
+                String[] words = part.join().split(" ");
+                if (!"OK".equals(words[0])) {
+                    log.warn("Inbox of {} is missing a central node: {}", phone, part.join());
+                    partial = true;
+                    continue;
+                }
+                partial |= "partial".equals(words[1]);
+                for (int i = 2; i < words.length; i++) {
+                    entries.add(words[i].split("/")); // <hostId>/<port>/<unread>/<chats>
+                }
+            }
+            boolean incomplete = partial;
+            return nameWorkspaces(entries).thenApply(names -> {
+                Map<String, String> byName = new TreeMap<>();
+                long unread = 0;
+                for (String[] entry : entries) {
+                    String name = names.get(entry[0] + "/" + entry[1]);
+                    if (name != null) {
+                        byName.put(name, entry[2] + ":" + entry[3]);
+                        unread += Long.parseLong(entry[2]);
+                    }
+                }
+                StringBuilder reply = new StringBuilder("OK ").append(unread).append(incomplete ? " partial" : " complete");
+                byName.forEach((name, counts) -> reply.append(' ').append(name).append(':').append(counts));
+                return reply.toString();
+            });
+        });
+    }
+
+    private CompletableFuture<String> handleInboxPart(String[] args) {
+        // Internal: inbox-part <phone>, the unread counts the hosts linked to this node hold for the user.
+        if (args.length != 1) {
+            return CompletableFuture.completedFuture("ERROR Invalid command format. Use: inbox-part <phone>");
+        }
+        return localInbox(args[0]);
+    }
+
+    /** Replies {@code OK <complete|partial> [<hostId>/<port>/<unread>/<chats>]...} from this node's host links. */
+    private CompletableFuture<String> localInbox(String phone) {
+        List<HostConnection> hosts = dataStore.getPlacementCandidates();
+        List<CompletableFuture<String>> replies = new ArrayList<>(hosts.size());
+        for (HostConnection host : hosts) {
+            replies.add(host.sendRequest("inbox " + phone, INBOX_DEADLINE_MS, TimeUnit.MILLISECONDS)
+                    .handle((reply, error) -> {
+                        if (error != null || !reply.startsWith("OK")) {
+                            log.warn("Host {} left out of the inbox of {}: {}", host.getHostId(), phone,
+                                    error != null ? error.getClass().getSimpleName() : reply);
+                            return null;
+                        }
+                        StringBuilder entries = new StringBuilder();
+                        for (String entry : reply.substring(2).trim().split(" ")) {
+                            if (!entry.isEmpty()) {
+                                entries.append(' ').append(host.getHostId()).append('/').append(entry.replace(':', '/'));
+                            }
+                        }
+                        return entries.toString();
+                    }));
+        }
+        return CompletableFuture.allOf(replies.toArray(CompletableFuture[]::new)).thenApply(ignored -> {
+            StringBuilder entries = new StringBuilder();
+            boolean partial = false;
+            for (CompletableFuture<String> reply : replies) {
+                String hostEntries = reply.join();
+                partial |= hostEntries == null;
+                entries.append(hostEntries == null ? "" : hostEntries);
+            }
+            return "OK " + (partial ? "partial" : "complete") + entries;
+        });
     }
 
-    private void handleWhois(String[] parts) {
+    /** Maps {@code <hostId>/<port>} of each entry to its workspace name, asking the other nodes for names not kept here. */
+    private CompletableFuture<Map<String, String>> nameWorkspaces(List<String[]> entries) {
+        Map<String, String> names = new HashMap<>();
+        List<String> unnamed = new ArrayList<>();
+        for (String[] entry : entries) {
+            String location = entry[0] + "/" + entry[1];
+            dataStore.findWorkspaceAt(entry[0], Integer.parseInt(entry[1])).ifPresentOrElse(
+                    name -> names.put(location, name), () -> unnamed.add(location));
+        }
+        if (unnamed.isEmpty() || !cluster.isClustered()) {
+            return CompletableFuture.completedFuture(names);
+        }
+        String request = FORWARDED + " workspace-at " + String.join(" ", unnamed);
+        List<CompletableFuture<String>> replies = new ArrayList<>();
+        for (String peer : cluster.getPeers()) {
+            replies.add(cluster.send(peer, request).exceptionally(e -> "ERROR Central node " + peer + " is unavailable"));
+        }
+        return CompletableFuture.allOf(replies.toArray(CompletableFuture[]::new)).thenApply(ignored -> {
+            for (CompletableFuture<String> reply : replies) {
+                String[] words = reply.join().split(" ");
+                if (!"OK".equals(words[0]) || words.length != unnamed.size() + 1) {
+                    continue; // a workspace nobody could name is left out
+                }
+                for (int i = 0; i < unnamed.size(); i++) {
+                    if (!NONE.equals(words[i + 1])) {
+                        names.put(unnamed.get(i), words[i + 1]);
+                    }
+                }
+            }
+            return names;
+        });
+    }
+
+    private String handleWorkspaceAt(String[] args) {
+        // Internal: workspace-at <hostId>/<port>...; answers the name of each, or - if this node does not keep it.
+        StringBuilder reply = new StringBuilder("OK");
+        for (String location : args) {
+            int slash = location.lastIndexOf('/');
+            String name = slash < 0 ? null : dataStore.findWorkspaceAt(location.substring(0, slash),
+                    Integer.parseInt(location.substring(slash + 1))).orElse(null);
+            reply.append(' ').append(name == null ? NONE : name);
+        }
+        return reply.toString();
+    }
+
+    private String handleWhois(String[] args) {
         // این دستور از طرف میزبان برای تایید توکن کلاینت ارسال می‌شود
         // فرمت: whois <token>
-        if (parts.length != 2) {
-            writer.println("ERROR Invalid command format. Use: whois <token>");
+        if (args.length != 1) {
+            return "ERROR Invalid command format. Use: whois <token>";
+        }
+        String tokenValue = args[0];
+        Optional<Token> token = dataStore.findAndInvalidateToken(tokenValue);
+        if (token.isPresent()) {
+            log.info("Token {} validated for user {}", token.get().getValue(), token.get().getPhoneNumber());
+            return "OK " + token.get().getPhoneNumber();
+        }
+        log.warn("Token validation failed for: {}", tokenValue);
+        return "ERROR Invalid or expired token";
+    }
+
+    private void handleHostRequest(HostConnection host, String line) {
+        // Format: req <id> <command>; the answer goes back as res <id> <reply>.
+        String[] frame = line.split(" ", 3);
+        if (frame.length != 3) {
+            log.warn("Received malformed request from host {}: {}", host.getHostId(), line);
             return;
         }
-        String tokenValue = parts[1];
-        dataStore.findAndInvalidateToken(tokenValue)
-                .ifPresentOrElse(
-                        token -> {
-                            writer.println("OK " + token.getPhoneNumber());
-                            log.info("Token {} validated for user {}", token.getValue(), token.getPhoneNumber());
-                        },
-                        () -> {
-                            writer.println("ERROR Invalid or expired token");
-                            log.warn("Token validation failed for: {}", tokenValue);
-                        }
-                );
+        long requestId;
+        try {
+            requestId = Long.parseLong(frame[1]);
+        } catch (NumberFormatException e) {
+            log.warn("Received request with invalid id from host {}: {}", host.getHostId(), line);
+            return;
+        }
+        String[] words = frame[2].split(" ");
+        handleHostRequest(host, requestId, words[0].toLowerCase(), Arrays.copyOfRange(words, 1, words.length));
     }
-    private String generateRandomToken() {
-        String chars = "abcdefghijklmnopqrstuvwxyz0123456789";
-        StringBuilder token = new StringBuilder(10);
-        SecureRandom random = new SecureRandom();
-        for (int i = 0; i < 10; i++) {
-            token.append(chars.charAt(random.nextInt(chars.length())));
+
+    private void handleHostRequest(HostConnection host, long requestId, String command, String[] args) {
+        CompletableFuture<String> response;
+        try {
+            if ("whois-batch".equals(command) && args.length > 0) {
+                response = handleWhoisBatch(args);
+            } else if ("sync-workspaces".equals(command)) {
+                response = handleSyncWorkspaces(host, args);
+            } else {
+                log.warn("Received unknown request from host {}: {}", host.getHostId(), command);
+                response = CompletableFuture.completedFuture("ERROR Unknown command");
+            }
+        } catch (RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
         }
-        return token.toString();
+        // Every request gets exactly one answer, a failure included, so the host never waits out its timeout.
+        response.exceptionally(e -> failureReply(command + " from host " + host.getHostId(), e)).thenAccept(reply -> {
+            if (connection.isBinary()) {
+                connection.sendFrame(Frame.reply(requestId, reply));
+            } else {
+                connection.send("res " + requestId + " " + reply);
+            }
+        });
     }
-    private void closeConnection() {
+
+    private CompletableFuture<String> handleWhoisBatch(String[] tokenValues) {
+        // Answer "OK" followed by the owner's phone, or "-" for an invalid token, in request order.
+        // Tokens issued by other central nodes are checked there.
+        List<CompletableFuture<String>> phones = new ArrayList<>(tokenValues.length);
+        for (String tokenValue : tokenValues) {
+            if (cluster.isLocal(tokenValue)) {
+                Optional<Token> token = dataStore.findAndInvalidateToken(tokenValue);
+                if (token.isEmpty()) {
+                    log.warn("Token validation failed for: {}", tokenValue);
+                }
+                phones.add(CompletableFuture.completedFuture(token.map(Token::getPhoneNumber).orElse("-")));
+            } else {
+                phones.add(cluster.send(cluster.ownerOf(tokenValue), FORWARDED + " whois " + tokenValue)
+                        .handle((reply, error) -> error == null && reply.startsWith("OK ") ? reply.substring(3) : "-"));
+            }
+        }
+        return CompletableFuture.allOf(phones.toArray(CompletableFuture[]::new)).thenApply(ignored -> {
+            StringBuilder response = new StringBuilder("OK");
+            int validated = 0;
+            for (CompletableFuture<String> phone : phones) {
+                String value = phone.join();
+                if (!"-".equals(value)) {
+                    validated++;
+                }
+                response.append(' ').append(value);
+            }
+            log.info("Validated {} of {} token(s) in a batch from host.", validated, tokenValues.length);
+            return response.toString();
+        });
+    }
+
+    private CompletableFuture<String> handleSyncWorkspaces(HostConnection host, String[] portValues) {
+        // Sent by a host right after every (re)registration with the ports of all workspaces it is running.
+        int[] runningPorts;
         try {
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
-                log.debug("Connection closed for {}", socket.getRemoteSocketAddress());
+            runningPorts = Arrays.stream(portValues).mapToInt(Integer::parseInt).toArray();
+        } catch (NumberFormatException e) {
+            return CompletableFuture.completedFuture("ERROR Invalid port");
+        }
+        return dataStore.reconcileHost(host.getHostId(), runningPorts).handle((dropped, error) -> {
+            if (error != null) {
+                // Nothing was dropped, but the running ports are reserved, so the rest of the range can still be placed on.
+                for (int port : runningPorts) {
+                    host.getHost().markPortUsed(port);
+                }
+                host.markSynced();
+                throw error instanceof CompletionException completion ? completion : new CompletionException(error);
             }
-        } catch (IOException e) {
-            log.error("Error while closing connection: {}", e.getMessage());
+            if (!dropped.isEmpty()) {
+                log.warn("Host {} is no longer running workspace(s) {}; their records were removed.", host.getHostId(), dropped);
+            }
+            host.markSynced();
+            return "OK " + dropped.size();
+        });
+    }
+
+    private String generateRandomString(int length) {
+        StringBuilder token = new StringBuilder(length);
+        SecureRandom random = new SecureRandom();
+        for (int i = 0; i < length; i++) {
+            token.append(RANDOM_ID_CHARS.charAt(random.nextInt(RANDOM_ID_CHARS.length())));
         }
+        return token.toString();
     }
 }
-
@@ -0,0 +1,213 @@
+package com.messaging.server.metrics;
+
+import com.google.gson.JsonObject;
+import com.messaging.server.admission.AdmissionControl;
+import com.messaging.server.cluster.Replication;
+import com.messaging.server.cluster.ReplicationFeed;
+import com.messaging.server.storage.DataStore;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the Central Server: a latency histogram and an error count per client command, how long commands
+ * wait before they start, and a few gauges. Read with the {@code stats} command or the periodic log dump, whose
+ * interval is set with {@code -Dpayamresan.stats-interval=<seconds>} (0 turns it off).
+ */
+@Slf4j
+public final class ServerMetrics {
+    public static final String INTERVAL_PROPERTY = "payamresan.stats-interval";
+    private static final long DEFAULT_INTERVAL_SECONDS = 60;
+    private static final List<String> COMMANDS = List.of("register", "register-bulk", "login", "logout", "create-workspace", "connect-workspace",
+            "delete-workspace", "whois", "list-workspaces", "my-workspaces", "get-inbox");
+
+    private static final ServerMetrics INSTANCE = new ServerMetrics();
+
+    private final Map<String, CommandMetrics> commands;
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicInteger pendingCommands = new AtomicInteger();
+    private volatile ExecutorService commandExecutor;
+    private volatile AdmissionControl admission;
+    private volatile Replication replication;
+    private ScheduledExecutorService logTimer;
+
+    private ServerMetrics() {
+        Map<String, CommandMetrics> byName = new LinkedHashMap<>();
+        for (String command : COMMANDS) {
+            byName.put(command, new CommandMetrics());
+        }
+        this.commands = Collections.unmodifiableMap(byName);
+    }
+
+    public static ServerMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    public static final class CommandMetrics {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+
+        public void record(long nanos, boolean failed) {
+            latency.recordNanos(nanos);
+            if (failed) {
+                errors.increment();
+            }
+        }
+    }
+
+    /** The metrics of a client command, or null if the command is not tracked. */
+    public CommandMetrics command(String name) {
+        return commands.get(name);
+    }
+
+    public void connectionOpened() {
+        activeConnections.incrementAndGet();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    public void commandQueued() {
+        pendingCommands.incrementAndGet();
+    }
+
+    public void commandStarted(long queuedNanos) {
+        pendingCommands.decrementAndGet();
+        queueWait.recordNanos(queuedNanos);
+    }
+
+    /** Where the admitted and shed command counts come from. */
+    public void monitorAdmission(AdmissionControl admission) {
+        this.admission = admission;
+    }
+
+    /** Where the standby state and the lag of connected standbys come from. */
+    public void monitorReplication(Replication replication) {
+        this.replication = replication;
+    }
+
+    /** The executor whose queue depth is reported; only a thread pool has one. */
+    public void monitorExecutor(ExecutorService executor) {
+        this.commandExecutor = executor;
+    }
+
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("connections", activeConnections.get());
+        json.addProperty("pending_commands", pendingCommands.get());
+        if (commandExecutor instanceof ThreadPoolExecutor pool) {
+            json.addProperty("executor_queue", pool.getQueue().size());
+            json.addProperty("executor_active", pool.getActiveCount());
+        }
+        AdmissionControl admissionControl = admission;
+        if (admissionControl != null) {
+            JsonObject admissionJson = new JsonObject();
+            admissionJson.addProperty("pending", admissionControl.getPending());
+            admissionJson.addProperty("capacity", admissionControl.getCapacity());
+            admissionJson.addProperty("admitted", admissionControl.getAdmitted());
+            admissionJson.addProperty("shed_overloaded", admissionControl.getShedOverloaded());
+            admissionJson.addProperty("shed_per_ip", admissionControl.getShedPerSource());
+            json.add("admission", admissionJson);
+        }
+        Replication replicationState = replication;
+        if (replicationState != null) {
+            JsonObject replicationJson = new JsonObject();
+            replicationJson.addProperty("role", replicationState.isStandby() ? "standby" : "primary");
+            if (replicationState.isStandby()) {
+                replicationJson.addProperty("primary", replicationState.getPrimary());
+                replicationJson.addProperty("synced", replicationState.isSynced());
+                replicationJson.addProperty("applied", replicationState.getApplied());
+                replicationJson.addProperty("last_contact_ms_ago", System.currentTimeMillis() - replicationState.getLastContactMillis());
+            }
+            JsonObject standbys = new JsonObject();
+            for (ReplicationFeed feed : replicationState.getFeeds()) {
+                standbys.addProperty(feed.getStandbyAddress(), feed.getLag());
+            }
+            replicationJson.add("standby_lag", standbys);
+            json.add("replication", replicationJson);
+        }
+        DataStore.TokenStats tokenStats = DataStore.getInstance().getTokenStats();
+        JsonObject tokens = new JsonObject();
+        tokens.addProperty("live", tokenStats.live());
+        tokens.addProperty("expired", tokenStats.expired());
+        tokens.addProperty("redeemed", tokenStats.redeemed());
+        json.add("tokens", tokens);
+        json.addProperty("sessions", DataStore.getInstance().getSessionCount());
+        json.add("queue_wait", histogramJson(queueWait));
+        JsonObject commandsJson = new JsonObject();
+        commands.forEach((name, metrics) -> {
+            JsonObject commandJson = histogramJson(metrics.latency);
+            commandJson.addProperty("errors", metrics.errors.sum());
+            commandsJson.add(name, commandJson);
+        });
+        json.add("commands", commandsJson);
+        return json;
+    }
+
+    private static JsonObject histogramJson(LatencyHistogram histogram) {
+        JsonObject json = new JsonObject();
+        json.addProperty("count", histogram.getCount());
+        json.addProperty("mean_us", histogram.getMeanMicros());
+        json.addProperty("p50_us", histogram.percentileMicros(0.50));
+        json.addProperty("p99_us", histogram.percentileMicros(0.99));
+        json.addProperty("p999_us", histogram.percentileMicros(0.999));
+        json.addProperty("max_us", histogram.getMaxMicros());
+        return json;
+    }
+
+    public synchronized void startPeriodicLog() {
+        long interval = Long.getLong(INTERVAL_PROPERTY, DEFAULT_INTERVAL_SECONDS);
+        if (interval <= 0 || logTimer != null) {
+            return;
+        }
+        logTimer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "Stats-Logger");
+            thread.setDaemon(true);
+            return thread;
+        });
+        logTimer.scheduleAtFixedRate(this::logStats, interval, interval, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stopPeriodicLog() {
+        if (logTimer != null) {
+            logTimer.shutdownNow();
+            logTimer = null;
+        }
+    }
+
+    private void logStats() {
+        try {
+            DataStore.TokenStats tokenStats = DataStore.getInstance().getTokenStats();
+            log.info("Stats: {} connection(s), {} pending command(s), {} live token(s), queue wait p50={}µs p99={}µs max={}µs",
+                    activeConnections.get(), pendingCommands.get(), tokenStats.live(), queueWait.percentileMicros(0.50),
+                    queueWait.percentileMicros(0.99), queueWait.getMaxMicros());
+            AdmissionControl admissionControl = admission;
+            if (admissionControl != null && admissionControl.getShedOverloaded() + admissionControl.getShedPerSource() > 0) {
+                log.info("Stats: shed {} command(s) while overloaded and {} over the per-address limit",
+                        admissionControl.getShedOverloaded(), admissionControl.getShedPerSource());
+            }
+            commands.forEach((name, metrics) -> {
+                LatencyHistogram latency = metrics.latency;
+                if (latency.getCount() > 0) {
+                    log.info("Stats: {} n={} errors={} p50={}µs p99={}µs p999={}µs max={}µs", name, latency.getCount(),
+                            metrics.errors.sum(), latency.percentileMicros(0.50), latency.percentileMicros(0.99),
+                            latency.percentileMicros(0.999), latency.getMaxMicros());
+                }
+            });
+        } catch (RuntimeException e) {
+            log.warn("Failed to log stats.", e);
+        }
+    }
+}
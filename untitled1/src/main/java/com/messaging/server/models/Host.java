@@ -1,19 +1,31 @@
 package com.messaging.server.models;
 
+import com.messaging.server.auth.SignedTokenIssuer;
 import lombok.Getter;
 import lombok.ToString;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.concurrent.ThreadLocalRandom;
 
-@Getter
+import java.util.BitSet;
+
 @ToString
 public class Host {
+    @Getter
     private final String id;
+    @Getter
     private final String address;
+    @Getter
     private final int startPort;
+    @Getter
     private final int endPort;
-    private final Set<Integer> usedPorts = new HashSet<>();
+    // Bit i stands for port startPort + i.
+    @ToString.Exclude
+    private final BitSet usedPorts = new BitSet();
+    private int usedPortCount;
+    // Allocation continues after the last port handed out, so a port that was just released is not reused right away.
+    @ToString.Exclude
+    private int nextOffset;
+    // Created at the first registration and kept through later ones, so join tokens already signed stay valid.
+    @ToString.Exclude
+    private byte[] tokenKey;
 
     public Host(String address, int startPort, int endPort) {
         this.address = address;
@@ -22,16 +34,65 @@ public class Host {
         this.id = address + ":" + startPort;
     }
 
+    /** Reserves a free port, or returns -1 if the whole range is in use. */
     public synchronized int getAvailablePort() {
-        if (usedPorts.size() > (endPort - startPort)) {
-            return -1;
-        }
-        while (true) {
-            int randomPort = ThreadLocalRandom.current().nextInt(startPort, endPort + 1);
-            if (!usedPorts.contains(randomPort)) {
-                usedPorts.add(randomPort);
-                return randomPort;
+        int size = endPort - startPort + 1;
+        int offset = usedPorts.nextClearBit(nextOffset);
+        if (offset >= size) {
+            offset = usedPorts.nextClearBit(0);
+            if (offset >= size) {
+                return -1;
             }
         }
+        usedPorts.set(offset);
+        usedPortCount++;
+        nextOffset = offset + 1;
+        return startPort + offset;
+    }
+
+    public synchronized int getFreePortCount() {
+        return endPort - startPort + 1 - usedPortCount;
+    }
+
+    public synchronized boolean isPortUsed(int port) {
+        return port >= startPort && port <= endPort && usedPorts.get(port - startPort);
+    }
+
+    public synchronized void markPortUsed(int port) {
+        int offset = port - startPort;
+        if (offset >= 0 && port <= endPort && !usedPorts.get(offset)) {
+            usedPorts.set(offset);
+            usedPortCount++;
+        }
+    }
+
+    public synchronized void releasePort(int port) {
+        int offset = port - startPort;
+        if (offset >= 0 && port <= endPort && usedPorts.get(offset)) {
+            usedPorts.clear(offset);
+            usedPortCount--;
+        }
+    }
+
+    /** Replaces the reserved ports with exactly these, e.g. the ones the host reports running. */
+    public synchronized void setUsedPorts(int[] ports) {
+        usedPorts.clear();
+        usedPortCount = 0;
+        for (int port : ports) {
+            markPortUsed(port);
+        }
+    }
+
+    /** The key join tokens for this host are signed with. */
+    public synchronized byte[] getTokenKey() {
+        if (tokenKey == null) {
+            tokenKey = SignedTokenIssuer.newKey();
+        }
+        return tokenKey;
+    }
+
+    /** The reserved ports in ascending order. */
+    public synchronized int[] getUsedPorts() {
+        return usedPorts.stream().map(offset -> startPort + offset).toArray();
     }
 }
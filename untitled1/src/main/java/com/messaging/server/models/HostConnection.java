@@ -1,19 +1,187 @@
 package com.messaging.server.models;
 
+import com.messaging.server.network.Frame;
+import com.messaging.server.network.NioConnection;
+import com.messaging.server.network.WireProtocol;
+import com.messaging.server.placement.HostLoad;
 import lombok.Getter;
-import java.io.BufferedReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import lombok.extern.slf4j.Slf4j;
 
-@Getter
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Control link to a registered host. Requests are sent as {@code req <id> <command>} and the host answers
+ * with {@code res <id> <reply>} in whatever order they finish, so many requests can be in flight at once.
+ * The host also sends one-way {@code evt <name> ...} notifications, currently only its periodic load report.
+ * A host that negotiated the binary protocol sends the same requests, replies and reports as {@link Frame}s.
+ */
+@Slf4j
 public class HostConnection {
-    private final Socket socket;
-    private final PrintWriter writer;
-    private final BufferedReader reader;
-
-    public HostConnection(Socket socket, PrintWriter writer, BufferedReader reader) {
-        this.socket = socket;
-        this.writer = writer;
-        this.reader = reader;
+    @Getter
+    private final String hostId;
+    @Getter
+    private final Host host;
+    @Getter
+    private final NioConnection connection;
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final ConcurrentHashMap<Long, CompletableFuture<String>> pendingRequests = new ConcurrentHashMap<>();
+    @Getter
+    private volatile HostLoad load = HostLoad.UNKNOWN;
+    // Workspaces placed here that the last load report cannot know about yet.
+    private final AtomicInteger placementsSinceReport = new AtomicInteger();
+    // Set once the host has reported its running workspaces; until then its port map may be stale.
+    private volatile boolean synced;
+    // Only touched by the event loop thread that reads this link.
+    private long lastReportedMessages = -1;
+    private long lastReportNanos;
+
+    public HostConnection(Host host, NioConnection connection) {
+        this.hostId = host.getId();
+        this.host = host;
+        this.connection = connection;
+    }
+
+    /** Shared with the host at registration so it can verify signed join tokens itself. */
+    public byte[] getTokenKey() {
+        return host.getTokenKey();
+    }
+
+    /** The future fails with a {@link java.util.concurrent.TimeoutException} if no reply arrives in time. */
+    public CompletableFuture<String> sendRequest(String command, long timeout, TimeUnit unit) {
+        long requestId = nextRequestId.incrementAndGet();
+        CompletableFuture<String> reply = new CompletableFuture<>();
+        pendingRequests.put(requestId, reply);
+        reply.orTimeout(timeout, unit).whenComplete((response, error) -> pendingRequests.remove(requestId));
+        if (!connection.isOpen()) {
+            reply.completeExceptionally(new IOException("Connection to host " + hostId + " is closed"));
+            return reply;
+        }
+        if (connection.isBinary()) {
+            String[] words = command.split(" ");
+            connection.sendFrame(new Frame(WireProtocol.hostRequestOpcode(words[0]), requestId, List.of(words).subList(1, words.length)));
+        } else {
+            connection.send("req " + requestId + " " + command);
+        }
+        return reply;
+    }
+
+    public boolean canTakeWorkspace() {
+        return synced && connection.isOpen() && host.getFreePortCount() > 0;
+    }
+
+    public void markSynced() {
+        synced = true;
+    }
+
+    public double loadScore() {
+        return load.score(placementsSinceReport.get());
+    }
+
+    public void recordPlacement() {
+        placementsSinceReport.incrementAndGet();
+    }
+
+    public void onMessage(String line) {
+        String[] frame = line.split(" ", 3);
+        if (frame.length == 3 && "evt".equals(frame[0])) {
+            onEvent(frame[1], frame[2]);
+            return;
+        }
+        if (frame.length < 2 || !"res".equals(frame[0])) {
+            log.warn("Received unexpected message from host {}: {}", hostId, line);
+            return;
+        }
+        try {
+            completeRequest(Long.parseLong(frame[1]), frame.length == 3 ? frame[2] : "");
+        } catch (NumberFormatException e) {
+            log.warn("Received reply with invalid request id from host {}: {}", hostId, line);
+        }
+    }
+
+    /** A binary reply or load report; requests from the host are handled by the connection's handler. */
+    public void onFrame(Frame frame) {
+        switch (frame.opcode()) {
+            case WireProtocol.OK, WireProtocol.ERROR -> completeRequest(frame.requestId(), frame.replyText());
+            case WireProtocol.LOAD_REPORT -> {
+                // Fields: workspaces, clients, messages sent in total, heap used, heap max.
+                try {
+                    updateLoad(Integer.parseInt(frame.field(0)), Integer.parseInt(frame.field(1)), Long.parseLong(frame.field(2)),
+                            Long.parseLong(frame.field(3)), Long.parseLong(frame.field(4)));
+                } catch (RuntimeException e) {
+                    log.warn("Received malformed load report from host {}: {}", hostId, frame.fields());
+                }
+            }
+            default -> log.warn("Received unexpected frame 0x{} from host {}", Integer.toHexString(frame.opcode()), hostId);
+        }
+    }
+
+    private void completeRequest(long requestId, String response) {
+        CompletableFuture<String> reply = pendingRequests.remove(requestId);
+        if (reply == null) {
+            log.warn("Received late or unknown reply {} from host {}: {}", requestId, hostId, response);
+            return;
+        }
+        reply.complete(response);
+    }
+
+    private void onEvent(String name, String payload) {
+        if (!"load".equals(name)) {
+            log.debug("Ignoring unknown event {} from host {}", name, hostId);
+            return;
+        }
+        // Format: workspaces=<n> clients=<n> messages=<total sent> heap=<used>/<max>
+        int workspaces = 0, clients = 0;
+        long messages = 0, heapUsed = 0, heapMax = 0;
+        try {
+            for (String field : payload.split(" ")) {
+                int eq = field.indexOf('=');
+                String value = field.substring(eq + 1);
+                switch (field.substring(0, Math.max(eq, 0))) {
+                    case "workspaces" -> workspaces = Integer.parseInt(value);
+                    case "clients" -> clients = Integer.parseInt(value);
+                    case "messages" -> messages = Long.parseLong(value);
+                    case "heap" -> {
+                        int slash = value.indexOf('/');
+                        heapUsed = Long.parseLong(value.substring(0, slash));
+                        heapMax = Long.parseLong(value.substring(slash + 1));
+                    }
+                    default -> {
+                        // Fields added by newer hosts are skipped.
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            log.warn("Received malformed load report from host {}: {}", hostId, payload);
+            return;
+        }
+        updateLoad(workspaces, clients, messages, heapUsed, heapMax);
+    }
+
+    private void updateLoad(int workspaces, int clients, long messages, long heapUsed, long heapMax) {
+        long now = System.nanoTime();
+        double messagesPerSecond = 0;
+        if (lastReportedMessages >= 0 && messages >= lastReportedMessages && now > lastReportNanos) {
+            messagesPerSecond = (messages - lastReportedMessages) * 1e9 / (now - lastReportNanos);
+        }
+        lastReportedMessages = messages;
+        lastReportNanos = now;
+        load = new HostLoad(workspaces, clients, messagesPerSecond, heapUsed, heapMax);
+        placementsSinceReport.set(0);
+        log.debug("Host {} reported {}", hostId, load);
+    }
+
+    public void onClosed() {
+        IOException closed = new IOException("Connection to host " + hostId + " was closed");
+        pendingRequests.values().forEach(reply -> reply.completeExceptionally(closed));
+    }
+
+    public void close() {
+        connection.close();
     }
 }
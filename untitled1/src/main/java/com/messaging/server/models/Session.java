@@ -0,0 +1,21 @@
+package com.messaging.server.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/** What {@code login} hands out: later commands name the session instead of sending the password again. */
+@Getter
+@AllArgsConstructor
+@ToString
+public class Session {
+    public static final long EXPIRATION_TIME_HOURS = 24;
+
+    private final String id;
+    private final String phoneNumber;
+    private final long expiryTimeMillis;
+
+    public boolean isExpired(long nowMillis) {
+        return nowMillis > expiryTimeMillis;
+    }
+}
@@ -1,23 +1,34 @@
 package com.messaging.server.models;
 
 import lombok.Getter;
-import java.time.Instant;
 
 @Getter
 public class Token {
     private final String value;
     private final String phoneNumber;
-    private final Instant creationTime;
-    private static final long EXPIRATION_TIME_SECONDS = 300; // 5 minutes
+    private final long creationTimeMillis;
+    public static final long EXPIRATION_TIME_SECONDS = 300; // 5 minutes
+    private static final long EXPIRATION_TIME_MILLIS = EXPIRATION_TIME_SECONDS * 1000;
 
     public Token(String value, String phoneNumber) {
+        this(value, phoneNumber, System.currentTimeMillis());
+    }
+
+    public Token(String value, String phoneNumber, long creationTimeMillis) {
         this.value = value;
         this.phoneNumber = phoneNumber;
-        this.creationTime = Instant.now();
+        this.creationTimeMillis = creationTimeMillis;
+    }
+
+    public long getExpiryTimeMillis() {
+        return creationTimeMillis + EXPIRATION_TIME_MILLIS;
     }
 
     public boolean isExpired() {
-        return Instant.now().isAfter(creationTime.plusSeconds(EXPIRATION_TIME_SECONDS));
+        return isExpired(System.currentTimeMillis());
     }
-}
 
+    public boolean isExpired(long nowMillis) {
+        return nowMillis > getExpiryTimeMillis();
+    }
+}
@@ -0,0 +1,130 @@
+package com.messaging.server.network;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single selector thread. Channels registered here are only ever read and written on this thread;
+ * other threads hand work over with {@link #execute(Runnable)}.
+ */
+@Slf4j
+public class EventLoop implements Runnable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final long IDLE_CHECK_INTERVAL_MS = 1000;
+
+    private final String name;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Shared by every connection of this loop; connections only keep their unfinished line.
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private volatile Thread thread;
+    private volatile boolean running = true;
+
+    public EventLoop(String name) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+    }
+
+    public void start() {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    SelectionKey register(SelectableChannel channel, int ops, SelectHandler handler) throws ClosedChannelException {
+        return channel.register(selector, ops, handler);
+    }
+
+    ByteBuffer readBuffer() {
+        return readBuffer;
+    }
+
+    @Override
+    public void run() {
+        log.debug("Event loop {} started.", name);
+        long nextIdleCheck = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(IDLE_CHECK_INTERVAL_MS);
+        while (running) {
+            try {
+                selector.select(IDLE_CHECK_INTERVAL_MS);
+                runPendingTasks();
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    try {
+                        if (key.isValid()) {
+                            ((SelectHandler) key.attachment()).onSelect(key);
+                        }
+                    } catch (CancelledKeyException e) {
+                        // The channel was closed from another thread while it was selected.
+                    }
+                }
+                long now = System.nanoTime();
+                if (now - nextIdleCheck >= 0) {
+                    nextIdleCheck = now + TimeUnit.MILLISECONDS.toNanos(IDLE_CHECK_INTERVAL_MS);
+                    for (SelectionKey key : selector.keys()) {
+                        ((SelectHandler) key.attachment()).checkIdle(now);
+                    }
+                }
+            } catch (IOException e) {
+                log.error("Event loop {} failed to select.", name, e);
+            } catch (RuntimeException e) {
+                log.error("Unexpected error in event loop {}.", name, e);
+            }
+        }
+        runPendingTasks();
+        for (SelectionKey key : new ArrayList<>(selector.keys())) {
+            ((SelectHandler) key.attachment()).onLoopShutdown();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.error("Error closing selector of event loop {}.", name, e);
+        }
+        log.debug("Event loop {} stopped.", name);
+    }
+
+    private void runPendingTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.error("Task failed in event loop {}.", name, e);
+            }
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    public void awaitTermination() throws InterruptedException {
+        if (thread != null) {
+            thread.join();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.messaging.server.network;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/** One message of the binary wire protocol; see {@link WireProtocol} for the layout. */
+public record Frame(int opcode, long requestId, List<String> fields) {
+
+    public static Frame of(int opcode, long requestId, String... fields) {
+        return new Frame(opcode, requestId, List.of(fields));
+    }
+
+    /**
+     * Turns a text reply such as {@code OK 127.0.0.1 9100} or {@code ERROR Invalid credentials} into a reply frame:
+     * the words after OK become fields, an error keeps its message as one field.
+     */
+    public static Frame reply(long requestId, String reply) {
+        if (reply.equals("OK")) {
+            return new Frame(WireProtocol.OK, requestId, List.of());
+        }
+        if (reply.startsWith("OK ")) {
+            return new Frame(WireProtocol.OK, requestId, List.of(reply.substring(3).split(" ")));
+        }
+        String message = reply.startsWith("ERROR ") ? reply.substring(6) : reply;
+        return new Frame(WireProtocol.ERROR, requestId, List.of(message));
+    }
+
+    public String field(int index) {
+        return fields.get(index);
+    }
+
+    public String[] fieldArray() {
+        return fields.toArray(String[]::new);
+    }
+
+    /** The reply in its text form, for code that was written against the text protocol. */
+    public String replyText() {
+        String prefix = opcode == WireProtocol.OK ? "OK" : "ERROR";
+        return fields.isEmpty() ? prefix : prefix + " " + String.join(" ", fields);
+    }
+
+    public ByteBuffer encode() {
+        byte[][] encoded = new byte[fields.size()][];
+        int bodyLength = 1 + varIntSize(requestId);
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = fields.get(i).getBytes(StandardCharsets.UTF_8);
+            bodyLength += varIntSize(encoded[i].length) + encoded[i].length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(varIntSize(bodyLength) + bodyLength);
+        putVarInt(buffer, bodyLength);
+        buffer.put((byte) opcode);
+        putVarInt(buffer, requestId);
+        for (byte[] field : encoded) {
+            putVarInt(buffer, field.length);
+            buffer.put(field);
+        }
+        return buffer.flip();
+    }
+
+    private static int varIntSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static void putVarInt(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+}
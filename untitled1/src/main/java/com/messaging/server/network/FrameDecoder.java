@@ -0,0 +1,126 @@
+package com.messaging.server.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Decodes {@link Frame}s straight from the read buffer. Only a frame cut off at the end of a read is copied
+ * aside, like the unfinished line of a {@link LineDecoder}.
+ */
+class FrameDecoder {
+    private static final byte[] EMPTY = new byte[0];
+
+    private final int maxFrameLength;
+    private byte[] pending = EMPTY;
+    private int pendingLength;
+    // Fields are copied here from a direct read buffer before being turned into strings.
+    private byte[] scratch = new byte[256];
+
+    FrameDecoder(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    void decode(ByteBuffer in, Consumer<Frame> out) throws IOException {
+        // Finish a frame cut off by the previous read, then go on decoding from the read buffer itself.
+        while (pendingLength > 0 && in.hasRemaining()) {
+            append(in, Math.min(bytesMissing(), in.remaining()));
+            if (bytesMissing() == 0) {
+                decodeComplete(ByteBuffer.wrap(pending, 0, pendingLength), out);
+                pendingLength = 0;
+                if (pending.length > 1024) {
+                    pending = EMPTY; // don't keep a large buffer around after one long frame
+                }
+            }
+        }
+        decodeComplete(in, out);
+        append(in, in.remaining());
+    }
+
+    /** Bytes still needed to complete the pending frame, or one more while its length is not known yet. */
+    private int bytesMissing() throws IOException {
+        ByteBuffer buffered = ByteBuffer.wrap(pending, 0, pendingLength);
+        long length = readVarInt(buffered);
+        if (length < 0) {
+            return 1;
+        }
+        if (length > maxFrameLength) {
+            throw new IOException("Frame exceeds maximum length of " + maxFrameLength + " bytes");
+        }
+        return (int) (buffered.position() + length - pendingLength);
+    }
+
+    /** Decodes every whole frame and leaves the buffer at the start of the first incomplete one. */
+    private void decodeComplete(ByteBuffer in, Consumer<Frame> out) throws IOException {
+        while (in.hasRemaining()) {
+            int start = in.position();
+            long length = readVarInt(in);
+            if (length < 0 || in.remaining() < length) {
+                in.position(start);
+                return;
+            }
+            if (length > maxFrameLength || length < 2) {
+                throw new IOException("Invalid frame length " + length);
+            }
+            int end = in.position() + (int) length;
+            int opcode = in.get() & 0xFF;
+            long requestId = readVarInt(in);
+            if (requestId < 0 || in.position() > end) {
+                throw new IOException("Malformed frame header");
+            }
+            List<String> fields = new ArrayList<>(4);
+            while (in.position() < end) {
+                long fieldLength = readVarInt(in);
+                if (fieldLength < 0 || in.position() + fieldLength > end) {
+                    throw new IOException("Field runs past the end of its frame");
+                }
+                fields.add(readString(in, (int) fieldLength));
+            }
+            out.accept(new Frame(opcode, requestId, fields));
+        }
+    }
+
+    private String readString(ByteBuffer in, int length) {
+        if (in.hasArray()) {
+            String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+            return value;
+        }
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        in.get(scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /** Returns -1 if the varint is not complete yet. */
+    private static long readVarInt(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (!in.hasRemaining()) {
+                return -1;
+            }
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint is too long");
+    }
+
+    private void append(ByteBuffer in, int count) {
+        if (count == 0) {
+            return;
+        }
+        if (pendingLength + count > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pendingLength + count, Math.max(64, pending.length * 2)));
+        }
+        in.get(pending, pendingLength, count);
+        pendingLength += count;
+    }
+}
@@ -0,0 +1,64 @@
+package com.messaging.server.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Splits a byte stream into '\n' terminated UTF-8 lines. Only the unfinished tail of the
+ * last read is kept per connection, so idle connections cost a few bytes.
+ */
+class LineDecoder {
+    private static final byte[] EMPTY = new byte[0];
+
+    private final int maxLineLength;
+    private byte[] pending = EMPTY;
+    private int pendingLength;
+
+    LineDecoder(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    void decode(ByteBuffer in, Consumer<String> out) throws IOException {
+        while (in.hasRemaining()) {
+            int start = in.position();
+            int newline = -1;
+            for (int i = start; i < in.limit(); i++) {
+                if (in.get(i) == '\n') {
+                    newline = i;
+                    break;
+                }
+            }
+            if (newline < 0) {
+                append(in, in.remaining());
+                return;
+            }
+            append(in, newline - start);
+            in.get(); // consume '\n'
+
+            int length = pendingLength;
+            if (length > 0 && pending[length - 1] == '\r') {
+                length--;
+            }
+            String line = new String(pending, 0, length, StandardCharsets.UTF_8);
+            pendingLength = 0;
+            if (pending.length > 1024) {
+                pending = EMPTY; // don't keep a large buffer around after one long line
+            }
+            out.accept(line);
+        }
+    }
+
+    private void append(ByteBuffer in, int count) throws IOException {
+        if (pendingLength + count > maxLineLength) {
+            throw new IOException("Line exceeds maximum length of " + maxLineLength + " bytes");
+        }
+        if (pendingLength + count > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pendingLength + count, Math.max(64, pending.length * 2)));
+        }
+        in.get(pending, pendingLength, count);
+        pendingLength += count;
+    }
+}
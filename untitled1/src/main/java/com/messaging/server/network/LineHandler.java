@@ -0,0 +1,14 @@
+package com.messaging.server.network;
+
+/**
+ * Receives the decoded text lines or binary frames of a single {@link NioConnection}.
+ * {@link #onLine(String)} and {@link #onFrame(Frame)} are called on the connection's event loop thread and must not block;
+ * {@link #onClose()} is called once, on whichever thread closed the connection.
+ */
+public interface LineHandler {
+    void onLine(String line);
+
+    void onFrame(Frame frame);
+
+    void onClose();
+}
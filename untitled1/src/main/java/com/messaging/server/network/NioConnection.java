@@ -0,0 +1,266 @@
+package com.messaging.server.network;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A non-blocking connection owned by one {@link EventLoop}. It carries text lines unless the peer opens with the
+ * {@link WireProtocol#PREFACE}, in which case it carries binary {@link Frame}s.
+ * {@link #send(String)}, {@link #sendFrame(Frame)} and {@link #close()} may be called from any thread.
+ */
+@Slf4j
+public class NioConnection implements SelectHandler {
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private final SocketChannel channel;
+    @Getter
+    private final EventLoop loop;
+    @Getter
+    private final SocketAddress remoteAddress;
+    private final LineDecoder decoder = new LineDecoder(MAX_LINE_LENGTH);
+    private FrameDecoder frameDecoder;
+    // Preface bytes seen so far; decided once the first byte differs or the whole preface has arrived.
+    private int prefaceMatched;
+    private volatile boolean protocolDecided;
+    private volatile boolean binary;
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile boolean closeAfterFlush;
+    private volatile long idleTimeoutNanos;
+    private long lastReadNanos = System.nanoTime();
+    private SelectionKey key;
+    private LineHandler handler;
+
+    NioConnection(SocketChannel channel, EventLoop loop) throws IOException {
+        this.channel = channel;
+        this.loop = loop;
+        this.remoteAddress = channel.getRemoteAddress();
+    }
+
+    void setHandler(LineHandler handler) {
+        this.handler = handler;
+    }
+
+    /** Must run on the owning loop. */
+    void register() {
+        try {
+            key = loop.register(channel, SelectionKey.OP_READ, this);
+            flush();
+        } catch (IOException e) {
+            log.warn("Could not register connection {}: {}", remoteAddress, e.getMessage());
+            close();
+        }
+    }
+
+    /** Closes the connection after this long without input; zero disables the timeout. */
+    public void setIdleTimeout(long timeout, TimeUnit unit) {
+        this.idleTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    /** Stops or resumes reading from the socket, e.g. while too many commands are still being processed. */
+    public void setReadingEnabled(boolean enabled) {
+        loop.execute(() -> {
+            if (key == null || !key.isValid()) {
+                return;
+            }
+            int ops = key.interestOps();
+            key.interestOps(enabled ? ops | SelectionKey.OP_READ : ops & ~SelectionKey.OP_READ);
+        });
+    }
+
+    public boolean isOpen() {
+        return !closed.get();
+    }
+
+    /** Whether the peer chose the binary protocol; only meaningful once it has sent something. */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public void send(String line) {
+        if (closed.get()) {
+            log.debug("Dropping message for closed connection {}", remoteAddress);
+            return;
+        }
+        outbound.add(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+        scheduleFlush();
+    }
+
+    public void sendFrame(Frame frame) {
+        if (closed.get()) {
+            log.debug("Dropping frame for closed connection {}", remoteAddress);
+            return;
+        }
+        outbound.add(frame.encode());
+        scheduleFlush();
+    }
+
+    /** Closes the connection once everything queued so far has been written. */
+    public void closeAfterFlush() {
+        closeAfterFlush = true;
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (loop.inEventLoop()) {
+            flush();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(() -> {
+                flushScheduled.set(false);
+                flush();
+            });
+        }
+    }
+
+    @Override
+    public void onSelect(SelectionKey key) {
+        if (key.isReadable()) {
+            read();
+        }
+        if (key.isValid() && key.isWritable()) {
+            flush();
+        }
+    }
+
+    private void read() {
+        ByteBuffer buffer = loop.readBuffer();
+        buffer.clear();
+        try {
+            int read = channel.read(buffer);
+            if (read < 0) {
+                close();
+                return;
+            }
+            lastReadNanos = System.nanoTime();
+            buffer.flip();
+            if (!protocolDecided && !negotiate(buffer)) {
+                return;
+            }
+            if (binary) {
+                frameDecoder.decode(buffer, this::dispatchFrame);
+            } else {
+                decoder.decode(buffer, this::dispatch);
+            }
+        } catch (IOException e) {
+            log.debug("IO error with connection [{}]: {}", remoteAddress, e.getMessage());
+            close();
+        }
+    }
+
+    /** Returns false while the preface is still incomplete. */
+    private boolean negotiate(ByteBuffer buffer) throws IOException {
+        byte[] preface = WireProtocol.PREFACE;
+        while (buffer.hasRemaining() && prefaceMatched < preface.length) {
+            if (buffer.get(buffer.position()) != preface[prefaceMatched]) {
+                if (prefaceMatched > 0) {
+                    throw new IOException("Invalid protocol preface");
+                }
+                protocolDecided = true;
+                return true;
+            }
+            buffer.get();
+            prefaceMatched++;
+        }
+        if (prefaceMatched < preface.length) {
+            return false;
+        }
+        frameDecoder = new FrameDecoder(WireProtocol.MAX_FRAME_LENGTH);
+        binary = true;
+        protocolDecided = true;
+        outbound.add(ByteBuffer.wrap(preface));
+        scheduleFlush();
+        return true;
+    }
+
+    private void dispatchFrame(Frame frame) {
+        if (closed.get()) {
+            return;
+        }
+        try {
+            handler.onFrame(frame);
+        } catch (RuntimeException e) {
+            log.error("Handler failed to process frame from [{}]", remoteAddress, e);
+            close();
+        }
+    }
+
+    private void dispatch(String line) {
+        if (closed.get()) {
+            return;
+        }
+        try {
+            handler.onLine(line);
+        } catch (RuntimeException e) {
+            log.error("Handler failed to process line from [{}]", remoteAddress, e);
+            close();
+        }
+    }
+
+    private void flush() {
+        if (key == null || closed.get()) {
+            return;
+        }
+        try {
+            ByteBuffer buffer;
+            while ((buffer = outbound.peek()) != null) {
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                outbound.poll();
+            }
+            if ((key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+            if (closeAfterFlush) {
+                close();
+            }
+        } catch (IOException e) {
+            log.debug("Write to [{}] failed: {}", remoteAddress, e.getMessage());
+            close();
+        }
+    }
+
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            channel.close();
+            log.debug("Connection closed for {}", remoteAddress);
+        } catch (IOException e) {
+            log.error("Error while closing connection: {}", e.getMessage());
+        }
+        outbound.clear();
+        if (handler != null) {
+            handler.onClose();
+        }
+    }
+
+    @Override
+    public void onLoopShutdown() {
+        close();
+    }
+
+    @Override
+    public void checkIdle(long nowNanos) {
+        long timeout = idleTimeoutNanos;
+        if (timeout > 0 && nowNanos - lastReadNanos > timeout) {
+            log.debug("Closing idle connection {}", remoteAddress);
+            close();
+        }
+    }
+}
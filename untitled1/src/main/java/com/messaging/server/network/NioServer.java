@@ -0,0 +1,114 @@
+package com.messaging.server.network;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.function.Function;
+
+/**
+ * Accepts connections on one loop and spreads them round-robin over a fixed set of I/O loops.
+ */
+@Slf4j
+public class NioServer implements SelectHandler {
+    private static final int ACCEPT_BACKLOG = 4096;
+
+    private final int port;
+    private final EventLoop acceptLoop;
+    private final EventLoop[] ioLoops;
+    private final Function<NioConnection, LineHandler> handlerFactory;
+    private ServerSocketChannel serverChannel;
+    private int nextLoop;
+
+    public NioServer(int port, int ioThreads, Function<NioConnection, LineHandler> handlerFactory) throws IOException {
+        this.port = port;
+        this.handlerFactory = handlerFactory;
+        this.acceptLoop = new EventLoop("Central-Acceptor");
+        this.ioLoops = new EventLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            ioLoops[i] = new EventLoop("Central-IO-" + i);
+        }
+    }
+
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        serverChannel.configureBlocking(false);
+
+        for (EventLoop loop : ioLoops) {
+            loop.start();
+        }
+        acceptLoop.start();
+        acceptLoop.execute(() -> {
+            try {
+                acceptLoop.register(serverChannel, SelectionKey.OP_ACCEPT, this);
+            } catch (IOException e) {
+                log.error("Could not register server channel on port {}", port, e);
+            }
+        });
+    }
+
+    @Override
+    public void onSelect(SelectionKey key) {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                // Typically file descriptor exhaustion; leave the rest in the backlog for the next select.
+                log.error("Error accepting client connection", e);
+                return;
+            }
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                EventLoop loop = ioLoops[nextLoop];
+                nextLoop = (nextLoop + 1) % ioLoops.length;
+
+                NioConnection connection = new NioConnection(channel, loop);
+                connection.setHandler(handlerFactory.apply(connection));
+                loop.execute(connection::register);
+                log.debug("Accepted new connection from {}", connection.getRemoteAddress());
+            } catch (IOException e) {
+                log.warn("Could not set up accepted connection: {}", e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // already failing
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onLoopShutdown() {
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            log.error("Error closing server channel on port {}", port, e);
+        }
+    }
+
+    public void stop() {
+        acceptLoop.shutdown();
+        for (EventLoop loop : ioLoops) {
+            loop.shutdown();
+        }
+        try {
+            acceptLoop.awaitTermination();
+            for (EventLoop loop : ioLoops) {
+                loop.awaitTermination();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.messaging.server.network;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * Attachment of every key registered with an {@link EventLoop}; called on the loop thread when the key is ready.
+ */
+public interface SelectHandler {
+    void onSelect(SelectionKey key) throws IOException;
+
+    /** Called on the loop thread when the loop shuts down with this key still registered. */
+    void onLoopShutdown();
+
+    /** Called periodically on the loop thread so idle channels can be closed. */
+    default void checkIdle(long nowNanos) {
+    }
+}
@@ -0,0 +1,80 @@
+package com.messaging.server.network;
+
+import java.util.Map;
+
+/**
+ * Constants of the binary wire protocol, which a peer selects by sending {@link #PREFACE} as the very first bytes of
+ * a connection; the server echoes it and both sides then exchange {@link Frame}s instead of text lines.
+ * Any other first byte keeps the connection on the text protocol, so the CLI and scripts work unchanged.
+ * <p>
+ * A frame is {@code <length><opcode><request id><field>*}: the length (of everything after it), the request id and
+ * every field length are unsigned LEB128 varints, the opcode is one byte and each field is UTF-8. Replies are
+ * {@link #OK} or {@link #ERROR} frames carrying the id of the request they answer.
+ */
+public final class WireProtocol {
+    public static final byte[] PREFACE = {0, 'P', 'B', 1};
+    public static final int MAX_FRAME_LENGTH = 64 * 1024;
+
+    public static final int OK = 0x01;
+    public static final int ERROR = 0x02;
+
+    // Client commands, each with the same fields as its text form.
+    public static final int REGISTER = 0x10;
+    public static final int LOGIN = 0x11;
+    public static final int CREATE_WORKSPACE = 0x12;
+    public static final int CONNECT_WORKSPACE = 0x13;
+    public static final int DELETE_WORKSPACE = 0x14;
+    public static final int WHOIS = 0x15;
+    public static final int QUIT = 0x16;
+    public static final int STATS = 0x17;
+    public static final int LOGOUT = 0x18;
+    public static final int LIST_WORKSPACES = 0x19;
+    public static final int MY_WORKSPACES = 0x1A;
+    public static final int REGISTER_BULK = 0x1B;
+    public static final int GET_INBOX = 0x1C;
+
+    // Host registration and the host control link.
+    public static final int CREATE_HOST = 0x20;
+    public static final int CHECK = 0x21;
+    public static final int VERIFY = 0x22;
+    public static final int HOST_CREATE_WORKSPACE = 0x23;
+    public static final int HOST_DELETE_WORKSPACE = 0x24;
+    public static final int WHOIS_BATCH = 0x25;
+    public static final int SYNC_WORKSPACES = 0x26;
+    public static final int LOAD_REPORT = 0x27;
+    public static final int HOST_INBOX = 0x28;
+
+    private static final Map<Integer, String> COMMAND_NAMES = Map.ofEntries(
+            Map.entry(REGISTER, "register"),
+            Map.entry(LOGIN, "login"),
+            Map.entry(CREATE_WORKSPACE, "create-workspace"),
+            Map.entry(CONNECT_WORKSPACE, "connect-workspace"),
+            Map.entry(DELETE_WORKSPACE, "delete-workspace"),
+            Map.entry(WHOIS, "whois"),
+            Map.entry(QUIT, "quit"),
+            Map.entry(STATS, "stats"),
+            Map.entry(LOGOUT, "logout"),
+            Map.entry(LIST_WORKSPACES, "list-workspaces"),
+            Map.entry(MY_WORKSPACES, "my-workspaces"),
+            Map.entry(REGISTER_BULK, "register-bulk"),
+            Map.entry(GET_INBOX, "get-inbox"),
+            Map.entry(CREATE_HOST, "create-host"));
+
+    private static final Map<String, Integer> HOST_REQUEST_OPCODES = Map.of(
+            "create-workspace", HOST_CREATE_WORKSPACE,
+            "delete-workspace", HOST_DELETE_WORKSPACE,
+            "inbox", HOST_INBOX);
+
+    private WireProtocol() {
+    }
+
+    /** The text command a client opcode stands for, or null if it is not a client command. */
+    public static String commandName(int opcode) {
+        return COMMAND_NAMES.get(opcode);
+    }
+
+    /** The opcode of a request the server sends to a host, or -1 if it has none. */
+    public static int hostRequestOpcode(String command) {
+        return HOST_REQUEST_OPCODES.getOrDefault(command, -1);
+    }
+}
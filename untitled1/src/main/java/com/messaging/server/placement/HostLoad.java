@@ -0,0 +1,24 @@
+package com.messaging.server.placement;
+
+/**
+ * The latest load a host reported over its control link; immutable, so it can be swapped in atomically.
+ */
+public record HostLoad(int workspaces, int clients, double messagesPerSecond, long heapUsedBytes, long heapMaxBytes) {
+
+    public static final HostLoad UNKNOWN = new HostLoad(0, 0, 0, 0, 0);
+
+    // A workspace counts as much as this many connected clients, so empty workspaces still spread out.
+    private static final double WORKSPACE_WEIGHT = 10;
+    private static final double MIN_HEAP_HEADROOM = 0.05;
+
+    /**
+     * Lower is better. Demand (clients, message rate, workspaces) is scaled up as free heap runs out.
+     *
+     * @param extraWorkspaces workspaces placed on the host since this report was taken
+     */
+    public double score(int extraWorkspaces) {
+        double demand = clients + messagesPerSecond + WORKSPACE_WEIGHT * (workspaces + extraWorkspaces);
+        double heapHeadroom = heapMaxBytes > 0 ? Math.max(MIN_HEAP_HEADROOM, 1 - (double) heapUsedBytes / heapMaxBytes) : 1;
+        return demand / heapHeadroom;
+    }
+}
@@ -0,0 +1,26 @@
+package com.messaging.server.placement;
+
+import com.messaging.server.models.HostConnection;
+
+import java.util.List;
+
+/** Scans every host and takes the one with the lowest load score. */
+public class LeastLoadedPlacement implements PlacementStrategy {
+
+    @Override
+    public HostConnection choose(List<HostConnection> hosts) {
+        HostConnection best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (HostConnection host : hosts) {
+            if (!host.canTakeWorkspace()) {
+                continue;
+            }
+            double score = host.loadScore();
+            if (score < bestScore) {
+                best = host;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,29 @@
+package com.messaging.server.placement;
+
+import com.messaging.server.models.HostConnection;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Decides which host a new workspace goes to. Implementations only read the candidates' current load, so one
+ * instance is shared by all connections.
+ */
+public interface PlacementStrategy {
+    String PROPERTY = "payamresan.placement";
+
+    /** Picks a host among the live host links, or returns null when none of them can take another workspace. */
+    HostConnection choose(List<HostConnection> hosts);
+
+    static PlacementStrategy fromSystemProperties() {
+        String value = System.getProperty(PROPERTY, "power-of-two");
+        return switch (value.trim().toLowerCase(Locale.ROOT)) {
+            case "least-loaded" -> new LeastLoadedPlacement();
+            case "power-of-two" -> new PowerOfTwoChoicesPlacement();
+            case "port-weighted" -> new PortWeightedPlacement();
+            case "random" -> new RandomPlacement();
+            default -> throw new IllegalArgumentException("Unknown " + PROPERTY + " '" + value
+                    + "', expected least-loaded, power-of-two, port-weighted or random");
+        };
+    }
+}
@@ -0,0 +1,33 @@
+package com.messaging.server.placement;
+
+import com.messaging.server.models.HostConnection;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/** Picks a host at random with probability proportional to its free ports, so hosts fill up evenly. */
+public class PortWeightedPlacement implements PlacementStrategy {
+
+    @Override
+    public HostConnection choose(List<HostConnection> hosts) {
+        int size = hosts.size();
+        int[] freePorts = new int[size];
+        long total = 0;
+        for (int i = 0; i < size; i++) {
+            HostConnection host = hosts.get(i);
+            freePorts[i] = host.canTakeWorkspace() ? host.getHost().getFreePortCount() : 0;
+            total += freePorts[i];
+        }
+        if (total == 0) {
+            return null;
+        }
+        long pick = ThreadLocalRandom.current().nextLong(total);
+        for (int i = 0; i < size; i++) {
+            pick -= freePorts[i];
+            if (pick < 0) {
+                return hosts.get(i);
+            }
+        }
+        return null;
+    }
+}
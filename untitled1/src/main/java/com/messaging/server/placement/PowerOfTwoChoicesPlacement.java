@@ -0,0 +1,39 @@
+package com.messaging.server.placement;
+
+import com.messaging.server.models.HostConnection;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Samples two hosts at random and takes the less loaded one. Nearly as balanced as a full scan, but concurrent
+ * placements working from the same stale reports do not all pile onto one host.
+ */
+public class PowerOfTwoChoicesPlacement implements PlacementStrategy {
+    private final LeastLoadedPlacement fallback = new LeastLoadedPlacement();
+
+    @Override
+    public HostConnection choose(List<HostConnection> hosts) {
+        int size = hosts.size();
+        if (size <= 2) {
+            return fallback.choose(hosts);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(size);
+        int second = random.nextInt(size - 1);
+        if (second >= first) {
+            second++;
+        }
+        HostConnection a = hosts.get(first);
+        HostConnection b = hosts.get(second);
+        boolean aUsable = a.canTakeWorkspace();
+        boolean bUsable = b.canTakeWorkspace();
+        if (aUsable && bUsable) {
+            return a.loadScore() <= b.loadScore() ? a : b;
+        }
+        if (aUsable || bUsable) {
+            return aUsable ? a : b;
+        }
+        return fallback.choose(hosts); // both samples full or down
+    }
+}
@@ -0,0 +1,26 @@
+package com.messaging.server.placement;
+
+import com.messaging.server.models.HostConnection;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/** Starts at a random host and takes the first that can take a workspace; ignores load reports. */
+public class RandomPlacement implements PlacementStrategy {
+
+    @Override
+    public HostConnection choose(List<HostConnection> hosts) {
+        int size = hosts.size();
+        if (size == 0) {
+            return null;
+        }
+        int start = ThreadLocalRandom.current().nextInt(size);
+        for (int i = 0; i < size; i++) {
+            HostConnection host = hosts.get((start + i) % size);
+            if (host.canTakeWorkspace()) {
+                return host;
+            }
+        }
+        return null;
+    }
+}
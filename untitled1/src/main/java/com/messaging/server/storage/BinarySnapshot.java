@@ -0,0 +1,125 @@
+package com.messaging.server.storage;
+
+import com.messaging.server.models.Host;
+import com.messaging.server.models.Session;
+import com.messaging.server.models.User;
+import com.messaging.server.models.Workspace;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Binary layout of the central snapshot:
+ * <pre>
+ * "PYRC" version journalSequence usersMapped    (usersMapped since version 3)
+ * users:      {1 phone password}... 0
+ * hosts:      {1 address* startPort endPort portCount portDelta...}... 0
+ * workspaces: {1 name hostAddress* hostStartPort hostEndPort port creatorPhone*}... 0
+ * sessions:   {1 id phone* expiryTimeMillis}... 0     (since version 2)
+ * </pre>
+ * Numbers are varints and fields marked * are dictionary strings. Sections end with a 0 instead of starting
+ * with a count, so a snapshot can be streamed from maps that are still changing.
+ */
+final class BinarySnapshot {
+    static final byte[] MAGIC = "PYRC".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 3;
+
+    private BinarySnapshot() {
+    }
+
+    static void write(PersistentState state, OutputStream stream) throws IOException {
+        SnapshotOutput out = new SnapshotOutput(stream);
+        out.writeHeader(MAGIC, VERSION);
+        out.writeVarLong(state.journalSequence);
+        out.writeBoolean(state.usersMapped);
+        for (User user : state.users.values()) {
+            out.writeBoolean(true);
+            out.writeString(user.getPhoneNumber()); // unique, so not worth a dictionary entry
+            out.writeString(user.getPassword());
+        }
+        out.writeBoolean(false);
+        for (Host host : state.hosts.values()) {
+            int[] usedPorts = host.getUsedPorts();
+            out.writeBoolean(true);
+            out.writeDictionaryString(host.getAddress());
+            out.writeVarInt(host.getStartPort());
+            out.writeVarInt(host.getEndPort());
+            out.writeVarInt(usedPorts.length);
+            int previous = 0;
+            for (int port : usedPorts) {
+                out.writeVarInt(port - previous);
+                previous = port;
+            }
+        }
+        out.writeBoolean(false);
+        for (Workspace workspace : state.workspaces.values()) {
+            Host host = workspace.getHost();
+            out.writeBoolean(true);
+            out.writeString(workspace.getName());
+            out.writeDictionaryString(host.getAddress());
+            out.writeVarInt(host.getStartPort());
+            out.writeVarInt(host.getEndPort());
+            out.writeVarInt(workspace.getPort());
+            out.writeDictionaryString(workspace.getCreatorPhoneNumber());
+        }
+        out.writeBoolean(false);
+        for (Session session : state.sessions.values()) {
+            out.writeBoolean(true);
+            out.writeString(session.getId());
+            out.writeDictionaryString(session.getPhoneNumber());
+            out.writeVarLong(session.getExpiryTimeMillis());
+        }
+        out.writeBoolean(false);
+        out.flush();
+    }
+
+    static PersistentState read(InputStream stream) throws IOException {
+        SnapshotInput in = new SnapshotInput(stream);
+        int version = in.readHeader(MAGIC);
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        PersistentState state = new PersistentState();
+        state.journalSequence = in.readVarLong();
+        state.usersMapped = version >= 3 && in.readBoolean();
+        state.users = new ConcurrentHashMap<>();
+        while (in.readBoolean()) {
+            String phone = in.readString();
+            state.users.put(phone, new User(phone, in.readString()));
+        }
+        state.hosts = new ConcurrentHashMap<>();
+        while (in.readBoolean()) {
+            Host host = new Host(in.readDictionaryString(), in.readVarInt(), in.readVarInt());
+            int portCount = in.readVarInt();
+            int port = 0;
+            for (int i = 0; i < portCount; i++) {
+                port += in.readVarInt();
+                host.markPortUsed(port);
+            }
+            state.hosts.put(host.getId(), host);
+        }
+        state.workspaces = new ConcurrentHashMap<>();
+        while (in.readBoolean()) {
+            String name = in.readString();
+            String hostAddress = in.readDictionaryString();
+            int hostStartPort = in.readVarInt();
+            int hostEndPort = in.readVarInt();
+            // Share the registered host rather than keeping a detached copy per workspace.
+            Host host = state.hosts.get(hostAddress + ":" + hostStartPort);
+            if (host == null) {
+                host = new Host(hostAddress, hostStartPort, hostEndPort);
+            }
+            int port = in.readVarInt();
+            state.workspaces.put(name, new Workspace(name, host, port, in.readDictionaryString()));
+        }
+        state.sessions = new ConcurrentHashMap<>();
+        while (version >= 2 && in.readBoolean()) {
+            String id = in.readString();
+            state.sessions.put(id, new Session(id, in.readDictionaryString(), in.readVarLong()));
+        }
+        return state;
+    }
+}
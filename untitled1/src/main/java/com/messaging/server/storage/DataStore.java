@@ -5,150 +5,761 @@ import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NavigableSet;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.reflect.TypeToken;
 import com.messaging.server.models.Host;
 import com.messaging.server.models.HostConnection;
+import com.messaging.server.models.Session;
 import com.messaging.server.models.Token;
 import com.messaging.server.models.User;
 import com.messaging.server.models.Workspace;
 
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.Reader;
-import java.io.Writer;
+import java.io.FileOutputStream;
+import java.io.InputStream;
 import java.lang.reflect.Type;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 
 @Slf4j
 public class DataStore {
+    private static final long TOKEN_WHEEL_TICK_MS = 1000;
+    private static final int TOKEN_WHEEL_SLOTS = 512; // one rotation outlives a token
+    // Long enough for a host whose whois-batch timed out to ask again on a connection of its own.
+    private static final long REDEEMED_TOKEN_GRACE_MS = 30_000;
+    private static final long SESSION_WHEEL_TICK_MS = 60_000;
+    private static final int SESSION_WHEEL_SLOTS = 1440; // one rotation per day
+    public static final String MAX_SESSIONS_PROPERTY = "payamresan.max-sessions";
+    private static final int MAX_SESSIONS = Integer.getInteger(MAX_SESSIONS_PROPERTY, 1_000_000);
+    private static final long SNAPSHOT_CHECK_INTERVAL_MS = 5000;
+    private static final long SNAPSHOT_INTERVAL_MS = 60_000;
+    private static final long SNAPSHOT_EVERY_RECORDS = 100_000;
     private static final DataStore INSTANCE = new DataStore();
-    private static class PersistentState {
-        ConcurrentHashMap<String, User> users;
-        ConcurrentHashMap<String, Host> hosts;
-        ConcurrentHashMap<String, Workspace> workspaces;
-    }
-    private final ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>(); // Key: phoneNumber
+    private static final NavigableSet<String> EMPTY_NAMES = Collections.emptyNavigableSet();
+    private volatile UserTable users = new HeapUserTable();
     private final ConcurrentHashMap<String, Host> hosts = new ConcurrentHashMap<>(); // Key: hostId
     private final ConcurrentHashMap<String, Workspace> workspaces = new ConcurrentHashMap<>(); // Key: workspaceName
+    // Sorted views of the workspace names for paging and a lookup by location, kept in step with workspaces by apply().
+    private final ConcurrentSkipListSet<String> workspaceNames = new ConcurrentSkipListSet<>();
+    private final ConcurrentHashMap<String, ConcurrentSkipListSet<String>> workspacesByCreator = new ConcurrentHashMap<>(); // Key: creatorPhoneNumber
+    private final ConcurrentHashMap<String, String> workspacesByLocation = new ConcurrentHashMap<>(); // Key: hostId/port
+    // Names claimed by a create-workspace that is still placing its workspace on a host.
+    private final Set<String> reservedWorkspaceNames = ConcurrentHashMap.newKeySet();
     private final ConcurrentHashMap<String, Token> tokens = new ConcurrentHashMap<>(); // Key: tokenValue
+    private final ConcurrentHashMap<String, RedeemedToken> recentlyRedeemed = new ConcurrentHashMap<>(); // Key: tokenValue
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>(); // Key: sessionId
     private final ConcurrentHashMap<String, HostConnection> activeHostConnections = new ConcurrentHashMap<>(); // Key: hostId
+    private volatile List<HostConnection> placementCandidates = List.of();
+    private final PortRangeIndex portRanges = new PortRangeIndex();
+    private final TimingWheel<String> tokenExpiry =
+            new TimingWheel<>(TOKEN_WHEEL_TICK_MS, TOKEN_WHEEL_SLOTS, System.currentTimeMillis());
+    private final TimingWheel<String> sessionExpiry =
+            new TimingWheel<>(SESSION_WHEEL_TICK_MS, SESSION_WHEEL_SLOTS, System.currentTimeMillis());
+    private final LongAdder expiredTokens = new LongAdder();
+    private final LongAdder redeemedTokens = new LongAdder();
+    // Orders mutations so the journal sees them in the order they were applied.
+    private final Object mutationLock = new Object();
+    private volatile Journal journal;
+    // Standby feeds; each is handed every mutation line in order, under mutationLock.
+    private final List<Consumer<String>> replicas = new CopyOnWriteArrayList<>();
+    private String userTableBaseName = "central_server_users";
+    private long loadedJournalSequence;
+    private ScheduledExecutorService snapshotTimer;
+    private volatile long snapshotSequence;
+    private volatile long lastSnapshotMillis;
+
+    public record TokenStats(long live, long expired, long redeemed) {
+    }
+
+    private record RedeemedToken(Token token, long graceEndMillis) {
+    }
+
+    /** A row of a {@link #registerUsers} batch that was not registered, and why. */
+    public record RejectedRow(int row, String reason) {
+        public static final String EXISTS = "exists";
+        public static final String DUPLICATE = "duplicate";
+        /** The central node owning the row could not be reached. */
+        public static final String UNAVAILABLE = "unavailable";
+    }
+
+    /** Workspace names in order, and whether more follow the last one. */
+    public record WorkspacePage(List<String> names, boolean more) {
+    }
 
-    private DataStore() {}
+    private DataStore() {
+        ScheduledExecutorService expiryTimer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "Expiry-Timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        expiryTimer.scheduleAtFixedRate(this::expireTokens, TOKEN_WHEEL_TICK_MS, TOKEN_WHEEL_TICK_MS, TimeUnit.MILLISECONDS);
+        expiryTimer.scheduleAtFixedRate(this::expireSessions, SESSION_WHEEL_TICK_MS, SESSION_WHEEL_TICK_MS, TimeUnit.MILLISECONDS);
+    }
 
     public static DataStore getInstance() {
         return INSTANCE;
     }
 
     // --- User Management ---
-    public boolean isUserRegistered(String phoneNumber) { return users.containsKey(phoneNumber); }
-    public void registerUser(User user) { users.put(user.getPhoneNumber(), user); }
+    public boolean isUserRegistered(String phoneNumber) { return users.contains(phoneNumber); }
+    public CompletableFuture<Void> registerUser(User user) { return record(new Mutation.RegisterUser(user.getPhoneNumber(), user.getPassword())); }
+    /**
+     * Registers a batch in one journal record, leaving out users that already exist or appear earlier in the batch.
+     * Checking and applying happen under one lock, so no other registration can slip in between.
+     * Completes with the rejected rows in order once the batch is on disk.
+     */
+    public CompletableFuture<List<RejectedRow>> registerUsers(List<User> batch) {
+        synchronized (mutationLock) {
+            List<RejectedRow> rejected = new ArrayList<>();
+            Set<String> seen = new HashSet<>(batch.size() * 2);
+            String[] phoneNumbers = new String[batch.size()];
+            String[] passwords = new String[batch.size()];
+            int accepted = 0;
+            for (int row = 0; row < batch.size(); row++) {
+                User user = batch.get(row);
+                if (!seen.add(user.getPhoneNumber())) {
+                    rejected.add(new RejectedRow(row, RejectedRow.DUPLICATE));
+                } else if (users.contains(user.getPhoneNumber())) {
+                    rejected.add(new RejectedRow(row, RejectedRow.EXISTS));
+                } else {
+                    phoneNumbers[accepted] = user.getPhoneNumber();
+                    passwords[accepted++] = user.getPassword();
+                }
+            }
+            if (accepted == 0) {
+                return CompletableFuture.completedFuture(rejected);
+            }
+            return record(new Mutation.RegisterUsers(Arrays.copyOf(phoneNumbers, accepted), Arrays.copyOf(passwords, accepted)))
+                    .thenApply(ignored -> rejected);
+        }
+    }
     public Optional<User> findUser(String phoneNumber) { return Optional.ofNullable(users.get(phoneNumber)); }
+    /** Visits every user without copying the table, which in mapped storage may be far larger than the heap. */
+    public void forEachUser(Consumer<User> action) { users.forEach(action); }
+    public int getUserCount() { return users.size(); }
+    /** Drops a user that another central node has taken over. */
+    public CompletableFuture<Void> removeUser(String phoneNumber) { return record(new Mutation.RemoveUser(phoneNumber)); }
 
     // --- Host Management ---
-    public boolean isPortRangeInUse(int startPort, int endPort) {
-        return hosts.values().stream().anyMatch(host ->
-                (startPort >= host.getStartPort() && startPort <= host.getEndPort()) ||
-                        (endPort >= host.getStartPort() && endPort <= host.getEndPort())
-        );
+    /** Whether another host (one with a different id) already owns a port of this range. */
+    public boolean isPortRangeInUse(Host host) {
+        Host overlap = portRanges.findOverlap(host.getAddress(), host.getStartPort(), host.getEndPort());
+        return overlap != null && !overlap.getId().equals(host.getId());
+    }
+    /** Whether the host is registered with a different port range while workspaces are still recorded on it. */
+    public boolean isPortRangeChangeBlocked(Host host) {
+        Host previous = hosts.get(host.getId());
+        return previous != null && previous.getEndPort() != host.getEndPort()
+                && workspaces.values().stream().anyMatch(ws -> ws.getHost().getId().equals(host.getId()));
     }
-    public void registerHost(Host host) { hosts.put(host.getId(), host); }
+    /**
+     * Completes with the host as stored, which is the instance later workspaces and placement decisions refer to,
+     * or empty if its port range overlaps another host's or changes under live workspaces. A host registering
+     * again keeps its reserved ports.
+     */
+    public CompletableFuture<Optional<Host>> registerHost(Host host) {
+        synchronized (mutationLock) {
+            if (isPortRangeInUse(host) || isPortRangeChangeBlocked(host)) {
+                return CompletableFuture.completedFuture(Optional.empty());
+            }
+            CompletableFuture<Void> written = record(new Mutation.RegisterHost(host.getAddress(), host.getStartPort(), host.getEndPort()));
+            Host stored = hosts.get(host.getId());
+            return written.thenApply(ignored -> Optional.of(stored));
+        }
+    }
+    public Optional<Host> findHost(String hostId) { return Optional.ofNullable(hosts.get(hostId)); }
+    /** A host that reconnects replaces its previous link, which is closed in case it is only half-open. */
     public void registerActiveHostConnection(String hostId, HostConnection connection) {
-        activeHostConnections.put(hostId, connection);
+        HostConnection previous = activeHostConnections.put(hostId, connection);
+        refreshPlacementCandidates();
+        if (previous != null && previous != connection) {
+            previous.close();
+            log.info("Host {} reconnected; replaced its previous connection.", hostId);
+        }
         log.info("Host connection for {} is now persistent and active.", hostId);
     }
-    public Optional<Host> getRandomAvailableHost() {
-        if (activeHostConnections.isEmpty()) {
-            return Optional.empty();
+    /** Forgets a closed link unless the host has already reconnected; the host itself stays registered. */
+    public void unregisterActiveHostConnection(HostConnection connection) {
+        if (activeHostConnections.remove(connection.getHostId(), connection)) {
+            refreshPlacementCandidates();
+        }
+    }
+    /**
+     * Makes the host's reserved ports exactly the workspace ports it reports running, in one journal record.
+     * Workspace records on this host whose port is not running are dropped; running ports without a record stay
+     * reserved so they are not handed out twice. Completes with the names of the dropped workspaces.
+     */
+    public CompletableFuture<List<String>> reconcileHost(String hostId, int[] runningPorts) {
+        synchronized (mutationLock) {
+            Host host = hosts.get(hostId);
+            if (host == null) {
+                return CompletableFuture.completedFuture(List.of());
+            }
+            Set<Integer> running = Arrays.stream(runningPorts).boxed().collect(Collectors.toSet());
+            List<String> dropped = workspaces.values().stream()
+                    .filter(ws -> ws.getHost().getId().equals(hostId) && !running.contains(ws.getPort()))
+                    .map(Workspace::getName)
+                    .toList();
+            Set<Integer> known = workspaces.values().stream()
+                    .filter(ws -> ws.getHost().getId().equals(hostId))
+                    .map(Workspace::getPort)
+                    .collect(Collectors.toSet());
+            int released = 0;
+            for (int port : host.getUsedPorts()) {
+                if (!running.contains(port) && !known.contains(port)) {
+                    released++;
+                }
+            }
+            long orphans = running.stream().filter(port -> !known.contains(port)).count();
+            CompletableFuture<Void> written = record(new Mutation.ReconcileHost(hostId, runningPorts));
+            log.info("Reconciled host {}: {} running port(s), {} stale workspace record(s) dropped, {} leaked port(s) released, {} port(s) running without a record.",
+                    hostId, runningPorts.length, dropped.size(), released, orphans);
+            return written.thenApply(ignored -> dropped);
+        }
+    }
+    /** Immutable view of the active host links, rebuilt only when one is added or removed. */
+    public List<HostConnection> getPlacementCandidates() {
+        return placementCandidates;
+    }
+    private void refreshPlacementCandidates() {
+        synchronized (activeHostConnections) {
+            placementCandidates = List.copyOf(activeHostConnections.values());
         }
-        List<String> activeHostIds = new ArrayList<>(activeHostConnections.keySet());
-        String randomHostId = activeHostIds.get(ThreadLocalRandom.current().nextInt(activeHostIds.size()));
-        return Optional.ofNullable(hosts.get(randomHostId));
     }
     public Optional<HostConnection> getActiveHostConnection(String hostId) {
         return Optional.ofNullable(activeHostConnections.get(hostId));
     }
-    public void removeHost(String hostId) {
-        hosts.remove(hostId);
+    public CompletableFuture<Void> removeHost(String hostId) {
+        CompletableFuture<Void> written = record(new Mutation.RemoveHost(hostId));
         HostConnection connection = activeHostConnections.remove(hostId);
         if (connection != null) {
-            try {
-                connection.getSocket().close();
-            } catch (IOException e) {
-                log.error("Error closing socket for removed host {}", hostId, e);
-            }
+            refreshPlacementCandidates();
+            connection.close();
         }
         log.warn("Removed host {} from data store and closed its connection.", hostId);
+        return written;
     }
 
     // --- Workspace Management ---
     public boolean isWorkspaceNameTaken(String name) { return workspaces.containsKey(name); }
-    public void createWorkspace(Workspace workspace) { workspaces.put(workspace.getName(), workspace); }
+    /**
+     * Claims a name for a workspace about to be placed; false if a workspace has it or another create-workspace claimed
+     * it first. The claim must be released with {@link #releaseWorkspaceName} once the record is written or placement failed.
+     */
+    public boolean reserveWorkspaceName(String name) {
+        synchronized (mutationLock) {
+            return !workspaces.containsKey(name) && reservedWorkspaceNames.add(name);
+        }
+    }
+    public void releaseWorkspaceName(String name) { reservedWorkspaceNames.remove(name); }
+    public CompletableFuture<Void> createWorkspace(Workspace workspace) {
+        Host host = workspace.getHost();
+        return record(new Mutation.CreateWorkspace(workspace.getName(), host.getAddress(), host.getStartPort(), host.getEndPort(),
+                workspace.getPort(), workspace.getCreatorPhoneNumber()));
+    }
     public Optional<Workspace> findWorkspace(String name) { return Optional.ofNullable(workspaces.get(name)); }
+    public List<Workspace> getWorkspaces() { return List.copyOf(workspaces.values()); }
+    /** The name of the workspace this node knows to run on the given host and port. */
+    public Optional<String> findWorkspaceAt(String hostId, int port) {
+        return Optional.ofNullable(workspacesByLocation.get(hostId + "/" + port));
+    }
+    /**
+     * Up to {@code limit} workspace names after {@code cursor} (null to start at the beginning) that start with
+     * {@code prefix}, of one creator or, if {@code creatorPhoneNumber} is null, of everyone. Only visits the names
+     * returned, however many workspaces there are.
+     */
+    public WorkspacePage listWorkspaces(String creatorPhoneNumber, String prefix, String cursor, int limit) {
+        NavigableSet<String> names = creatorPhoneNumber == null ? workspaceNames : workspacesByCreator.get(creatorPhoneNumber);
+        if (names == null) {
+            names = EMPTY_NAMES;
+        }
+        boolean afterCursor = cursor != null && cursor.compareTo(prefix) >= 0;
+        String from = afterCursor ? cursor : prefix;
+        NavigableSet<String> range;
+        if (prefix.isEmpty()) {
+            range = names.tailSet(from, !afterCursor);
+        } else {
+            String to = prefix + Character.MAX_VALUE;
+            range = from.compareTo(to) >= 0 ? EMPTY_NAMES : names.subSet(from, !afterCursor, to, false);
+        }
+        List<String> page = new ArrayList<>(Math.min(limit, 64));
+        Iterator<String> iterator = range.iterator();
+        while (page.size() < limit && iterator.hasNext()) {
+            page.add(iterator.next());
+        }
+        return new WorkspacePage(page, iterator.hasNext());
+    }
+    /** Drops the record of a workspace that another central node has taken over; its port stays reserved. */
+    public CompletableFuture<Void> handOffWorkspace(String name) { return record(new Mutation.HandOffWorkspace(name)); }
+    /** Forgets the workspace and returns its port to the host's pool. */
+    public CompletableFuture<Void> deleteWorkspace(String name) { return record(new Mutation.DeleteWorkspace(name)); }
 
     // --- Token Management ---
-    public void saveToken(Token token) { tokens.put(token.getValue(), token); }
+    public void saveToken(Token token) {
+        record(new Mutation.IssueToken(token.getValue(), token.getPhoneNumber(), token.getCreationTimeMillis()));
+    }
+    /** Looks a token up without redeeming it, e.g. on a standby that leaves redeeming to its primary. */
+    public Optional<Token> findToken(String tokenValue) {
+        return Optional.ofNullable(tokens.get(tokenValue)).filter(token -> !token.isExpired());
+    }
+    /**
+     * Redeems a token. A token redeemed in the last {@link #REDEEMED_TOKEN_GRACE_MS} is answered again, since the host
+     * that redeemed it may not have got the reply and asks once more.
+     */
     public Optional<Token> findAndInvalidateToken(String tokenValue) {
         Token token = tokens.remove(tokenValue);
-        if (token != null && !token.isExpired()) return Optional.of(token);
-        return Optional.empty();
+        if (token == null) {
+            RedeemedToken redeemed = recentlyRedeemed.get(tokenValue);
+            return redeemed != null && redeemed.graceEndMillis() >= System.currentTimeMillis()
+                    ? Optional.of(redeemed.token()) : Optional.empty();
+        }
+        if (!replicas.isEmpty()) {
+            record(new Mutation.RedeemToken(tokenValue));
+        }
+        if (token.isExpired()) {
+            expiredTokens.increment();
+            return Optional.empty();
+        }
+        long graceEnd = System.currentTimeMillis() + REDEEMED_TOKEN_GRACE_MS;
+        recentlyRedeemed.put(tokenValue, new RedeemedToken(token, graceEnd));
+        tokenExpiry.schedule(tokenValue, graceEnd);
+        redeemedTokens.increment();
+        return Optional.of(token);
+    }
+    public TokenStats getTokenStats() {
+        return new TokenStats(tokens.size(), expiredTokens.sum(), redeemedTokens.sum());
+    }
+    private void expireTokens() {
+        try {
+            long now = System.currentTimeMillis();
+            // Redeemed tokens still have a wheel entry; it is simply skipped when its slot comes round.
+            tokenExpiry.advance(now, tokenValue -> {
+                Token token = tokens.get(tokenValue);
+                if (token != null && token.isExpired(now) && tokens.remove(tokenValue, token)) {
+                    expiredTokens.increment();
+                }
+                recentlyRedeemed.computeIfPresent(tokenValue, (value, redeemed) -> redeemed.graceEndMillis() <= now ? null : redeemed);
+            });
+        } catch (RuntimeException e) {
+            log.error("Token expiry sweep failed.", e);
+        }
+    }
+
+    // --- Session Management ---
+    /**
+     * Journals the session so it outlives a restart; completes with false if the table already holds the maximum
+     * number of sessions.
+     */
+    public CompletableFuture<Boolean> openSession(Session session) {
+        synchronized (mutationLock) {
+            if (sessions.size() >= MAX_SESSIONS) {
+                return CompletableFuture.completedFuture(false);
+            }
+            return record(new Mutation.OpenSession(session.getId(), session.getPhoneNumber(), session.getExpiryTimeMillis()))
+                    .thenApply(ignored -> true);
+        }
+    }
+    public Optional<Session> findSession(String sessionId) {
+        Session session = sessions.get(sessionId);
+        return session == null || session.isExpired(System.currentTimeMillis()) ? Optional.empty() : Optional.of(session);
     }
-    public synchronized void saveStateToFile(String filePath) {
+    public List<Session> getSessions() { return List.copyOf(sessions.values()); }
+    public int getSessionCount() { return sessions.size(); }
+    public CompletableFuture<Void> closeSession(String sessionId) {
+        return sessions.containsKey(sessionId) ? record(new Mutation.CloseSession(sessionId)) : CompletableFuture.completedFuture(null);
+    }
+    private void expireSessions() {
+        try {
+            long now = System.currentTimeMillis();
+            // Not journaled: a replayed session whose expiry has passed is left out anyway.
+            sessionExpiry.advance(now, sessionId -> {
+                Session session = sessions.get(sessionId);
+                if (session != null && session.isExpired(now)) {
+                    sessions.remove(sessionId, session);
+                }
+            });
+        } catch (RuntimeException e) {
+            log.error("Session expiry sweep failed.", e);
+        }
+    }
+
+    // --- Persistence ---
+    /**
+     * Applies a mutation and completes once it is journaled. Once the journal has failed, journaled mutations are
+     * refused without being applied. The journal writer completes the future, so what depends on it must not record
+     * mutations itself.
+     */
+    private CompletableFuture<Void> record(Mutation mutation) {
+        synchronized (mutationLock) {
+            Journal current = mutation.journaled() ? journal : null;
+            if (current != null && current.failure() != null) {
+                return CompletableFuture.failedFuture(current.failure());
+            }
+            apply(mutation);
+            CompletableFuture<Void> written = current != null ? current.append(mutation) : CompletableFuture.completedFuture(null);
+            if (!replicas.isEmpty()) {
+                String line = mutation.encode();
+                replicas.forEach(replica -> replica.accept(line));
+            }
+            return written;
+        }
+    }
+
+    private void apply(Mutation mutation) {
+        switch (mutation) {
+            case Mutation.RegisterUser m -> users.put(new User(m.phoneNumber(), m.password()));
+            case Mutation.RegisterUsers m -> {
+                for (int i = 0; i < m.phoneNumbers().length; i++) {
+                    users.put(new User(m.phoneNumbers()[i], m.passwords()[i]));
+                }
+            }
+            case Mutation.RemoveUser m -> users.remove(m.phoneNumber());
+            case Mutation.RegisterHost m -> {
+                Host host = new Host(m.address(), m.startPort(), m.endPort());
+                Host previous = hosts.get(host.getId());
+                if (previous != null && previous.getEndPort() == host.getEndPort()) {
+                    return; // the same host again, e.g. after a restart
+                }
+                if (previous != null) {
+                    // Only reached with no workspace records left; ports reserved for unrecorded workspaces stay reserved.
+                    for (int port : previous.getUsedPorts()) {
+                        host.markPortUsed(port);
+                    }
+                    portRanges.remove(previous);
+                }
+                hosts.put(host.getId(), host);
+                portRanges.add(host);
+            }
+            case Mutation.CreateWorkspace m -> {
+                Host host = hosts.get(m.hostAddress() + ":" + m.hostStartPort());
+                if (host == null) {
+                    host = new Host(m.hostAddress(), m.hostStartPort(), m.hostEndPort());
+                }
+                host.markPortUsed(m.port());
+                Workspace workspace = new Workspace(m.name(), host, m.port(), m.creatorPhoneNumber());
+                unindexWorkspace(workspaces.put(m.name(), workspace));
+                indexWorkspace(workspace);
+            }
+            case Mutation.DeleteWorkspace m -> {
+                Workspace workspace = workspaces.remove(m.name());
+                if (workspace != null) {
+                    unindexWorkspace(workspace);
+                    hosts.getOrDefault(workspace.getHost().getId(), workspace.getHost()).releasePort(workspace.getPort());
+                }
+            }
+            case Mutation.HandOffWorkspace m -> unindexWorkspace(workspaces.remove(m.name()));
+            case Mutation.ReconcileHost m -> {
+                Host host = hosts.get(m.hostId());
+                if (host == null) {
+                    return;
+                }
+                Set<Integer> running = Arrays.stream(m.runningPorts()).boxed().collect(Collectors.toSet());
+                workspaces.values().removeIf(ws -> {
+                    boolean stale = ws.getHost().getId().equals(m.hostId()) && !running.contains(ws.getPort());
+                    if (stale) {
+                        unindexWorkspace(ws);
+                    }
+                    return stale;
+                });
+                host.setUsedPorts(m.runningPorts());
+            }
+            case Mutation.OpenSession m -> {
+                if (m.expiryTimeMillis() < System.currentTimeMillis()) {
+                    return;
+                }
+                sessions.put(m.id(), new Session(m.id(), m.phoneNumber(), m.expiryTimeMillis()));
+                sessionExpiry.schedule(m.id(), m.expiryTimeMillis());
+            }
+            case Mutation.CloseSession m -> sessions.remove(m.id());
+            case Mutation.IssueToken m -> {
+                Token token = new Token(m.value(), m.phoneNumber(), m.creationTimeMillis());
+                tokens.put(token.getValue(), token);
+                tokenExpiry.schedule(token.getValue(), token.getExpiryTimeMillis());
+            }
+            case Mutation.RedeemToken m -> tokens.remove(m.value());
+            case Mutation.RemoveHost m -> {
+                Host host = hosts.remove(m.hostId());
+                if (host != null) {
+                    portRanges.remove(host);
+                }
+            }
+        }
+    }
+
+    private void indexWorkspace(Workspace workspace) {
+        workspaceNames.add(workspace.getName());
+        workspacesByCreator.computeIfAbsent(workspace.getCreatorPhoneNumber(), creator -> new ConcurrentSkipListSet<>())
+                .add(workspace.getName());
+        workspacesByLocation.put(workspace.getHost().getId() + "/" + workspace.getPort(), workspace.getName());
+    }
+
+    private void unindexWorkspace(Workspace workspace) {
+        if (workspace == null) {
+            return;
+        }
+        workspaceNames.remove(workspace.getName());
+        workspacesByCreator.computeIfPresent(workspace.getCreatorPhoneNumber(), (creator, names) -> {
+            names.remove(workspace.getName());
+            return names.isEmpty() ? null : names;
+        });
+        workspacesByLocation.remove(workspace.getHost().getId() + "/" + workspace.getPort(), workspace.getName());
+    }
+
+    /**
+     * Replays the journal written since the snapshot loaded by {@link #loadStateFromFile}, then journals every
+     * further mutation and takes a new snapshot in the background whenever enough of them have piled up.
+     */
+    public void startJournal(Path directory, String snapshotPath) throws IOException {
+        synchronized (mutationLock) {
+            long lastSequence = Journal.replay(directory, loadedJournalSequence, this::apply);
+            journal = new Journal(directory, lastSequence);
+            snapshotSequence = loadedJournalSequence;
+            lastSnapshotMillis = System.currentTimeMillis();
+        }
+        snapshotTimer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "Snapshot-Writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotTimer.scheduleWithFixedDelay(() -> {
+            long pending = journal.lastSequence() - snapshotSequence;
+            boolean due = System.currentTimeMillis() - lastSnapshotMillis >= SNAPSHOT_INTERVAL_MS;
+            if (pending >= SNAPSHOT_EVERY_RECORDS || (due && pending > 0)) {
+                saveStateToFile(snapshotPath);
+            }
+        }, SNAPSHOT_CHECK_INTERVAL_MS, SNAPSHOT_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Stops background snapshots and waits until every journaled mutation is on disk. */
+    public void closeJournal() {
+        if (snapshotTimer != null) {
+            snapshotTimer.shutdown();
+        }
+        Journal current = journal;
+        if (current == null) {
+            return;
+        }
+        try {
+            current.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // --- Replication ---
+    /** Starts handing every further mutation line to {@code replica}, which must not block. */
+    public void addReplica(Consumer<String> replica) { replicas.add(replica); }
+    public void removeReplica(Consumer<String> replica) { replicas.remove(replica); }
+
+    /**
+     * Writes the current state as mutation lines that rebuild it on an empty store. Mutations keep running meanwhile,
+     * so a replica added before this call may receive some of them twice, which is harmless.
+     */
+    public void writeReplicaBootstrap(Consumer<String> out) {
+        users.forEach(user -> out.accept(new Mutation.RegisterUser(user.getPhoneNumber(), user.getPassword()).encode()));
+        for (Host host : hosts.values()) {
+            out.accept(new Mutation.RegisterHost(host.getAddress(), host.getStartPort(), host.getEndPort()).encode());
+            // Before any workspace, so it only restores the reserved ports and drops nothing.
+            out.accept(new Mutation.ReconcileHost(host.getId(), host.getUsedPorts()).encode());
+        }
+        for (Workspace workspace : workspaces.values()) {
+            Host host = workspace.getHost();
+            out.accept(new Mutation.CreateWorkspace(workspace.getName(), host.getAddress(), host.getStartPort(),
+                    host.getEndPort(), workspace.getPort(), workspace.getCreatorPhoneNumber()).encode());
+        }
+        for (Session session : sessions.values()) {
+            out.accept(new Mutation.OpenSession(session.getId(), session.getPhoneNumber(), session.getExpiryTimeMillis()).encode());
+        }
+        for (Token token : tokens.values()) {
+            out.accept(new Mutation.IssueToken(token.getValue(), token.getPhoneNumber(), token.getCreationTimeMillis()).encode());
+        }
+    }
+
+    /**
+     * Empties the store before a standby rebuilds it from its primary's bootstrap. The reset is not journaled, so take a
+     * snapshot right after it; otherwise a restart would replay the records from before it.
+     */
+    public void resetForReplica() throws IOException {
+        synchronized (mutationLock) {
+            users.clear();
+            hosts.clear();
+            portRanges.clear();
+            workspaces.clear();
+            workspaceNames.clear();
+            workspacesByCreator.clear();
+            workspacesByLocation.clear();
+            sessions.clear();
+            tokens.clear();
+            recentlyRedeemed.clear();
+        }
+    }
+
+    /** Applies, journals and passes on one line received from the primary. */
+    public CompletableFuture<Void> applyReplicated(String line) {
+        return record(Mutation.decode(line));
+    }
+
+    /**
+     * Chooses where users are kept; call it before {@link #loadStateFromFile}. Mapped storage opens (or creates)
+     * {@code <baseName>.idx} and {@code <baseName>.dat} instead of reading users from the snapshot.
+     */
+    public synchronized void configureUserStorage(UserStorage storage, String baseName) throws IOException {
+        this.userTableBaseName = baseName;
+        if (storage == UserStorage.MAPPED) {
+            long started = System.nanoTime();
+            users = MappedUserTable.open(baseName);
+            log.info("Opened mapped user table {} with {} users in {} ms.", baseName, users.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+        }
+    }
+
+    /**
+     * Writes a snapshot and drops the journal segments it covers; false if it could not be written. Mutations keep
+     * running while the snapshot is written, so it may already contain some records after its recorded sequence;
+     * replaying those again is harmless.
+     */
+    public synchronized boolean saveStateToFile(String filePath) {
         log.info("Attempting to save server state to {}...", filePath);
+        long sequence;
+        CompletableFuture<Void> rotated;
+        synchronized (mutationLock) {
+            Journal current = journal;
+            sequence = current == null ? loadedJournalSequence : current.lastSequence();
+            rotated = current == null ? CompletableFuture.completedFuture(null) : current.rotate();
+        }
+        try {
+            rotated.join();
+        } catch (CompletionException e) {
+            log.error("Journal could not be rotated; the snapshot still holds every change applied so far.", e.getCause());
+        }
+
         PersistentState state = new PersistentState();
-        state.users = this.users;
+        state.journalSequence = sequence;
+        UserTable table = this.users;
+        if (table instanceof HeapUserTable heap) {
+            state.users = heap.map();
+        } else {
+            try {
+                table.flush(); // the snapshot only points at the table, which must hold what the journal did
+            } catch (IOException e) {
+                log.error("Failed to flush the user table; keeping the journal.", e);
+                return false;
+            }
+            state.users = new ConcurrentHashMap<>();
+            state.usersMapped = true;
+        }
         state.hosts = this.hosts;
         state.workspaces = this.workspaces;
+        state.sessions = this.sessions;
 
-        Gson gson = new GsonBuilder().setPrettyPrinting().create();
-
-        try (Writer writer = new FileWriter(filePath)) {
-            gson.toJson(state, writer);
-            log.info("Server state successfully saved.");
+        Path target = Path.of(filePath);
+        Path temporary = Path.of(filePath + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temporary.toFile())) {
+            SnapshotFormat.forFile(filePath).write(state, out);
+            out.getFD().sync(); // the journal segments it replaces are deleted right after
         } catch (IOException e) {
             log.error("Failed to save server state to file.", e);
+            return false;
+        }
+        try {
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Failed to replace {} with the new snapshot.", filePath, e);
+            return false;
         }
+        Journal current = journal;
+        if (current != null) {
+            current.deleteSegmentsUpTo(sequence);
+        }
+        snapshotSequence = sequence;
+        lastSnapshotMillis = System.currentTimeMillis();
+        log.info("Server state successfully saved (journal sequence {}).", sequence);
+        return true;
     }
     public synchronized void loadStateFromFile(String filePath) {
         log.info("Attempting to load server state from {}...", filePath);
-        Gson gson = new Gson();
-        try (Reader reader = new FileReader(filePath)) {
+        long started = System.nanoTime();
+        try (InputStream in = Files.newInputStream(Path.of(filePath))) {
 
-            PersistentState loadedState = gson.fromJson(reader, PersistentState.class);
+            PersistentState loadedState = SnapshotFormat.detect(Path.of(filePath)).read(in);
 
-            if (loadedState != null) {
-                // --- تغییر کلیدی برای حل مشکل final ---
-                // به جای re-assign کردن، مپ فعلی را پاک کرده و داده‌های جدید را اضافه می‌کنیم.
-                if (loadedState.users != null) {
-                    this.users.clear();
-                    this.users.putAll(loadedState.users);
-                }
-                if (loadedState.hosts != null) {
-                    this.hosts.clear();
-                    this.hosts.putAll(loadedState.hosts);
-                }
-                if (loadedState.workspaces != null) {
-                    this.workspaces.clear();
-                    this.workspaces.putAll(loadedState.workspaces);
-                }
-
-                log.info("Server state successfully loaded. Found {} users, {} hosts, {} workspaces.",
-                        this.users.size(), this.hosts.size(), this.workspaces.size());
-            } else {
-                log.warn("Data file was empty or corrupted. Starting with a fresh state.");
+            // --- تغییر کلیدی برای حل مشکل final ---
+            // به جای re-assign کردن، مپ فعلی را پاک کرده و داده‌های جدید را اضافه می‌کنیم.
+            loadUsers(loadedState);
+            if (loadedState.hosts != null) {
+                this.hosts.clear();
+                this.hosts.putAll(loadedState.hosts);
+                portRanges.clear();
+                this.hosts.values().forEach(portRanges::add);
+            }
+            if (loadedState.workspaces != null) {
+                this.workspaces.clear();
+                this.workspaces.putAll(loadedState.workspaces);
+                workspaceNames.clear();
+                workspacesByCreator.clear();
+                workspacesByLocation.clear();
+                this.workspaces.values().forEach(this::indexWorkspace);
             }
+            if (loadedState.sessions != null) {
+                this.sessions.clear();
+                long now = System.currentTimeMillis();
+                loadedState.sessions.values().stream().filter(session -> !session.isExpired(now)).forEach(session -> {
+                    this.sessions.put(session.getId(), session);
+                    sessionExpiry.schedule(session.getId(), session.getExpiryTimeMillis());
+                });
+            }
+            this.loadedJournalSequence = loadedState.journalSequence;
 
-        } catch (IOException e) {
+            log.info("Server state successfully loaded in {} ms. Found {} users, {} hosts, {} workspaces, {} sessions.",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started),
+                    this.users.size(), this.hosts.size(), this.workspaces.size(), this.sessions.size());
+
+        } catch (NoSuchFileException e) {
             log.warn("No existing data file found at '{}'. Starting with a fresh state.", filePath);
         } catch (Exception e) {
             log.error("Failed to load or parse server state from file. Starting with a fresh state.", e);
         }
     }
 
+    /**
+     * A snapshot written with mapped users leaves them in the table files, which a heap store then reads in; one
+     * written with heap users replaces whatever a mapped table held.
+     */
+    private void loadUsers(PersistentState loadedState) throws IOException {
+        UserTable table = this.users;
+        if (loadedState.usersMapped) {
+            if (table instanceof HeapUserTable heap) {
+                try (MappedUserTable mapped = MappedUserTable.open(userTableBaseName)) {
+                    heap.clear();
+                    mapped.forEach(heap::put);
+                }
+            }
+            return;
+        }
+        if (loadedState.users != null) {
+            table.clear();
+            loadedState.users.values().forEach(table::put);
+            table.flush();
+        }
+    }
 }
@@ -0,0 +1,55 @@
+package com.messaging.server.storage;
+
+import com.messaging.server.models.User;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/** Every user as an object on the heap; snapshots carry the whole table. */
+final class HeapUserTable implements UserTable {
+    private final ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>(); // Key: phoneNumber
+
+    /** The live map, which a snapshot streams. */
+    ConcurrentHashMap<String, User> map() {
+        return users;
+    }
+
+    @Override
+    public User get(String phoneNumber) {
+        return users.get(phoneNumber);
+    }
+
+    @Override
+    public void put(User user) {
+        users.put(user.getPhoneNumber(), user);
+    }
+
+    @Override
+    public void remove(String phoneNumber) {
+        users.remove(phoneNumber);
+    }
+
+    @Override
+    public int size() {
+        return users.size();
+    }
+
+    @Override
+    public void forEach(Consumer<User> action) {
+        users.values().forEach(action);
+    }
+
+    @Override
+    public void clear() {
+        users.clear();
+    }
+
+    @Override
+    public void flush() {
+        // Only the snapshot makes these durable.
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,258 @@
+package com.messaging.server.storage;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of {@link Mutation}s, one {@code <sequence> <crc32> <mutation>} line each, split into segments
+ * named after their first sequence number.
+ * {@link #append} queues the record and returns a future that completes once it is on disk; a writer thread writes
+ * whatever has queued up and fsyncs once per batch (group commit). At most {@link #MAX_QUEUED_RECORDS} records
+ * wait at a time, further appends block until the writer catches up. After a failed write the journal takes no more
+ * records: every pending and later append fails, so nothing is acknowledged that a restart would not replay.
+ */
+@Slf4j
+class Journal {
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int MAX_BATCH_RECORDS = 4096;
+    private static final int MAX_QUEUED_RECORDS = 65_536;
+
+    private record Record(String line, CompletableFuture<Void> written) {
+    }
+
+    private record Rotation(long firstSequence, CompletableFuture<Void> done) {
+    }
+
+    private final Path directory;
+    private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(MAX_QUEUED_RECORDS);
+    private final Thread writer;
+    private volatile boolean running = true;
+    private volatile IOException failure;
+    // Appends must be serialized by the caller so sequence numbers follow the order mutations were applied in.
+    private long lastSequence;
+    private FileChannel segment;
+
+    Journal(Path directory, long lastSequence) throws IOException {
+        this.directory = directory;
+        this.lastSequence = lastSequence;
+        Files.createDirectories(directory);
+        this.segment = openSegment(lastSequence + 1);
+        this.writer = new Thread(this::writeLoop, "Journal-Writer");
+        this.writer.start();
+    }
+
+    /** Completes once the record is on disk, or fails if the journal can no longer be written. */
+    CompletableFuture<Void> append(Mutation mutation) {
+        if (failure != null) {
+            return CompletableFuture.failedFuture(failure);
+        }
+        long sequence = ++lastSequence;
+        String payload = mutation.encode();
+        Record record = new Record(sequence + " " + Long.toHexString(checksum(payload)) + " " + payload + "\n", new CompletableFuture<>());
+        enqueue(record, record.written());
+        return record.written();
+    }
+
+    /** Set once a write failed; from then on every append fails. */
+    IOException failure() {
+        return failure;
+    }
+
+    long lastSequence() {
+        return lastSequence;
+    }
+
+    /** Starts a new segment after the last appended record; the future completes once the old one is on disk. */
+    CompletableFuture<Void> rotate() {
+        Rotation rotation = new Rotation(lastSequence + 1, new CompletableFuture<>());
+        enqueue(rotation, rotation.done());
+        return rotation.done();
+    }
+
+    private void enqueue(Object item, CompletableFuture<Void> done) {
+        try {
+            queue.put(item);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            done.completeExceptionally(new IOException("Interrupted while waiting for the journal", e));
+        }
+    }
+
+    /** Deletes segments that only hold records up to {@code sequence}; call after a rotation past it. */
+    void deleteSegmentsUpTo(long sequence) {
+        for (Path path : listSegments(directory)) {
+            if (firstSequenceOf(path) <= sequence) {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    log.warn("Could not delete journal segment {}: {}", path, e.getMessage());
+                }
+            }
+        }
+    }
+
+    /** Writes out everything appended so far and stops the writer thread. */
+    void close() throws InterruptedException {
+        running = false;
+        writer.join();
+    }
+
+    private void writeLoop() {
+        List<Object> batch = new ArrayList<>();
+        List<CompletableFuture<Void>> buffered = new ArrayList<>();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        while (running || !queue.isEmpty()) {
+            try {
+                Object first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH_RECORDS - 1);
+                if (failure == null) {
+                    write(batch, buffer, buffered);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) {
+                failure = e;
+                log.error("Failed to write to the journal; no further changes are accepted until the server restarts.", e);
+            } finally {
+                if (failure != null) {
+                    buffered.forEach(written -> written.completeExceptionally(failure));
+                    batch.forEach(item -> done(item).completeExceptionally(failure));
+                }
+                batch.clear();
+                buffered.clear();
+                buffer.reset();
+            }
+        }
+        try {
+            segment.close();
+        } catch (IOException e) {
+            log.error("Failed to close journal segment.", e);
+        }
+    }
+
+    private void write(List<Object> batch, ByteArrayOutputStream buffer, List<CompletableFuture<Void>> buffered) throws IOException {
+        for (Object item : batch) {
+            if (item instanceof Record record) {
+                buffer.writeBytes(record.line().getBytes(StandardCharsets.UTF_8));
+                buffered.add(record.written());
+            } else if (item instanceof Rotation rotation) {
+                flush(buffer, buffered);
+                segment.close();
+                segment = openSegment(rotation.firstSequence());
+                rotation.done().complete(null);
+            }
+        }
+        flush(buffer, buffered);
+    }
+
+    private static CompletableFuture<Void> done(Object item) {
+        return item instanceof Record record ? record.written() : ((Rotation) item).done();
+    }
+
+    /** Writes and fsyncs the buffer, then completes the records it held. */
+    private void flush(ByteArrayOutputStream buffer, List<CompletableFuture<Void>> buffered) throws IOException {
+        if (buffer.size() == 0) {
+            return;
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+        buffer.reset();
+        while (bytes.hasRemaining()) {
+            segment.write(bytes);
+        }
+        segment.force(false);
+        buffered.forEach(written -> written.complete(null));
+        buffered.clear();
+    }
+
+    private FileChannel openSegment(long firstSequence) throws IOException {
+        Path path = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX));
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Applies every record after {@code afterSequence} in order and returns the last sequence number seen.
+     * The rest of a segment is skipped at its first damaged record, which can only be a write cut short by a crash.
+     */
+    static long replay(Path directory, long afterSequence, Consumer<Mutation> apply) throws IOException {
+        long lastSequence = afterSequence;
+        int applied = 0;
+        for (Path path : listSegments(directory)) {
+            try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] record = line.split(" ", 3);
+                    long sequence;
+                    Mutation mutation;
+                    try {
+                        sequence = Long.parseLong(record[0]);
+                        if (Long.parseLong(record[1], 16) != checksum(record[2])) {
+                            throw new IllegalArgumentException("Checksum mismatch");
+                        }
+                        mutation = Mutation.decode(record[2]);
+                    } catch (RuntimeException e) {
+                        log.warn("Ignoring damaged journal record in {}: {}", path.getFileName(), line);
+                        break;
+                    }
+                    if (sequence <= lastSequence) {
+                        continue;
+                    }
+                    apply.accept(mutation);
+                    lastSequence = sequence;
+                    applied++;
+                }
+            }
+        }
+        log.info("Replayed {} journal records, up to sequence {}.", applied, lastSequence);
+        return lastSequence;
+    }
+
+    private static long checksum(String payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload.getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+
+    private static List<Path> listSegments(Path directory) {
+        if (!Files.isDirectory(directory)) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> {
+                String name = path.getFileName().toString();
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }).sorted().toList();
+        } catch (IOException e) {
+            log.error("Could not list journal directory {}.", directory, e);
+            return List.of();
+        }
+    }
+
+    private static long firstSequenceOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
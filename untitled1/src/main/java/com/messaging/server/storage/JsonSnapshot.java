@@ -0,0 +1,130 @@
+package com.messaging.server.storage;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.messaging.server.models.Host;
+import com.messaging.server.models.Session;
+import com.messaging.server.models.User;
+import com.messaging.server.models.Workspace;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** The original {@code central_server_data.json} layout, streamed entry by entry. */
+final class JsonSnapshot {
+    private static final Gson GSON = new GsonBuilder().registerTypeAdapter(Host.class, new HostAdapter()).create();
+
+    private JsonSnapshot() {
+    }
+
+    static void write(PersistentState state, OutputStream out) throws IOException {
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        writer.beginObject();
+        writer.name("journalSequence").value(state.journalSequence);
+        if (state.usersMapped) {
+            writer.name("usersMapped").value(true);
+        }
+        writer.name("users").beginObject();
+        for (User user : state.users.values()) {
+            writer.name(user.getPhoneNumber());
+            GSON.toJson(user, User.class, writer);
+        }
+        writer.endObject();
+        writer.name("hosts").beginObject();
+        for (Host host : state.hosts.values()) {
+            writer.name(host.getId());
+            GSON.toJson(host, Host.class, writer);
+        }
+        writer.endObject();
+        writer.name("workspaces").beginObject();
+        for (Workspace workspace : state.workspaces.values()) {
+            writer.name(workspace.getName());
+            GSON.toJson(workspace, Workspace.class, writer);
+        }
+        writer.endObject();
+        writer.name("sessions").beginObject();
+        for (Session session : state.sessions.values()) {
+            writer.name(session.getId());
+            GSON.toJson(session, Session.class, writer);
+        }
+        writer.endObject();
+        writer.endObject();
+        writer.flush();
+    }
+
+    static PersistentState read(InputStream in) throws IOException {
+        Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8);
+        PersistentState state = GSON.fromJson(reader, PersistentState.class);
+        if (state == null) {
+            throw new IOException("Data file is empty");
+        }
+        if (state.sessions == null) {
+            state.sessions = new ConcurrentHashMap<>();
+        }
+        if (state.hosts != null && state.workspaces != null) {
+            // Each workspace was read with its own copy of the host; share the registered one instead.
+            state.workspaces.replaceAll((name, workspace) -> {
+                Host host = state.hosts.get(workspace.getHost().getId());
+                return host == null ? workspace
+                        : new Workspace(name, host, workspace.getPort(), workspace.getCreatorPhoneNumber());
+            });
+        }
+        return state;
+    }
+
+    /** Keeps the original {@code {id, address, startPort, endPort, usedPorts: [...]}} shape of a host. */
+    private static class HostAdapter extends TypeAdapter<Host> {
+        @Override
+        public void write(JsonWriter out, Host host) throws IOException {
+            out.beginObject();
+            out.name("id").value(host.getId());
+            out.name("address").value(host.getAddress());
+            out.name("startPort").value(host.getStartPort());
+            out.name("endPort").value(host.getEndPort());
+            out.name("usedPorts").beginArray();
+            for (int port : host.getUsedPorts()) {
+                out.value(port);
+            }
+            out.endArray();
+            out.endObject();
+        }
+
+        @Override
+        public Host read(JsonReader in) throws IOException {
+            String address = null;
+            int startPort = 0, endPort = 0;
+            List<Integer> usedPorts = new ArrayList<>();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "address" -> address = in.nextString();
+                    case "startPort" -> startPort = in.nextInt();
+                    case "endPort" -> endPort = in.nextInt();
+                    case "usedPorts" -> {
+                        in.beginArray();
+                        while (in.hasNext()) {
+                            usedPorts.add(in.nextInt());
+                        }
+                        in.endArray();
+                    }
+                    default -> in.skipValue(); // id is derived from address and startPort
+                }
+            }
+            in.endObject();
+            Host host = new Host(address, startPort, endPort);
+            usedPorts.forEach(host::markPortUsed);
+            return host;
+        }
+    }
+}
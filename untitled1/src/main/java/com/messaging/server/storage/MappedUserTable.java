@@ -0,0 +1,366 @@
+package com.messaging.server.storage;
+
+import com.messaging.server.models.User;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Users in two memory-mapped files, so opening a table of any size takes no time and the heap only holds a small
+ * cache of recently read users.
+ * <pre>
+ * index (.idx): "PYRU" version slotCount liveCount usedSlots dataEnd, padded to 64 bytes, then slotCount slots of
+ *               {hash, record offset}; hash 0 is a free slot and a negative offset (~offset) a removed user
+ * data  (.dat): records {phoneLength phone passwordLength password}, appended in 64 MB segments
+ * </pre>
+ * The index is open-addressed with linear probing and is rebuilt at twice the size once 70% of the slots are used.
+ * A slot's hash is published last with release semantics, so readers never see a slot before its record.
+ * Changed and removed users leave their old record behind in the data file.
+ */
+@Slf4j
+final class MappedUserTable implements UserTable {
+    private static final byte[] MAGIC = "PYRU".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 16;
+    private static final int MIN_SLOTS = 1 << 16;
+    private static final double MAX_LOAD = 0.7;
+    private static final int SEGMENT_SIZE = 64 << 20;
+    private static final int CACHE_SIZE = 1 << 16;
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private record Index(FileChannel channel, MappedByteBuffer buffer, int slotCount) {
+        long hash(int slot) {
+            return (long) LONGS.getAcquire(buffer, HEADER_SIZE + slot * SLOT_SIZE);
+        }
+
+        long offset(int slot) {
+            return (long) LONGS.getAcquire(buffer, HEADER_SIZE + slot * SLOT_SIZE + 8);
+        }
+
+        void setOffset(int slot, long offset) {
+            LONGS.setRelease(buffer, HEADER_SIZE + slot * SLOT_SIZE + 8, offset);
+        }
+
+        void fill(int slot, long hash, long offset) {
+            setOffset(slot, offset);
+            LONGS.setRelease(buffer, HEADER_SIZE + slot * SLOT_SIZE, hash);
+        }
+    }
+
+    private final Path indexPath;
+    private final FileChannel data;
+    private volatile Index index;
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    private volatile int liveCount;
+    private int usedSlots;
+    private long dataEnd;
+    // Direct-mapped by hash. A reader only caches what it read if no write touched the entry meanwhile, which
+    // every write marks by storing a new object there.
+    private final AtomicReferenceArray<Object> cache = new AtomicReferenceArray<>(CACHE_SIZE);
+
+    private MappedUserTable(Path indexPath, FileChannel data) {
+        this.indexPath = indexPath;
+        this.data = data;
+    }
+
+    /** Opens the table in {@code <baseName>.idx} / {@code <baseName>.dat}, creating empty files if there are none. */
+    static MappedUserTable open(String baseName) throws IOException {
+        Path indexPath = Path.of(baseName + ".idx");
+        FileChannel data = FileChannel.open(Path.of(baseName + ".dat"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedUserTable table = new MappedUserTable(indexPath, data);
+        if (Files.exists(indexPath)) {
+            table.openIndex();
+        } else {
+            table.index = createIndex(indexPath, MIN_SLOTS);
+            table.writeHeader();
+        }
+        return table;
+    }
+
+    private void openIndex() throws IOException {
+        FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        byte[] magic = new byte[MAGIC.length];
+        header.get(0, magic);
+        if (!Arrays.equals(magic, MAGIC) || header.getInt(4) != VERSION) {
+            channel.close();
+            throw new IOException(indexPath + " is not a user table index");
+        }
+        int slotCount = header.getInt(8);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slotCount * SLOT_SIZE);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        index = new Index(channel, buffer, slotCount);
+        liveCount = buffer.getInt(12);
+        usedSlots = buffer.getInt(16);
+        dataEnd = buffer.getLong(24);
+        mapSegmentsUpTo(dataEnd);
+    }
+
+    private static Index createIndex(Path path, int slotCount) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slotCount * SLOT_SIZE);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, slotCount);
+        return new Index(channel, buffer, slotCount);
+    }
+
+    private void writeHeader() {
+        MappedByteBuffer buffer = index.buffer();
+        buffer.putInt(12, liveCount);
+        buffer.putInt(16, usedSlots);
+        buffer.putLong(24, dataEnd);
+    }
+
+    @Override
+    public User get(String phoneNumber) {
+        byte[] key = phoneNumber.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(key);
+        int cacheSlot = (int) (hash >>> 32) & (CACHE_SIZE - 1);
+        Object observed = cache.get(cacheSlot);
+        if (observed instanceof User user && user.getPhoneNumber().equals(phoneNumber)) {
+            return user;
+        }
+        Index current = index;
+        int slot = find(current, key, hash);
+        if (slot < 0 || current.offset(slot) < 0) {
+            return null;
+        }
+        User user = readUser(current.offset(slot), phoneNumber);
+        cache.compareAndSet(cacheSlot, observed, user);
+        return user;
+    }
+
+    @Override
+    public synchronized void put(User user) {
+        byte[] key = user.getPhoneNumber().getBytes(StandardCharsets.UTF_8);
+        long hash = hash(key);
+        long offset = append(key, user.getPassword().getBytes(StandardCharsets.UTF_8));
+        if (usedSlots + 1 > index.slotCount() * MAX_LOAD) {
+            resize();
+        }
+        Index current = index;
+        int slot = find(current, key, hash);
+        if (slot >= 0) {
+            if (current.offset(slot) < 0) {
+                liveCount++;
+            }
+            current.setOffset(slot, offset);
+        } else {
+            current.fill(~slot, hash, offset);
+            usedSlots++;
+            liveCount++;
+        }
+        writeHeader();
+        cache.set((int) (hash >>> 32) & (CACHE_SIZE - 1), user);
+    }
+
+    @Override
+    public synchronized void remove(String phoneNumber) {
+        byte[] key = phoneNumber.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(key);
+        Index current = index;
+        int slot = find(current, key, hash);
+        if (slot < 0 || current.offset(slot) < 0) {
+            return;
+        }
+        current.setOffset(slot, ~current.offset(slot));
+        liveCount--;
+        writeHeader();
+        cache.set((int) (hash >>> 32) & (CACHE_SIZE - 1), new Object());
+    }
+
+    @Override
+    public int size() {
+        return liveCount;
+    }
+
+    @Override
+    public void forEach(Consumer<User> action) {
+        Index current = index;
+        for (int slot = 0; slot < current.slotCount(); slot++) {
+            if (current.hash(slot) != 0 && current.offset(slot) >= 0) {
+                action.accept(readUser(current.offset(slot), null));
+            }
+        }
+    }
+
+    @Override
+    public synchronized void clear() throws IOException {
+        Index old = index;
+        index = createIndex(indexPath, MIN_SLOTS);
+        old.channel().close();
+        liveCount = 0;
+        usedSlots = 0;
+        dataEnd = 0;
+        writeHeader();
+        for (int i = 0; i < CACHE_SIZE; i++) {
+            cache.set(i, null);
+        }
+    }
+
+    @Override
+    public synchronized void flush() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+        index.buffer().force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        index.channel().close();
+        data.close();
+    }
+
+    /** The slot holding {@code key} (live or removed), or {@code ~slot} of the free slot where it would go. */
+    private int find(Index current, byte[] key, long hash) {
+        int mask = current.slotCount() - 1;
+        for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+            long slotHash = current.hash(slot);
+            if (slotHash == 0) {
+                return ~slot;
+            }
+            if (slotHash == hash) {
+                long offset = current.offset(slot);
+                if (keyMatches(offset < 0 ? ~offset : offset, key)) {
+                    return slot;
+                }
+            }
+        }
+    }
+
+    /** Rebuilds the index without its removed users, at a size where it is at most half full. */
+    private void resize() {
+        Index old = index;
+        int slotCount = MIN_SLOTS;
+        while (slotCount * 0.5 < liveCount + 1) {
+            slotCount <<= 1;
+        }
+        long started = System.nanoTime();
+        Path temporary = Path.of(indexPath + ".tmp");
+        try {
+            Index resized = createIndex(temporary, slotCount);
+            int mask = slotCount - 1;
+            for (int slot = 0; slot < old.slotCount(); slot++) {
+                long hash = old.hash(slot);
+                long offset = old.offset(slot);
+                if (hash == 0 || offset < 0) {
+                    continue;
+                }
+                int target = (int) hash & mask;
+                while (resized.hash(target) != 0) {
+                    target = (target + 1) & mask;
+                }
+                resized.fill(target, hash, offset);
+            }
+            resized.buffer().force();
+            Files.move(temporary, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // Readers still probing the old mapping finish there; it is unmapped once they let go of it.
+            index = resized;
+            old.channel().close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not grow the user index " + indexPath, e);
+        }
+        usedSlots = liveCount;
+        writeHeader();
+        log.info("Grew user index {} to {} slots for {} users in {} ms.", indexPath, slotCount, liveCount,
+                (System.nanoTime() - started) / 1_000_000);
+    }
+
+    private long append(byte[] key, byte[] password) {
+        int length = 8 + key.length + password.length;
+        if (length > SEGMENT_SIZE) {
+            throw new IllegalArgumentException("User record of " + length + " bytes does not fit a segment");
+        }
+        long offset = dataEnd;
+        if (offset % SEGMENT_SIZE + length > SEGMENT_SIZE) {
+            offset = (offset / SEGMENT_SIZE + 1) * SEGMENT_SIZE; // records never straddle two segments
+        }
+        mapSegmentsUpTo(offset + length);
+        MappedByteBuffer segment = segments[(int) (offset / SEGMENT_SIZE)];
+        int position = (int) (offset % SEGMENT_SIZE);
+        segment.putInt(position, key.length);
+        segment.put(position + 4, key);
+        segment.putInt(position + 4 + key.length, password.length);
+        segment.put(position + 8 + key.length, password);
+        dataEnd = offset + length;
+        return offset;
+    }
+
+    private void mapSegmentsUpTo(long end) {
+        int needed = (int) ((end + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        if (needed <= segments.length) {
+            return;
+        }
+        MappedByteBuffer[] grown = Arrays.copyOf(segments, needed);
+        try {
+            for (int i = segments.length; i < needed; i++) {
+                grown[i] = data.map(FileChannel.MapMode.READ_WRITE, (long) i * SEGMENT_SIZE, SEGMENT_SIZE);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not map the user data file", e);
+        }
+        segments = grown;
+    }
+
+    private boolean keyMatches(long offset, byte[] key) {
+        MappedByteBuffer segment = segments[(int) (offset / SEGMENT_SIZE)];
+        int position = (int) (offset % SEGMENT_SIZE);
+        if (segment.getInt(position) != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (segment.get(position + 4 + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Reads the record at {@code offset}; {@code phoneNumber} may be passed when the caller already has it. */
+    private User readUser(long offset, String phoneNumber) {
+        MappedByteBuffer segment = segments[(int) (offset / SEGMENT_SIZE)];
+        int position = (int) (offset % SEGMENT_SIZE);
+        int keyLength = segment.getInt(position);
+        if (phoneNumber == null) {
+            byte[] key = new byte[keyLength];
+            segment.get(position + 4, key);
+            phoneNumber = new String(key, StandardCharsets.UTF_8);
+        }
+        byte[] password = new byte[segment.getInt(position + 4 + keyLength)];
+        segment.get(position + 8 + keyLength, password);
+        return new User(phoneNumber, new String(password, StandardCharsets.UTF_8));
+    }
+
+    private static long hash(byte[] key) {
+        long hash = 0xcbf29ce484222325L; // FNV-1a, then a final mix so the low bits pick well-spread slots
+        for (byte b : key) {
+            hash = (hash ^ (b & 0xFF)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash == 0 ? 1 : hash;
+    }
+}
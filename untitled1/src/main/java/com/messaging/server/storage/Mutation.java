@@ -0,0 +1,169 @@
+package com.messaging.server.storage;
+
+import java.util.Arrays;
+
+/**
+ * A change to the persistent part of the {@link DataStore}, as written to the journal.
+ * Every mutation sets state rather than adjusting it, so replaying one that a snapshot already contains is harmless.
+ * Fields are single words (they arrive split on spaces), so a mutation is encoded as one space-separated line.
+ * The same lines are streamed to standby nodes, along with the short-lived token records the journal leaves out.
+ */
+sealed interface Mutation {
+
+    record RegisterUser(String phoneNumber, String password) implements Mutation {
+        @Override
+        public String encode() {
+            return "user " + phoneNumber + " " + password;
+        }
+    }
+
+    // A batch from register-bulk, in one record so that it is replayed all or nothing.
+    record RegisterUsers(String[] phoneNumbers, String[] passwords) implements Mutation {
+        @Override
+        public String encode() {
+            StringBuilder line = new StringBuilder("users");
+            for (int i = 0; i < phoneNumbers.length; i++) {
+                line.append(' ').append(phoneNumbers[i]).append(' ').append(passwords[i]);
+            }
+            return line.toString();
+        }
+    }
+
+    record RemoveUser(String phoneNumber) implements Mutation {
+        @Override
+        public String encode() {
+            return "remove-user " + phoneNumber;
+        }
+    }
+
+    record RegisterHost(String address, int startPort, int endPort) implements Mutation {
+        @Override
+        public String encode() {
+            return "host " + address + " " + startPort + " " + endPort;
+        }
+    }
+
+    // Carries the host's coordinates so the workspace can be rebuilt even if its host was removed since.
+    record CreateWorkspace(String name, String hostAddress, int hostStartPort, int hostEndPort, int port,
+                           String creatorPhoneNumber) implements Mutation {
+        @Override
+        public String encode() {
+            return "workspace " + name + " " + hostAddress + " " + hostStartPort + " " + hostEndPort + " " + port + " "
+                    + creatorPhoneNumber;
+        }
+    }
+
+    record DeleteWorkspace(String name) implements Mutation {
+        @Override
+        public String encode() {
+            return "delete-workspace " + name;
+        }
+    }
+
+    // The workspace now belongs to another central node; unlike DeleteWorkspace its port stays in use.
+    record HandOffWorkspace(String name) implements Mutation {
+        @Override
+        public String encode() {
+            return "handoff-workspace " + name;
+        }
+    }
+
+    record RemoveHost(String hostId) implements Mutation {
+        @Override
+        public String encode() {
+            return "remove-host " + hostId;
+        }
+    }
+
+    // The ports the host reported running after (re)connecting; ports are comma-separated, "-" when there are none.
+    record ReconcileHost(String hostId, int[] runningPorts) implements Mutation {
+        @Override
+        public String encode() {
+            if (runningPorts.length == 0) {
+                return "reconcile-host " + hostId + " -";
+            }
+            StringBuilder line = new StringBuilder("reconcile-host ").append(hostId).append(' ');
+            for (int i = 0; i < runningPorts.length; i++) {
+                line.append(i == 0 ? "" : ",").append(runningPorts[i]);
+            }
+            return line.toString();
+        }
+    }
+
+    // Sessions expire without a record: replaying one whose expiry has passed simply leaves it out.
+    record OpenSession(String id, String phoneNumber, long expiryTimeMillis) implements Mutation {
+        @Override
+        public String encode() {
+            return "session " + id + " " + phoneNumber + " " + expiryTimeMillis;
+        }
+    }
+
+    // Logged out, or handed over to the central node that now owns the session id.
+    record CloseSession(String id) implements Mutation {
+        @Override
+        public String encode() {
+            return "close-session " + id;
+        }
+    }
+
+    // Join tokens live for minutes, so they are only streamed to standbys and never journaled.
+    record IssueToken(String value, String phoneNumber, long creationTimeMillis) implements Mutation {
+        @Override
+        public String encode() {
+            return "token " + value + " " + phoneNumber + " " + creationTimeMillis;
+        }
+
+        @Override
+        public boolean journaled() {
+            return false;
+        }
+    }
+
+    record RedeemToken(String value) implements Mutation {
+        @Override
+        public String encode() {
+            return "redeem-token " + value;
+        }
+
+        @Override
+        public boolean journaled() {
+            return false;
+        }
+    }
+
+    String encode();
+
+    default boolean journaled() {
+        return true;
+    }
+
+    static Mutation decode(String line) {
+        String[] f = line.split(" ");
+        return switch (f[0]) {
+            case "user" -> new RegisterUser(f[1], f[2]);
+            case "users" -> {
+                String[] phoneNumbers = new String[(f.length - 1) / 2];
+                String[] passwords = new String[phoneNumbers.length];
+                for (int i = 0; i < phoneNumbers.length; i++) {
+                    phoneNumbers[i] = f[1 + 2 * i];
+                    passwords[i] = f[2 + 2 * i];
+                }
+                yield new RegisterUsers(phoneNumbers, passwords);
+            }
+            case "remove-user" -> new RemoveUser(f[1]);
+            case "host" -> new RegisterHost(f[1], Integer.parseInt(f[2]), Integer.parseInt(f[3]));
+            case "workspace" -> new CreateWorkspace(f[1], f[2], Integer.parseInt(f[3]), Integer.parseInt(f[4]),
+                    Integer.parseInt(f[5]), f[6]);
+            case "delete-workspace" -> new DeleteWorkspace(f[1]);
+            case "handoff-workspace" -> new HandOffWorkspace(f[1]);
+            case "remove-host" -> new RemoveHost(f[1]);
+            case "reconcile-host" -> new ReconcileHost(f[1], "-".equals(f[2]) ? new int[0]
+                    : Arrays.stream(f[2].split(",")).mapToInt(Integer::parseInt).toArray());
+            case "session" -> new OpenSession(f[1], f[2], Long.parseLong(f[3]));
+            case "close-session" -> new CloseSession(f[1]);
+            case "token" -> new IssueToken(f[1], f[2], Long.parseLong(f[3]));
+            case "redeem-token" -> new RedeemToken(f[1]);
+            default -> throw new IllegalArgumentException("Unknown journal record: " + f[0]);
+        };
+    }
+}
@@ -0,0 +1,18 @@
+package com.messaging.server.storage;
+
+import com.messaging.server.models.Host;
+import com.messaging.server.models.Session;
+import com.messaging.server.models.User;
+import com.messaging.server.models.Workspace;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/** What a snapshot holds; while the server runs the maps are the DataStore's live maps. */
+class PersistentState {
+    long journalSequence; // last journal record already reflected in the snapshot
+    ConcurrentHashMap<String, User> users;
+    boolean usersMapped; // users live in the mapped user table instead, and users is empty
+    ConcurrentHashMap<String, Host> hosts;
+    ConcurrentHashMap<String, Workspace> workspaces;
+    ConcurrentHashMap<String, Session> sessions; // absent from snapshots written before sessions existed
+}
@@ -0,0 +1,40 @@
+package com.messaging.server.storage;
+
+import com.messaging.server.models.Host;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Port ranges of the registered hosts, per address, ordered by start port. Admitted ranges never overlap,
+ * so the only candidate for an overlap with {@code [start, end]} is the range starting closest below {@code end}.
+ */
+class PortRangeIndex {
+    private final Map<String, TreeMap<Integer, Host>> rangesByAddress = new HashMap<>();
+
+    /** Returns a host whose range shares at least one port with {@code [startPort, endPort]}, or null. */
+    synchronized Host findOverlap(String address, int startPort, int endPort) {
+        TreeMap<Integer, Host> ranges = rangesByAddress.get(address);
+        if (ranges == null) {
+            return null;
+        }
+        Map.Entry<Integer, Host> below = ranges.floorEntry(endPort);
+        return below != null && below.getValue().getEndPort() >= startPort ? below.getValue() : null;
+    }
+
+    synchronized void add(Host host) {
+        rangesByAddress.computeIfAbsent(host.getAddress(), address -> new TreeMap<>()).put(host.getStartPort(), host);
+    }
+
+    synchronized void remove(Host host) {
+        TreeMap<Integer, Host> ranges = rangesByAddress.get(host.getAddress());
+        if (ranges != null && ranges.remove(host.getStartPort(), host) && ranges.isEmpty()) {
+            rangesByAddress.remove(host.getAddress());
+        }
+    }
+
+    synchronized void clear() {
+        rangesByAddress.clear();
+    }
+}
@@ -0,0 +1,86 @@
+package com.messaging.server.storage;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Reads what {@link SnapshotOutput} writes. */
+class SnapshotInput implements Closeable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final DataInputStream in;
+    private final List<String> dictionary = new ArrayList<>();
+
+    SnapshotInput(InputStream in) {
+        this.in = new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+    }
+
+    /** Returns the format version after checking the magic bytes. */
+    int readHeader(byte[] magic) throws IOException {
+        byte[] actual = new byte[magic.length];
+        in.readFully(actual);
+        if (!Arrays.equals(actual, magic)) {
+            throw new IOException("Not a binary snapshot of the expected kind");
+        }
+        return readVarInt();
+    }
+
+    boolean readBoolean() throws IOException {
+        return in.readByte() != 0;
+    }
+
+    int readVarInt() throws IOException {
+        return (int) readVarLong();
+    }
+
+    long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    String readString() throws IOException {
+        int length = readVarInt();
+        return length == 0 ? null : readUtf8(length - 1);
+    }
+
+    String readDictionaryString() throws IOException {
+        int code = readVarInt();
+        if (code == 0) {
+            return null;
+        }
+        if ((code & 1) == 0) {
+            int id = (code >>> 1) - 1;
+            if (id >= dictionary.size()) {
+                throw new IOException("Dictionary reference " + id + " out of range");
+            }
+            return dictionary.get(id);
+        }
+        String value = readUtf8(code >>> 1);
+        dictionary.add(value);
+        return value;
+    }
+
+    private String readUtf8(int length) throws IOException {
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
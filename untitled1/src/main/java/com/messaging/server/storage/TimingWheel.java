@@ -0,0 +1,59 @@
+package com.messaging.server.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel: O(1) scheduling, and each tick only visits the keys due in that slot.
+ * {@link #schedule} may be called from any thread; {@link #advance} from a single ticking thread.
+ * Entries are never cancelled: the expiry callback must check whether the key is still live and expired.
+ */
+class TimingWheel<K> {
+    private record Entry<K>(K key, long deadlineMillis) {
+    }
+
+    private final long tickMillis;
+    private final Queue<Entry<K>>[] slots;
+    private long nextTick;
+
+    @SuppressWarnings("unchecked")
+    TimingWheel(long tickMillis, int slotCount, long nowMillis) {
+        this.tickMillis = tickMillis;
+        this.slots = (Queue<Entry<K>>[]) new Queue<?>[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.nextTick = nowMillis / tickMillis;
+    }
+
+    void schedule(K key, long deadlineMillis) {
+        // Round up so the slot is visited at or after the deadline.
+        long tick = (deadlineMillis + tickMillis - 1) / tickMillis;
+        slots[(int) Math.floorMod(tick, (long) slots.length)].add(new Entry<>(key, deadlineMillis));
+    }
+
+    /** Visits every slot up to {@code nowMillis} and hands keys whose deadline has passed to {@code onExpired}. */
+    void advance(long nowMillis, Consumer<K> onExpired) {
+        long currentTick = nowMillis / tickMillis;
+        List<Entry<K>> notYetDue = new ArrayList<>();
+        // After a long pause one pass over the whole wheel is enough.
+        long firstTick = Math.max(nextTick, currentTick - slots.length + 1);
+        for (long tick = firstTick; tick <= currentTick; tick++) {
+            Queue<Entry<K>> slot = slots[(int) Math.floorMod(tick, (long) slots.length)];
+            Entry<K> entry;
+            while ((entry = slot.poll()) != null) {
+                if (entry.deadlineMillis() <= nowMillis) {
+                    onExpired.accept(entry.key());
+                } else {
+                    notYetDue.add(entry); // due in a later rotation
+                }
+            }
+            slot.addAll(notYetDue);
+            notYetDue.clear();
+        }
+        nextTick = currentTick + 1;
+    }
+}
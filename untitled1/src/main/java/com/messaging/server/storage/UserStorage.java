@@ -0,0 +1,24 @@
+package com.messaging.server.storage;
+
+import java.util.Locale;
+
+/**
+ * Where the central server keeps its users, selected with {@code -Dpayamresan.user-storage=heap|mapped}. {@code heap}
+ * holds them all as objects and in every snapshot; {@code mapped} keeps them in memory-mapped files next to the
+ * snapshot, which are opened rather than loaded at startup.
+ */
+public enum UserStorage {
+    HEAP,
+    MAPPED;
+
+    public static final String PROPERTY = "payamresan.user-storage";
+
+    public static UserStorage fromSystemProperties() {
+        String value = System.getProperty(PROPERTY, "heap");
+        try {
+            return valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown " + PROPERTY + " '" + value + "', expected heap or mapped", e);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.messaging.server.storage;
+
+import com.messaging.server.models.User;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Where the {@link DataStore} keeps its users, keyed by phone number. Reads may run on any thread; writes only come
+ * from {@link DataStore}'s mutations, one at a time.
+ */
+interface UserTable extends Closeable {
+
+    User get(String phoneNumber);
+
+    default boolean contains(String phoneNumber) {
+        return get(phoneNumber) != null;
+    }
+
+    void put(User user);
+
+    void remove(String phoneNumber);
+
+    int size();
+
+    void forEach(Consumer<User> action);
+
+    void clear() throws IOException;
+
+    /** Makes every change so far durable, before the journal records it came from are dropped. */
+    void flush() throws IOException;
+}